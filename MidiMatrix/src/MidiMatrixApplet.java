@@ -32,8 +32,18 @@ public class MidiMatrixApplet extends JApplet {
      */
     @Override
     public void init() {
-        pane = new MidiMatrixTabbedPane(false);
-        add(pane);
-        setSize(new Dimension(800, 800));
+        // the browser calls this from its own thread; build on Swing's
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+
+                public void run() {
+                    pane = new MidiMatrixTabbedPane(false);
+                    add(pane);
+                    setSize(new Dimension(800, 800));
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -21,9 +21,16 @@ package com.mjs_svc.midimatrix;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Vector;
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.sound.midi.*;
+import com.mjs_svc.midimatrix.core.*;
+import com.mjs_svc.midimatrix.core.Renderer;
 
 /**
  * ControlPanel houses all the controls for the application, such as devices
@@ -36,54 +43,185 @@ public class ControlPanel extends JPanel {
 
     private Player playControl;
     private Roll roll;
+    private static final String SAME_DEVICE = "Same as above", NO_DEVICE = "None";
+
     private JLabel deviceExplanation, deviceLabel, saveExplanation, saveLabel;
-    private JComboBox deviceList;
-    private JButton saveButton;
-    private boolean canSave;
+    private JComboBox<MidiDevice.Info> deviceList;
+    private Vector<JComboBox<Object>> portLists = new Vector<JComboBox<Object>>(); // for the ports after the first
+    private JLabel[] portLabels = new JLabel[ChannelAllocator.PORTS - 1];
+    private JLabel inputLabel;
+    private JComboBox<Object> inputList;
+    private JLabel soundbankLabel, soundbankName;
+    private JButton soundbankButton, defaultSoundbankButton;
+    private JLabel latencyLabel, polyphonyLabel;
+    private JSpinner latencySpinner, polyphonySpinner;
+    private JButton applySettingsButton, calibrateButton;
+    private static final int DEFAULT_LATENCY = 120, DEFAULT_POLYPHONY = 64; // the software synthesizer's own, shown until set
+    private JLabel loadLabel, loadValue;
+    private JCheckBox adaptiveBox;
+    private Recorder recorder;
+    private JButton saveButton, saveProjectButton;
+    private boolean canSave, updating = false;
     private SpringLayout layout;
 
     /**
      * Construct a new ControlPanel
      * @param _roll The roll to modify
      * @param _playControl The play controls to modify
+     * @param devices Where to find the MIDI devices to offer
+     * @param _recorder What to record from the chosen input device with
+     * @param monitor What watches the synthesizer's load
      * @param _canSave Whether or not the user can save
      */
-    public ControlPanel(Roll _roll, Player _playControl, boolean _canSave) {
+    public ControlPanel(Roll _roll, Player _playControl, DeviceDirectory devices, Recorder _recorder,
+            final SynthMonitor monitor, boolean _canSave) {
         layout = new SpringLayout();
         setLayout(layout);
         playControl = _playControl;
+        recorder = _recorder;
         roll = _roll;
         canSave = _canSave;
 
-        // Grab all available midi devices and load them into the combo box if they have a Receiver
-        MidiDevice.Info[] devices = MidiSystem.getMidiDeviceInfo();
-        deviceList = new JComboBox();
-        MidiDevice deviceIter;
-        for (int i = 0; i < devices.length; i++) {
-            deviceIter = null;
-            try {
-                deviceIter = MidiSystem.getMidiDevice(devices[i]);
-                if (deviceIter.getReceiver() instanceof Receiver) {
-                    deviceList.addItem(devices[i]);
-                }
-            } catch (Exception e) {
-            }
+        // the devices are found in the background; fill the list in when they are
+        deviceList = new JComboBox<MidiDevice.Info>();
+        deviceList.setEnabled(false);
+        for (int i = 0; i < portLabels.length; i++) {
+            JComboBox<Object> list = new JComboBox<Object>(new Object[]{SAME_DEVICE});
+            list.setEnabled(false);
+            portLists.add(list);
+        }
+        inputList = new JComboBox<Object>(new Object[]{NO_DEVICE});
+        inputList.setEnabled(false);
+        if (devices.getOutputs() != null) {
+            showDevices(devices.getOutputs(), devices.getSynthesizer(), devices.getInputs());
+        }
+        devices.addDeviceListener(new DeviceListener() {
 
-            // If the device is a Synthesizer (i.e.: default to Java Synth), select it
-            if (deviceIter instanceof Synthesizer) {
-                deviceList.setSelectedItem(devices[i]);
+            public void devicesChanged(DeviceDirectory directory, final MidiDevice.Info[] outputs) {
+                final MidiDevice.Info synth = directory.getSynthesizer();
+                final MidiDevice.Info[] inputs = directory.getInputs();
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    public void run() {
+                        showDevices(outputs, synth, inputs);
+                    }
+                });
             }
-        }
+        });
+
         // when the device is changed, change the player's synthesizer
         deviceList.addActionListener(new ActionListener() {
 
             public void actionPerformed(ActionEvent e) {
-                JComboBox source = (JComboBox) e.getSource();
-                playControl.setSynthesizer((MidiDevice.Info) source.getSelectedItem());
+                if (!updating && deviceList.getSelectedItem() != null) {
+                    playControl.setSynthesizer((MidiDevice.Info) deviceList.getSelectedItem());
+                }
+            }
+        });
+
+        // when a port's device is changed, play the port's grids through it
+        for (int i = 0; i < portLists.size(); i++) {
+            final int port = i + 1;
+            final JComboBox<Object> list = portLists.get(i);
+            list.addActionListener(new ActionListener() {
+
+                public void actionPerformed(ActionEvent e) {
+                    if (!updating && list.getSelectedItem() != null) {
+                        playControl.setPortDevice(port, list.getSelectedItem() == SAME_DEVICE
+                                ? null : (MidiDevice.Info) list.getSelectedItem());
+                    }
+                }
+            });
+        }
+
+        // when the input device is changed, record from it
+        inputList.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                if (!updating && inputList.getSelectedItem() != null) {
+                    useInput(inputList.getSelectedItem() == NO_DEVICE ? null : (MidiDevice.Info) inputList.getSelectedItem());
+                }
+            }
+        });
+
+        // soundbanks are files, so they can only be chosen where files can be read
+        soundbankButton = new JButton("Load SF2/DLS...");
+        defaultSoundbankButton = new JButton("Use default");
+        soundbankName = new JLabel();
+        showSoundbank(playControl.getSoundbank());
+        soundbankButton.setEnabled(canSave);
+        soundbankButton.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser openDialog = new JFileChooser(playControl.getSoundbank());
+                openDialog.setFileFilter(new FileNameExtensionFilter("Soundbanks (SF2, DLS)", "sf2", "dls"));
+                if (openDialog.showOpenDialog(soundbankButton) == JFileChooser.APPROVE_OPTION) {
+                    playControl.setSoundbank(openDialog.getSelectedFile());
+                    showSoundbank(openDialog.getSelectedFile());
+                }
+            }
+        });
+        defaultSoundbankButton.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                playControl.setSoundbank(null);
+                showSoundbank(null);
+            }
+        });
+
+        // the software synthesizer's latency and polyphony, set by hand or found by trying it out
+        latencySpinner = new JSpinner(new SpinnerNumberModel(DEFAULT_LATENCY, 5, 500, 5));
+        polyphonySpinner = new JSpinner(new SpinnerNumberModel(DEFAULT_POLYPHONY, 8, 256, 8));
+        showSynthesizerSettings();
+        applySettingsButton = new JButton("Apply");
+        applySettingsButton.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                playControl.setSynthesizerSettings(((Number) latencySpinner.getValue()).longValue() * 1000,
+                        ((Number) polyphonySpinner.getValue()).intValue());
+            }
+        });
+        calibrateButton = new JButton("Find lowest");
+        calibrateButton.setToolTipText("Try the synthesizer out to find the lowest latency it keeps up at");
+        calibrateButton.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                calibrateButton.setEnabled(false);
+                applySettingsButton.setEnabled(false);
+                playControl.calibrate(new Runnable() {
+
+                    public void run() {
+                        showSynthesizerSettings();
+                        calibrateButton.setEnabled(true);
+                        applySettingsButton.setEnabled(true);
+                    }
+                });
+            }
+        });
+
+        // show how hard the synthesizer is working as it's sampled
+        loadValue = new JLabel(monitor.getLoad().toString());
+        monitor.addLoadListener(new SynthLoadListener() {
+
+            public void loadSampled(SynthMonitor _monitor, final SynthMonitor.Load load) {
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    public void run() {
+                        loadValue.setText(load.toString());
+                    }
+                });
+            }
+        });
+        adaptiveBox = new JCheckBox("Play fewer notes when overloaded", monitor.isAdaptive());
+        adaptiveBox.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                monitor.setAdaptive(adaptiveBox.isSelected());
             }
         });
 
         saveButton = new JButton("Save MIDI file...");
+        saveProjectButton = new JButton("Save project...");
         if (canSave) {
             try {
                 // If we can save, add an action listener
@@ -144,41 +282,65 @@ public class ControlPanel extends JPanel {
                                     }
                                 }
 
-                                // Get the MIDI filetypes from the MIDI system
-                                int[] allowedTypes = MidiSystem.getMidiFileTypes(s);
-                                if (allowedTypes.length == 0) {
+                                // Try to write the file, warn if it doesn't work
+                                try {
+                                    OutputStream out = new FileOutputStream(f);
+                                    try {
+                                        Renderer.writeMidi(s, roll.getTempo(), out);
+                                    } finally {
+                                        out.close();
+                                    }
+                                } catch (IOException exc) {
                                     JOptionPane.showMessageDialog(
                                             null,
-                                            "Problem saving midi: MidiSystem couldn't find the proper type to save the file as",
+                                            "Problem saving midi: " + exc.getMessage(),
                                             "Error Saving",
                                             JOptionPane.ERROR_MESSAGE,
                                             null);
                                     return;
-                                } else {
+                                }
 
-                                    // Try to write the file, warn if it doesn't work
-                                    try {
-                                        MidiSystem.write(s, allowedTypes[0], f);
-                                    } catch (IOException exc) {
-                                        JOptionPane.showMessageDialog(
-                                                null,
-                                                "Problem saving midi: " + exc.getMessage(),
-                                                "Error Saving",
-                                                JOptionPane.ERROR_MESSAGE,
-                                                null);
-                                        return;
-                                    }
+                                // Notify on success
+                                JOptionPane.showMessageDialog(
+                                        null,
+                                        "MIDI file saved!",
+                                        "Saved",
+                                        JOptionPane.PLAIN_MESSAGE,
+                                        null);
+                            }
+                        }
+                    }
+                });
+                saveProjectButton.addActionListener(new ActionListener() {
 
-                                    // Notify on success
-                                    JOptionPane.showMessageDialog(
-                                            null,
-                                            "MIDI file saved!",
-                                            "Saved",
-                                            JOptionPane.PLAIN_MESSAGE,
-                                            null);
-                                }
+                    public void actionPerformed(ActionEvent e) {
+                        JFileChooser saveDialog = new JFileChooser();
+                        if (saveDialog.showSaveDialog(saveProjectButton) != JFileChooser.APPROVE_OPTION) {
+                            return;
+                        }
+                        File f = saveDialog.getSelectedFile();
+                        if (f.exists()) {
+                            int existsAction = JOptionPane.showOptionDialog(
+                                    saveProjectButton,
+                                    "That file already exists!  Overwrite?",
+                                    "File Exists!",
+                                    JOptionPane.YES_NO_OPTION,
+                                    JOptionPane.WARNING_MESSAGE,
+                                    null, null, null);
+                            if (existsAction == JOptionPane.NO_OPTION) {
+                                return;
                             }
                         }
+                        try {
+                            ProjectFile.write(roll, f);
+                        } catch (IOException exc) {
+                            JOptionPane.showMessageDialog(
+                                    null,
+                                    "Problem saving project: " + exc.getMessage(),
+                                    "Error Saving",
+                                    JOptionPane.ERROR_MESSAGE,
+                                    null);
+                        }
                     }
                 });
             } catch (Exception exc) {
@@ -195,6 +357,7 @@ public class ControlPanel extends JPanel {
             // Otherwise, disable the button
             saveButton.setEnabled(false);
             saveButton.setText("Saving disabled");
+            saveProjectButton.setEnabled(false);
         }
 
         // Add the MIDI device list with an explanation
@@ -213,22 +376,219 @@ public class ControlPanel extends JPanel {
         layout.putConstraint(SpringLayout.NORTH, deviceList, 10, SpringLayout.SOUTH, deviceExplanation);
         layout.putConstraint(SpringLayout.WEST, deviceList, 10, SpringLayout.EAST, deviceLabel);
 
+        // and one list for each of the other ports, for grids that don't fit on the first
+        JComponent above = deviceList;
+        for (int i = 0; i < portLists.size(); i++) {
+            portLabels[i] = new JLabel("Output device for port " + (i + 2) + ":");
+            add(portLabels[i]);
+            add(portLists.get(i));
+            layout.putConstraint(SpringLayout.NORTH, portLabels[i], 5, SpringLayout.SOUTH, above);
+            layout.putConstraint(SpringLayout.EAST, portLabels[i], 0, SpringLayout.EAST, deviceLabel);
+            layout.putConstraint(SpringLayout.NORTH, portLists.get(i), 5, SpringLayout.SOUTH, above);
+            layout.putConstraint(SpringLayout.WEST, portLists.get(i), 10, SpringLayout.EAST, deviceLabel);
+            above = portLists.get(i);
+        }
+
+        // and the device to record from
+        inputLabel = new JLabel("Record from MIDI input device:");
+        add(inputLabel);
+        add(inputList);
+        layout.putConstraint(SpringLayout.NORTH, inputLabel, 15, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.EAST, inputLabel, 0, SpringLayout.EAST, deviceLabel);
+        layout.putConstraint(SpringLayout.NORTH, inputList, 15, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, inputList, 10, SpringLayout.EAST, deviceLabel);
+        above = inputList;
+
+        // and the soundbank software synthesizers play with
+        soundbankLabel = new JLabel("Soundbank:");
+        add(soundbankLabel);
+        add(soundbankName);
+        add(soundbankButton);
+        add(defaultSoundbankButton);
+        layout.putConstraint(SpringLayout.NORTH, soundbankLabel, 15, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.EAST, soundbankLabel, 0, SpringLayout.EAST, deviceLabel);
+        layout.putConstraint(SpringLayout.NORTH, soundbankName, 15, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, soundbankName, 10, SpringLayout.EAST, deviceLabel);
+        layout.putConstraint(SpringLayout.NORTH, soundbankButton, 10, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, soundbankButton, 10, SpringLayout.EAST, soundbankName);
+        layout.putConstraint(SpringLayout.NORTH, defaultSoundbankButton, 10, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, defaultSoundbankButton, 5, SpringLayout.EAST, soundbankButton);
+        above = soundbankButton;
+
+        // and how the software synthesizer is set up
+        latencyLabel = new JLabel("Synthesizer latency (ms):");
+        polyphonyLabel = new JLabel("Voices:");
+        add(latencyLabel);
+        add(latencySpinner);
+        add(polyphonyLabel);
+        add(polyphonySpinner);
+        add(applySettingsButton);
+        add(calibrateButton);
+        layout.putConstraint(SpringLayout.NORTH, latencyLabel, 15, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.EAST, latencyLabel, 0, SpringLayout.EAST, deviceLabel);
+        layout.putConstraint(SpringLayout.NORTH, latencySpinner, 12, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, latencySpinner, 10, SpringLayout.EAST, deviceLabel);
+        layout.putConstraint(SpringLayout.NORTH, polyphonyLabel, 15, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, polyphonyLabel, 10, SpringLayout.EAST, latencySpinner);
+        layout.putConstraint(SpringLayout.NORTH, polyphonySpinner, 12, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, polyphonySpinner, 5, SpringLayout.EAST, polyphonyLabel);
+        layout.putConstraint(SpringLayout.NORTH, applySettingsButton, 10, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, applySettingsButton, 10, SpringLayout.EAST, polyphonySpinner);
+        layout.putConstraint(SpringLayout.NORTH, calibrateButton, 10, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, calibrateButton, 5, SpringLayout.EAST, applySettingsButton);
+        above = applySettingsButton;
+
+        // and the synthesizer's load
+        loadLabel = new JLabel("Synthesizer load:");
+        add(loadLabel);
+        add(loadValue);
+        add(adaptiveBox);
+        layout.putConstraint(SpringLayout.NORTH, loadLabel, 15, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.EAST, loadLabel, 0, SpringLayout.EAST, deviceLabel);
+        layout.putConstraint(SpringLayout.NORTH, loadValue, 15, SpringLayout.SOUTH, above);
+        layout.putConstraint(SpringLayout.WEST, loadValue, 10, SpringLayout.EAST, deviceLabel);
+        layout.putConstraint(SpringLayout.NORTH, adaptiveBox, 5, SpringLayout.SOUTH, loadValue);
+        layout.putConstraint(SpringLayout.WEST, adaptiveBox, 10, SpringLayout.EAST, deviceLabel);
+        above = adaptiveBox;
+
         // Add the save button with an explanation
         saveExplanation = new JLabel("<html><font size=\"+1\">Save Sequence</font>" +
                 "<p>If you would like to save the sequence that you have built and if " +
                 "saving is enabled in the current environment <br />(stand-alone applicattion: yes," +
-                "Java Applet: no), you may do so here.  " + (canSave ? "You can save." : "You <i>cannot</i> save.") + "</html>");
+                "Java Applet: no), you may do so here, as a MIDI file or as a project <br />that the " +
+                "command line renderer can read.  " + (canSave ? "You can save." : "You <i>cannot</i> save.") + "</html>");
         saveLabel = new JLabel("Save this sequence:");
         add(saveExplanation);
         add(saveLabel);
         add(saveButton);
-        layout.putConstraint(SpringLayout.NORTH, saveExplanation, 50, SpringLayout.SOUTH, deviceList);
+        add(saveProjectButton);
+        layout.putConstraint(SpringLayout.NORTH, saveExplanation, 50, SpringLayout.SOUTH, above);
         layout.putConstraint(SpringLayout.WEST, saveExplanation, 25, SpringLayout.WEST, this);
         layout.putConstraint(SpringLayout.NORTH, saveLabel, 10, SpringLayout.SOUTH, saveExplanation);
         layout.putConstraint(SpringLayout.EAST, saveLabel, 0, SpringLayout.EAST, deviceLabel);
         layout.putConstraint(SpringLayout.NORTH, saveButton, 10, SpringLayout.SOUTH, saveExplanation);
         layout.putConstraint(SpringLayout.WEST, saveButton, 10, SpringLayout.EAST, saveLabel);
+        layout.putConstraint(SpringLayout.NORTH, saveProjectButton, 10, SpringLayout.SOUTH, saveExplanation);
+        layout.putConstraint(SpringLayout.WEST, saveProjectButton, 10, SpringLayout.EAST, saveButton);
+
+        setPreferredSize(new Dimension(750, 620));
+    }
+
+    /**
+     * Put a new list of devices in the combo box, keeping the chosen device
+     * if it is still there.  If it isn't, switch playback to the synthesizer.
+     * @param outputs The devices
+     * @param synth The synthesizer among them, or null
+     * @param inputs The devices to offer to record from
+     */
+    private void showDevices(MidiDevice.Info[] outputs, MidiDevice.Info synth, MidiDevice.Info[] inputs) {
+        MidiDevice.Info chosen = (MidiDevice.Info) deviceList.getSelectedItem();
+        boolean gone = chosen != null && !Arrays.asList(outputs).contains(chosen);
+        if (chosen == null || gone) {
+            chosen = synth;
+        }
+        updating = true;
+        deviceList.removeAllItems();
+        for (int i = 0; i < outputs.length; i++) {
+            deviceList.addItem(outputs[i]);
+        }
+        deviceList.setSelectedItem(chosen);
+        updating = false;
+        deviceList.setEnabled(outputs.length > 0);
+
+        for (int i = 0; i < portLists.size(); i++) {
+            showPortDevices(i + 1, portLists.get(i), outputs);
+        }
+        showInputs(inputs);
+        revalidate();
+
+        if (gone && chosen != null) {
+            // the device being played through was unplugged
+            playControl.setSynthesizer(chosen);
+        }
+    }
+
+    /**
+     * Put a new list of devices in a port's combo box, keeping the chosen
+     * device if it is still there.  If it isn't, play the port through the
+     * first port's device.
+     */
+    private void showPortDevices(int port, JComboBox<Object> list, MidiDevice.Info[] outputs) {
+        Object chosen = list.getSelectedItem();
+        boolean gone = chosen != SAME_DEVICE && chosen != null && !Arrays.asList(outputs).contains(chosen);
+        updating = true;
+        list.removeAllItems();
+        list.addItem(SAME_DEVICE);
+        for (int i = 0; i < outputs.length; i++) {
+            list.addItem(outputs[i]);
+        }
+        list.setSelectedItem(gone || chosen == null ? SAME_DEVICE : chosen);
+        updating = false;
+        list.setEnabled(outputs.length > 0);
+
+        if (gone) {
+            playControl.setPortDevice(port, null);
+        }
+    }
 
-        setPreferredSize(new Dimension(750, 300));
+    /**
+     * Put a new list of input devices in the combo box, keeping the chosen
+     * device if it is still there.  If it isn't, stop recording from it.
+     */
+    private void showInputs(MidiDevice.Info[] inputs) {
+        Object chosen = inputList.getSelectedItem();
+        boolean gone = chosen != NO_DEVICE && chosen != null && !Arrays.asList(inputs).contains(chosen);
+        updating = true;
+        inputList.removeAllItems();
+        inputList.addItem(NO_DEVICE);
+        for (int i = 0; i < inputs.length; i++) {
+            inputList.addItem(inputs[i]);
+        }
+        inputList.setSelectedItem(gone || chosen == null ? NO_DEVICE : chosen);
+        updating = false;
+        inputList.setEnabled(inputs.length > 0);
+
+        if (gone) {
+            useInput(null);
+        }
+    }
+
+    /**
+     * Show which soundbank is played with
+     * @param file The soundbank file, or null for the default
+     */
+    private void showSoundbank(File file) {
+        soundbankName.setText(file == null ? "Default" : file.getName());
+        defaultSoundbankButton.setEnabled(file != null);
+    }
+
+    /**
+     * Show the software synthesizer's latency and polyphony
+     */
+    private void showSynthesizerSettings() {
+        long latency = playControl.getLatency();
+        int polyphony = playControl.getPolyphony();
+        latencySpinner.setValue(Integer.valueOf(latency > 0 ? (int) (latency / 1000) : DEFAULT_LATENCY));
+        polyphonySpinner.setValue(Integer.valueOf(polyphony > 0 ? polyphony : DEFAULT_POLYPHONY));
+    }
+
+    /**
+     * Record from another input device
+     * @param input The device, or null for none
+     */
+    private void useInput(MidiDevice.Info input) {
+        try {
+            recorder.setInput(input);
+        } catch (MidiUnavailableException e) {
+            JOptionPane.showMessageDialog(
+                    null,
+                    "There was a problem opening that device: " + e.getMessage(),
+                    "MIDI Oops",
+                    JOptionPane.ERROR_MESSAGE,
+                    null);
+            updating = true;
+            inputList.setSelectedItem(NO_DEVICE);
+            updating = false;
+        }
     }
 }
@@ -19,10 +19,12 @@ package com.mjs_svc.midimatrix;
  */
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import javax.swing.*;
 import java.util.*;
 import javax.swing.event.*;
 import javax.sound.midi.*;
+import com.mjs_svc.midimatrix.core.*;
 
 /**
  * MatrixPanel contains the matrices and the tools to work with them.
@@ -32,121 +34,404 @@ import javax.sound.midi.*;
  */
 public class MatrixPanel extends JPanel {
 
+    private static final Color BAR = new Color(30, 144, 255), HANDLE = new Color(60, 174, 255);
+    private static final int TILE = 256, MAX_TILES = 64;     // tile size in pixels, and how many to keep
+    private static final int MAX_ZOOM = 12, MAX_CELL = 160;  // how far in the view may zoom
+    private static final Color[] SHADES = new Color[16];
+
+    static {
+        for (int i = 0; i < SHADES.length; i++) {
+            float f = (i + 1) / (float) SHADES.length;
+            SHADES[i] = new Color(
+                    Math.round(255 + (BAR.getRed() - 255) * f),
+                    Math.round(255 + (BAR.getGreen() - 255) * f),
+                    Math.round(255 + (BAR.getBlue() - 255) * f));
+        }
+    }
+
+    /**
+     * Pick the shade for a block of cells
+     * @param amount How dark, from 0 to 1
+     * @return The shade, between white and the colour of a note
+     */
+    private static Color shade(float amount) {
+        return SHADES[Math.max(0, Math.min(SHADES.length - 1, (int) (amount * SHADES.length) - 1))];
+    }
+
     /**
-     * Panel containing the visual representation of a Grid
+     * Panel containing the visual representation of a Grid.  The grid is
+     * drawn in square tiles which are kept until the zoom changes or an
+     * edit touches them, so only the tiles in view are ever drawn and each
+     * is drawn once.  Zoomed in, the view pans along the grid; zoomed out
+     * far enough that a cell is smaller than a pixel, blocks of cells are
+     * shaded by how many of them are sounding instead.
      */
-    protected class mPanel extends JPanel implements MouseListener {
+    protected class mPanel extends JPanel implements MouseListener, MouseMotionListener, MouseWheelListener,
+            RollListener {
+
+        // the drawn tiles of the grid, by tile row and column
+        private final LinkedHashMap<Long, BufferedImage> tiles =
+                new LinkedHashMap<Long, BufferedImage>(MAX_TILES, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+                return size() > MAX_TILES;
+            }
+        };
+        private int tileGrid = -1, tileCellW, tileCellH, tileBlockW, tileBlockH; // what the tiles were drawn for
+        private long shownFingerprint;         // the grid's fingerprint when the tiles were drawn
+
+        private int zoom = 0;                  // each level doubles the width of a cell; 0 fits the whole grid
+        private int panX = 0;                  // how far along the grid the view is, in pixels
+        private int cellW, cellH;              // the size of a cell (or block of cells) in pixels
+        private int blockW, blockH;            // how many cells each of those covers, when zoomed out past a pixel
+        private int contentW, contentH;        // the size of the whole grid in pixels
+        private int startX, startY;            // where the grid starts on the panel
+        private Point toggleStart = null, toggleEnd = null, panStart = null;
+        private boolean alreadyToggled = false;
+
+        public mPanel() {
+            setBackground(Color.WHITE);
+            setOpaque(true);
+            addMouseMotionListener(this);
+            addMouseWheelListener(this);
+        }
 
-        // POLLY SHOULDN'T BE!
-        // Seriously, if I set these as attributes instead of methods, paintComponent can't see them
         /**
-         * Use integer math to get 1/16 the width of the panel
-         * @return 1/16 the width of the panel
+         * Work out the size and place of the cells from the panel's size and
+         * the zoom
          */
-        private int sixteenthWidth() {
-            return this.getWidth() / 16;
+        protected void measure() {
+            Grid grid = roll.getGrid(activeGrid);
+            int cols = grid.getWidth(), rows = grid.getHeight();
+            int width = Math.max(getWidth(), 1), height = Math.max(getHeight(), 1);
+
+            double across = (double) width / cols * (1 << zoom);
+            cellW = across >= 1 ? (int) across : 1;
+            blockW = across >= 1 ? 1 : (int) Math.ceil(1 / across);
+            double down = (double) height / rows;
+            cellH = down >= 1 ? (int) down : 1;
+            blockH = down >= 1 ? 1 : (int) Math.ceil(1 / down);
+
+            contentW = (cols + blockW - 1) / blockW * cellW;
+            contentH = (rows + blockH - 1) / blockH * cellH;
+            panX = Math.max(0, Math.min(panX, contentW + 1 - width));
+            startX = contentW < width ? (width - contentW) / 2 : -panX;
+            startY = (height - contentH) / 2;
         }
 
         /**
-         * Use integer math to get 1/16 the height of the panel
-         * @return 1/16 the height of the panel
+         * Paint the tiles of the grid that are in the clip
+         * @param g Graphics object
          */
-        private int sixteenthHeight() {
-            return this.getHeight() / 16;
+        @Override
+        public void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            measure();
+            validateTiles();
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+            int tx0 = Math.max(0, floorDiv(clip.x - startX, TILE));
+            int tx1 = Math.min(contentW / TILE, floorDiv(clip.x + clip.width - 1 - startX, TILE));
+            int ty0 = Math.max(0, floorDiv(clip.y - startY, TILE));
+            int ty1 = Math.min(contentH / TILE, floorDiv(clip.y + clip.height - 1 - startY, TILE));
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    g.drawImage(getTile(tx, ty), startX + tx * TILE, startY + ty * TILE, null);
+                }
+            }
+            playhead.paint(g);
+            alreadyToggled = false;
         }
 
         /**
-         * Get the remainder of the height after dividing it into 16ths
-         * @return The remaining height
+         * Have the grid recompiled; call this after editing the grid.  The
+         * view itself is repainted as the roll reports the edits.
          */
-        private int heightStart() {
-            return (this.getHeight() - sixteenthHeight() * 16) / 2;
+        public void refreshCells() {
+            compiler.requestGrid(activeGrid);
         }
 
         /**
-         * Get the remainder of the width after dividing it into 16ths
-         * @return The remaining width
+         * Zoom in or out, keeping the step under a point where it is
+         * @param levels How many levels to zoom in, or out if negative
+         * @param anchor The point to zoom about
          */
-        private int widthStart() {
-            return (this.getWidth() - sixteenthWidth() * 16) / 2;
+        public void zoomBy(int levels, Point anchor) {
+            measure();
+            double step = (double) (anchor.x - startX) * blockW / cellW;
+            int oldZoom = zoom;
+            zoom = Math.max(0, Math.min(zoom + levels, MAX_ZOOM));
+            measure();
+            while (zoom > oldZoom && cellW > MAX_CELL) {
+                zoom--;
+                measure();
+            }
+            if (zoom != oldZoom) {
+                panX = (int) (step * cellW / blockW) - anchor.x;
+                measure();
+                updateScrollBar();
+                repaint();
+            }
         }
-        private Point toggleStart = null, toggleEnd = null;
-        private boolean alreadyToggled = false;
 
         /**
-         * Paint the panel with the grid
-         * @param g Graphics object
+         * Go back to seeing the whole grid
          */
-        @Override
-        public void paintComponent(Graphics g) {
-            // Draw the panel
-            super.paintComponent(g);
+        public void zoomToFit() {
+            zoom = 0;
+            panX = 0;
+            measure();
+            updateScrollBar();
+            repaint();
+        }
 
-            // When I set these as class attributes, they come up as zero in this method, thus calling a function.
-            // Don't know why.
-            int h = sixteenthHeight(), w = sixteenthWidth();
-            int sH = heightStart(), sW = widthStart();
+        /**
+         * Move the view along the grid
+         * @param x How far along the grid the view should start, in pixels
+         */
+        public void panTo(int x) {
+            int old = panX;
+            panX = x;
+            measure();
+            if (panX != old) {
+                updateScrollBar();
+                repaint();
+            }
+        }
 
-            // Set the background
-            setBackground(Color.WHITE);
+        /**
+         * Bring the scroll bar under the panel up to date with the view
+         */
+        protected void updateScrollBar() {
+            measure();
+            int width = Math.max(getWidth(), 1);
+            panBar.setValues(panX, Math.min(width, contentW + 1), 0, contentW + 1);
+            panBar.setUnitIncrement(cellW);
+            panBar.setBlockIncrement(Math.max(cellW, width - cellW));
+            panBar.setEnabled(contentW + 1 > width);
+        }
 
-            // colors to use
-            Color bar = new Color(30, 144, 255);
-            Color handle = new Color(60, 174, 255);
+        /**
+         * Throw away the tiles if they no longer match the grid or the zoom
+         */
+        private void validateTiles() {
+            long fingerprint = roll.getGrid(activeGrid).getFingerprint();
+            if (tileGrid != activeGrid || tileCellW != cellW || tileCellH != cellH
+                    || tileBlockW != blockW || tileBlockH != blockH || shownFingerprint != fingerprint) {
+                tiles.clear();
+                tileGrid = activeGrid;
+                tileCellW = cellW;
+                tileCellH = cellH;
+                tileBlockW = blockW;
+                tileBlockH = blockH;
+                shownFingerprint = fingerprint;
+            }
+        }
 
-            for (int y = 0; y < 16; y++) {
-                for (int x = 0; x < 16; x++) {
-                    g.setColor(Color.BLACK);
-                    if (!roll.gridNoteStatus(activeGrid, x, y) || roll.gridNoteLength(activeGrid, x, y) == 1) {
-                        // Draw the grid square at the coordinates given if there's no note
-                        g.drawRect(sW + (w * x), // the start width + the width of a square times the x coord
-                                sH + (h * y), // the start height + the height of a square times the y coord
-                                w, // the width
-                                h); // the height
-                    } else {
-                        // Otherwise, just draw the bottom line
-                        g.drawLine(sW + (w * x), // the start width + the width of a square times the x coord
-                                sH + (h * (y + 1)), // the start height + the height of a square times one more than the y coord (for the bottom)
-                                sW + (w * (x + 1)), // the start width + the width of a square times the x coord, one cell on
-                                sH + (h * (y + 1))); // as above
+        /**
+         * Find a tile, drawing it if it isn't kept
+         * @param tx The tile's column
+         * @param ty The tile's row
+         * @return The tile
+         */
+        private BufferedImage getTile(int tx, int ty) {
+            Long key = Long.valueOf(((long) ty << 32) | tx);
+            BufferedImage tile = tiles.get(key);
+            if (tile == null) {
+                GraphicsConfiguration gc = getGraphicsConfiguration();
+                tile = gc != null ? gc.createCompatibleImage(TILE, TILE)
+                        : new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = tile.createGraphics();
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, TILE, TILE);
+                g.translate(-tx * TILE, -ty * TILE);
+                g.setClip(tx * TILE, ty * TILE, TILE, TILE);
+                Grid grid = roll.getGrid(activeGrid);
+                if (blockW == 1 && blockH == 1) {
+                    drawCells(g, grid, tx * TILE, ty * TILE);
+                } else {
+                    drawBlocks(g, grid, tx * TILE, ty * TILE);
+                }
+                g.dispose();
+                tiles.put(key, tile);
+            }
+            return tile;
+        }
+
+        /**
+         * Draw the cells that show in one tile
+         * @param g Graphics translated to the grid's own coordinates
+         * @param grid The grid
+         * @param left The tile's left edge
+         * @param top The tile's top edge
+         */
+        private void drawCells(Graphics2D g, Grid grid, int left, int top) {
+            // start a cell early, since each cell's edges are shared with its neighbours
+            int c0 = Math.max(0, left / cellW - 1), c1 = Math.min(grid.getWidth(), (left + TILE) / cellW + 1);
+            int r0 = Math.max(0, top / cellH - 1), r1 = Math.min(grid.getHeight(), (top + TILE) / cellH + 1);
+            int[] cells = new int[grid.getWidth()];
+            for (int y = r0; y < r1; y++) {
+                int from = scanRow(grid, y, c0, c1, cells);
+                drawRow(g, y, cells, from, c1);
+            }
+        }
+
+        /**
+         * Shade the blocks of cells that show in one tile by how many of
+         * their cells are sounding
+         * @param g Graphics translated to the grid's own coordinates
+         * @param grid The grid
+         * @param left The tile's left edge
+         * @param top The tile's top edge
+         */
+        private void drawBlocks(Graphics2D g, Grid grid, int left, int top) {
+            int b0 = left / cellW, b1 = Math.min((grid.getWidth() + blockW - 1) / blockW, (left + TILE) / cellW + 1);
+            int r0 = top / cellH * blockH, r1 = Math.min(grid.getHeight(), ((top + TILE) / cellH + 1) * blockH);
+            int c0 = b0 * blockW, c1 = Math.min(grid.getWidth(), b1 * blockW);
+            int[] cells = new int[grid.getWidth()];
+            int[] sounding = new int[b1 - b0];
+            for (int y = r0; y < r1; y++) {
+                scanRow(grid, y, c0, c1, cells);
+                for (int x = c0; x < c1; x++) {
+                    if (cells[x] != 0) {
+                        sounding[x / blockW - b0]++;
                     }
-                    if (roll.gridNoteLength(activeGrid, x, y) > 0 && roll.gridNoteStatus(activeGrid, x, y)) {
-                        // draw a bar to signify the note and its duration
-                        g.setColor(bar);
-                        g.fillRect(sW + (w * x) + 2,
-                                sH + (h * y) + 2,
-                                w * roll.gridNoteLength(activeGrid, x, y) - 3,
-                                h - 3);
-
-                        // draw a lighter rect at the first cell as that note's handle (i.e.: for aesthetics, toggling, etc)
-                        g.setColor(handle);
-                        g.fillRect(sW + (w * x) + 1 + w / 4,
-                                sH + (h * y) + 1 + h / 4,
-                                w / 2,
-                                h / 2);
-                        // draw another rect in case the old one got clobbered
-                        g.setColor(Color.BLACK);
-                        g.drawRect(sW + (w * x),
-                                sH + (h * y),
-                                w * roll.gridNoteLength(activeGrid, x, y),
-                                h);
+                }
+                if ((y + 1) % blockH == 0 || y == r1 - 1) {
+                    for (int b = 0; b < sounding.length; b++) {
+                        if (sounding[b] > 0) {
+                            float density = (float) sounding[b] / (blockW * blockH);
+                            g.setColor(shade(0.25f + 0.75f * Math.min(density, 1f)));
+                            g.fillRect((b0 + b) * cellW, y / blockH * cellH, cellW, cellH);
+                        }
+                        sounding[b] = 0;
                     }
                 }
             }
-            alreadyToggled = false;
+            g.setColor(Color.BLACK);
+            g.drawRect(0, 0, contentW, contentH);
+        }
 
-            // Recompile the grid and reset the sequence used in the play controller
-            if (playControl.isPlaying()) {
-                try {
-                    playControl.pause();
-                    playControl.setSequence(roll.compileGrid(activeGrid));
-                    playControl.play();
-                } catch (InvalidMidiDataException exc) {
-                    //
+        /**
+         * Work out what each cell in part of a row should show in one pass,
+         * rather than asking the grid about each cell in turn
+         * @param grid The grid
+         * @param y The row
+         * @param from The first cell wanted
+         * @param to The cell after the last one wanted
+         * @param cells Filled with, for each cell, 0 if it's empty, the
+         * note's length if a note starts there, -1 if a note carries on
+         * through it and -2 if a note starts there but never ends
+         * @return The first cell filled in, which is earlier than from when
+         * a note started before it and carries on into it
+         */
+        private int scanRow(Grid grid, int y, int from, int to, int[] cells) {
+            int start = from;
+            for (int x = from - 1; x >= 0; x--) {
+                if (grid.hasNoteOff(x, y)) {
+                    break;
+                }
+                if (grid.hasNoteOn(x, y)) {
+                    start = x;
+                    break;
+                }
+            }
+            boolean playing = false;
+            for (int x = start; x < to; x++) {
+                if (grid.hasNoteOn(x, y)) {
+                    playing = true;
+                    cells[x] = -2;
+                    for (int end = x; end < grid.getWidth(); end++) {
+                        if (grid.hasNoteOff(end, y)) {
+                            cells[x] = end - x + 1;
+                            break;
+                        }
+                    }
+                } else {
+                    cells[x] = playing ? -1 : 0;
+                }
+                if (grid.hasNoteOff(x, y)) {
+                    playing = false;
+                }
+            }
+            return start;
+        }
+
+        /**
+         * Draw part of one row as scanned
+         */
+        private void drawRow(Graphics2D g, int y, int[] cells, int from, int to) {
+            int w = cellW, h = cellH;
+            for (int x = from; x < to; x++) {
+                g.setColor(Color.BLACK);
+                if (cells[x] == 0 || cells[x] == 1) {
+                    // Draw the grid square at the coordinates given if there's no note
+                    g.drawRect(w * x, h * y, w, h);
+                } else {
+                    // Otherwise, just draw the bottom line
+                    g.drawLine(w * x, h * (y + 1), w * (x + 1), h * (y + 1));
+                }
+                if (cells[x] > 0) {
+                    // draw a bar to signify the note and its duration
+                    g.setColor(BAR);
+                    g.fillRect((w * x) + 2, (h * y) + 2, w * cells[x] - 3, h - 3);
+
+                    // draw a lighter rect at the first cell as that note's handle (i.e.: for aesthetics, toggling, etc)
+                    g.setColor(HANDLE);
+                    g.fillRect((w * x) + 1 + w / 4, (h * y) + 1 + h / 4, w / 2, h / 2);
+
+                    // draw another rect in case the old one got clobbered
+                    g.setColor(Color.BLACK);
+                    g.drawRect(w * x, h * y, w * cells[x], h);
                 }
             }
         }
 
+        /**
+         * Throw away the tiles an edit to a grid touched and repaint them
+         * @param _roll The roll that was edited
+         * @param edit What kind of edit was made
+         * @param args The arguments of the edit
+         */
+        public void rollEdited(Roll _roll, int edit, int[] args) {
+            if ((edit == GRID_MUTE || edit == GRID_SOLO) && args[0] == activeGrid) {
+                // muted or soloed from the Sequence tab; nothing to redraw
+                mute.setSelected(roll.gridGetMuted(activeGrid));
+                solo.setSelected(roll.gridGetSolo(activeGrid));
+                return;
+            }
+            if (edit < GRID_INSTRUMENT || args[0] != activeGrid || tileGrid != activeGrid) {
+                return;
+            }
+            switch (edit) {
+                case GRID_TOGGLE:
+                case GRID_TOGGLE_LENGTH:
+                case GRID_TOGGLE_ON:
+                case GRID_TOGGLE_OFF:
+                    // a note's bar may reach anywhere along its row, and rows share edges
+                    measure();
+                    int top = (args[2] / blockH - 1) * cellH, bottom = (args[2] / blockH + 2) * cellH;
+                    Iterator<Long> keys = tiles.keySet().iterator();
+                    while (keys.hasNext()) {
+                        int ty = (int) (keys.next().longValue() >> 32);
+                        if (ty >= floorDiv(top, TILE) && ty <= floorDiv(bottom, TILE)) {
+                            keys.remove();
+                        }
+                    }
+                    repaint(0, startY + top, getWidth(), bottom - top + 1);
+                    break;
+                case GRID_CLEAR:
+                    tiles.clear();
+                    repaint();
+                    break;
+            }
+            // what's left of the tiles is up to date with the grid again
+            shownFingerprint = roll.getGrid(activeGrid).getFingerprint();
+        }
+
         public void mouseEntered(MouseEvent e) {
         }
 
@@ -154,11 +439,23 @@ public class MatrixPanel extends JPanel {
         }
 
         /**
-         * Start toggling cells on the grid by setting toggleStart
+         * Start toggling cells on the grid by setting toggleStart and sound
+         * the cell pressed, or start panning with the middle button
          * @param e MouseEvent received
          */
         public void mousePressed(MouseEvent e) {
+            if (SwingUtilities.isMiddleMouseButton(e)) {
+                panStart = new Point(e.getX() + panX, 0);
+                return;
+            }
             toggleStart = getCellCoordinates(e.getPoint());
+
+            // let the cell be heard straight away, before anything compiles
+            Grid grid = roll.getGrid(activeGrid);
+            if (toggleStart != null && toggleStart.x >= 0 && toggleStart.y >= 0
+                    && toggleStart.x < grid.getWidth() && toggleStart.y < grid.getHeight()) {
+                playControl.auditionOn(grid, toggleStart.y);
+            }
         }
 
         /**
@@ -167,24 +464,35 @@ public class MatrixPanel extends JPanel {
          * @param e MouseEvent received
          */
         public void mouseReleased(MouseEvent e) {
+            playControl.auditionOff();
+            if (panStart != null) {
+                panStart = null;
+                alreadyToggled = true;
+                return;
+            }
             toggleEnd = getCellCoordinates(e.getPoint());
+            if (toggleStart == null || toggleEnd == null) {
+                // zoomed out too far to edit
+                return;
+            }
             if (toggleEnd.equals(toggleStart)) {
                 mouseClicked(e);
                 return;
             } else {
-                // support backwards dragging
-                int startx = (toggleStart.x > toggleEnd.x ? toggleEnd.x : toggleStart.x);
-                int endx = (toggleStart.x > toggleEnd.x ? toggleStart.x : toggleEnd.x);
-                int starty = (toggleStart.y > toggleEnd.y ? toggleEnd.y : toggleStart.y);
-                int endy = (toggleStart.y > toggleEnd.y ? toggleStart.y : toggleEnd.y);
-                for (int i = starty; i <= endy; i++) {
+                // support backwards dragging, and keep within the grid
+                Grid grid = roll.getGrid(activeGrid);
+                int startx = Math.max(0, Math.min(toggleStart.x, toggleEnd.x));
+                int endx = Math.min(grid.getWidth() - 1, Math.max(toggleStart.x, toggleEnd.x));
+                int starty = Math.max(0, Math.min(toggleStart.y, toggleEnd.y));
+                int endy = Math.min(grid.getHeight() - 1, Math.max(toggleStart.y, toggleEnd.y));
+                for (int i = starty; i <= endy && startx <= endx; i++) {
                     roll.gridToggleNote(activeGrid, startx, i, endx - startx);
                 }
                 alreadyToggled = true;
             }
 
-            // repaint to toggle the square
-            repaint();
+            // recompile the grid
+            refreshCells();
         }
 
         /**
@@ -192,45 +500,112 @@ public class MatrixPanel extends JPanel {
          * @param e MouseEvent received
          */
         public void mouseClicked(MouseEvent e) {
-            if (!alreadyToggled) {
+            if (!alreadyToggled && !SwingUtilities.isMiddleMouseButton(e)) {
                 Point cell = getCellCoordinates(e.getPoint());
+                Grid grid = roll.getGrid(activeGrid);
+                if (cell == null || cell.x < 0 || cell.y < 0 || cell.x >= grid.getWidth() || cell.y >= grid.getHeight()) {
+                    return;
+                }
                 roll.gridToggleNote(activeGrid, cell.x, cell.y);
                 alreadyToggled = true;
 
-                // repaint to toggle the square
-                repaint();
+                // recompile the grid
+                refreshCells();
+            }
+        }
+
+        /**
+         * Pan while the middle button is held down
+         * @param e MouseEvent received
+         */
+        public void mouseDragged(MouseEvent e) {
+            if (panStart != null) {
+                panTo(panStart.x - e.getX());
+            }
+        }
+
+        public void mouseMoved(MouseEvent e) {
+        }
+
+        /**
+         * Zoom about the pointer with the control key held down, otherwise
+         * pan along the grid
+         * @param e MouseWheelEvent received
+         */
+        public void mouseWheelMoved(MouseWheelEvent e) {
+            if (e.isControlDown()) {
+                zoomBy(-e.getWheelRotation(), e.getPoint());
+            } else {
+                measure();
+                panTo(panX + e.getWheelRotation() * cellW * 2);
             }
         }
 
         /**
          * Get the cell's coordinates based on the mouse-pointer's coordinates
          * @param p The mouse's coordinates on the panel
-         * @return a Point object containing the coordinates
+         * @return a Point object containing the coordinates, or null if the
+         * view is zoomed out too far to pick out single cells
          */
         public Point getCellCoordinates(Point p) {
-            return new Point((int) Math.floor((p.x - widthStart()) / sixteenthWidth()),
-                    (int) Math.floor((p.y - heightStart()) / sixteenthHeight()));
+            measure();
+            if (blockW > 1 || blockH > 1) {
+                return null;
+            }
+            return new Point(floorDiv(p.x - startX, cellW), floorDiv(p.y - startY, cellH));
+        }
+
+        /**
+         * Find where a step is drawn, for the playhead
+         * @param step The step
+         * @return The column of cells it falls in
+         */
+        public Rectangle stepBounds(int step) {
+            measure();
+            return new Rectangle(startX + step / blockW * cellW, startY, cellW + 1, contentH + 1);
         }
     }
+
+    /**
+     * Divide, rounding down rather than towards zero
+     */
+    private static int floorDiv(int a, int b) {
+        return a >= 0 ? a / b : -((-a + b - 1) / b);
+    }
+
     private Player playControl;
+    private CompileService compiler;
+    private Thumbnails thumbnails;
     private int activeGrid;
     private Roll roll;
     private JPanel matrixSelector, tools;
     private mPanel matrix;
+    private JScrollBar panBar;
+    private Playhead playhead;
     private SpringLayout toolsLayout;
     private JComboBox instrument, scale;
     private JSlider velocity, key;
     private JButton octaveUp, octaveDown, clearMatrix, play, loop, stop;
+    private JCheckBox mute, solo;
+    private JToggleButton record;
+    private Recorder recorder;
     private final JButton[] matrices;
     private JLabel currentKey, instLabel, scaleLabel, keyLabel, octaveLabel, velLabel;
 
     /**
      * Construct a new MatrixPanel with a Roll associated with it
      * @param _roll A Roll to control
+     * @param _playControl An object to control MIDI playback
+     * @param _compiler What to compile the grids with
+     * @param _thumbnails Pictures of the grids, for the matrix selector
+     * @param _recorder What to record into the grids from a MIDI input with
      */
-    public MatrixPanel(Roll _roll, Player _playControl) {
+    public MatrixPanel(Roll _roll, Player _playControl, CompileService _compiler, Thumbnails _thumbnails, Recorder _recorder) {
         roll = _roll;
         playControl = _playControl;
+        compiler = _compiler;
+        thumbnails = _thumbnails;
+        recorder = _recorder;
         activeGrid = 0;
 
         // set up the layout
@@ -255,18 +630,29 @@ public class MatrixPanel extends JPanel {
         matrix = new mPanel();
         matrix.setPreferredSize(new Dimension(500, 575));
         matrix.addMouseListener(matrix);
+        roll.addRollListener(matrix);
+        playhead = new Playhead(playControl, matrix, new Playhead.Steps() {
+
+            public int stepAt(long tick) {
+                return (int) (tick % roll.getGridWidth());
+            }
 
-        // populate the matrix selector
+            public Rectangle stepBounds(int step) {
+                return matrix.stepBounds(step);
+            }
+        });
+
+        // populate the matrix selector, with a picture of each grid on its button
         matrices = new JButton[16];
+        Image drum = new ImageIcon(new ImageIcon(getClass().getResource("drumico.gif")).getImage()
+                .getScaledInstance(12, 12, Image.SCALE_SMOOTH)).getImage();
         for (int i = 0; i < 16; i++) {
             // make sure we have as many active grids as selectors
             if (i < 12) {
-                matrices[i] = new JButton(String.valueOf(i + 1));
+                matrices[i] = new JButton(String.valueOf(i + 1), thumbnails.getIcon(i, null));
                 roll.enableGrid(Scale.MAJOR_PENTATONIC, 0, 60, 64);
             } else {
-                matrices[i] = new JButton(
-                        String.valueOf(i - 11),
-                        new ImageIcon(getClass().getResource("drumico.gif")));
+                matrices[i] = new JButton(String.valueOf(i - 11), thumbnails.getIcon(i, drum));
                 roll.enablePercussionGrid(PercussionGrid.lowBound, 64);
             }
             matrixSelector.add(matrices[i]);
@@ -279,6 +665,11 @@ public class MatrixPanel extends JPanel {
                         // if we're playing, stop
                         playControl.stop();
                     }
+                    if (record.isSelected()) {
+                        // and stop recording into the old matrix
+                        record.setSelected(false);
+                        recorder.stop();
+                    }
                     for (int n = 0; n < matrices.length; n++) {
                         if (matrices[n].equals(e.getSource())) {
                             // Set up the matrixSelector for the new matrix
@@ -290,25 +681,10 @@ public class MatrixPanel extends JPanel {
                             matrix.repaint();
 
                             // set the metadata to correspond to the new matrix
-                            instrument.setSelectedIndex(roll.gridGetInstrument(activeGrid));
-                            scale.setSelectedItem(roll.gridGetScale(activeGrid));
-                            if (activeGrid < 12) {
-                                scale.setEnabled(true);
-                                instrument.setEnabled(true);
-                            } else {
-                                scale.setEnabled(false);
-                                instrument.setEnabled(false);
-                            }
-                            velocity.setValue(roll.gridGetVelocity(activeGrid));
-                            key.setValue(roll.gridGetKey(activeGrid) % 12);
-                            currentKey.setText("Key: " + Scale.getNoteNameByNumber(roll.gridGetKey(activeGrid)));
+                            refreshTools();
 
                             // Tell playControl to play only this grid
-                            try {
-                                playControl.setSequence(roll.compileGrid(activeGrid));
-                            } catch (Exception exc) {
-                                //
-                            }
+                            compiler.requestGrid(activeGrid);
 
                             tools.repaint();
                             break;
@@ -321,6 +697,15 @@ public class MatrixPanel extends JPanel {
         // First matrix selected by default
         matrices[0].setEnabled(false);
 
+        // draw the pictures now that the grids are all there, and show them as they come in
+        thumbnails.addChangeListener(new ChangeListener() {
+
+            public void stateChanged(ChangeEvent e) {
+                matrices[((Integer) e.getSource()).intValue()].repaint();
+            }
+        });
+        thumbnails.refresh();
+
         // populate the tools panel and spring everything together
 
         // start with instrument dropdown
@@ -332,11 +717,7 @@ public class MatrixPanel extends JPanel {
             public void actionPerformed(ActionEvent e) {
                 JComboBox _instrument = (JComboBox) e.getSource();
                 roll.gridSetInstrument(activeGrid, (int) _instrument.getSelectedIndex());
-                try {
-                    roll.compile();
-                } catch (Exception exc) {
-                    //
-                }
+                settingsChanged();
             }
         });
 
@@ -357,11 +738,7 @@ public class MatrixPanel extends JPanel {
             public void actionPerformed(ActionEvent e) {
                 JComboBox _scale = (JComboBox) e.getSource();
                 roll.gridSetScale(activeGrid, (Scale) _scale.getSelectedItem());
-                try {
-                    roll.compile();
-                } catch (Exception exc) {
-                    //
-                }
+                settingsChanged();
             }
         });
 
@@ -369,18 +746,17 @@ public class MatrixPanel extends JPanel {
         velocity = new JSlider(JSlider.VERTICAL, 0, 127, 64);
         velocity.setSnapToTicks(true);
 
-        // listen for a change and set the volume accordingly, then recompile
+        // listen for a change and set the volume accordingly, heard straight
+        // away if playing, then recompile once the slider is let go
         velocity.addChangeListener(new ChangeListener() {
 
             public void stateChanged(ChangeEvent e) {
                 JSlider source = (JSlider) e.getSource();
-                if (!source.getValueIsAdjusting()) {
+                if (source.getValue() != roll.gridGetVelocity(activeGrid)) {
                     roll.gridSetVelocity(activeGrid, source.getValue());
                 }
-                try {
-                    roll.compile();
-                } catch (Exception exc) {
-                    //
+                if (!source.getValueIsAdjusting()) {
+                    settingsChanged();
                 }
             }
         });
@@ -395,7 +771,7 @@ public class MatrixPanel extends JPanel {
 
             public void actionPerformed(ActionEvent e) {
                 try {
-                    playControl.setSequence(roll.compileGrid(activeGrid));
+                    playControl.setSequence(compiler.compileGridNow(activeGrid), activeGrid);
                 } catch (InvalidMidiDataException exc) {
                     //
                 }
@@ -407,13 +783,77 @@ public class MatrixPanel extends JPanel {
 
             public void actionPerformed(ActionEvent e) {
                 try {
-                    playControl.setSequence(roll.compileGrid(activeGrid));
+                    playControl.setSequence(compiler.compileGridNow(activeGrid), activeGrid);
                 } catch (InvalidMidiDataException exc) {
                     //
                 }
             }
         });
 
+        // Mute and solo are applied as the grid plays, so there's nothing to recompile
+        mute = new JCheckBox("Mute");
+        mute.setToolTipText("Silence this matrix (or click its row in the Sequence tab)");
+        mute.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                roll.gridSetMuted(activeGrid, mute.isSelected());
+            }
+        });
+        solo = new JCheckBox("Solo");
+        solo.setToolTipText("Hear only solo matrices (or shift-click its row in the Sequence tab)");
+        solo.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                roll.gridSetSolo(activeGrid, solo.isSelected());
+            }
+        });
+
+        // Record from the MIDI input, while the matrix loops
+        record = new JToggleButton("Record");
+        record.setToolTipText("Play this matrix in from the MIDI input chosen in the Controls");
+        record.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                if (record.isSelected()) {
+                    startRecording();
+                } else {
+                    recorder.stop();
+                }
+            }
+        });
+
+        // notes are quantized on the recorder's thread, then put in the matrix here
+        recorder.addRecordListener(new RecordListener() {
+
+            public void noteRecorded(final int gridIndex, final int x, final int y, final int duration) {
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    public void run() {
+                        if (!roll.gridNoteStatus(gridIndex, x, y)) {
+                            roll.gridToggleNote(gridIndex, x, y, duration);
+                            compiler.requestGrid(gridIndex);
+                        }
+                    }
+                });
+            }
+        });
+
+        // when playback starts (over), line the recording up with it again
+        playControl.addPlaybackListener(new PlaybackListener() {
+
+            public void playbackStarted(Playback playback) {
+                if (recorder.isRecording()) {
+                    recorder.setOrigin(System.nanoTime() - playback.getMicrosecondPosition() * 1000);
+                }
+            }
+
+            public void playbackStopped(Playback playback) {
+            }
+
+            public void playbackError(Playback playback, String message, Exception cause) {
+            }
+        });
+
         // Key slider
         key = new JSlider(JSlider.HORIZONTAL, 0, 11, 0);
         key.setMajorTickSpacing(1);
@@ -430,19 +870,19 @@ public class MatrixPanel extends JPanel {
         key.setLabelTable(keys);
         key.setPaintLabels(true);
 
-        // Listen for a change and set the key accordingly, then recompile
+        // Listen for a change and set the key accordingly, heard straight away
+        // if playing, then recompile once the slider is let go
         key.addChangeListener(new ChangeListener() {
 
             public void stateChanged(ChangeEvent e) {
                 JSlider source = (JSlider) e.getSource();
-                if (!source.getValueIsAdjusting()) {
-                    roll.gridSetKey(activeGrid, (int) (roll.gridGetKey(activeGrid) / 12) * 12 + source.getValue());
-                    currentKey.setText("Key: " + Scale.getNoteNameByNumber(roll.gridGetKey(activeGrid)));
+                int newKey = (int) (roll.gridGetKey(activeGrid) / 12) * 12 + source.getValue();
+                if (newKey != roll.gridGetKey(activeGrid)) {
+                    roll.gridSetKey(activeGrid, newKey);
+                    currentKey.setText("Key: " + Scale.getNoteNameByNumber(newKey));
                 }
-                try {
-                    roll.compile();
-                } catch (Exception exc) {
-                    //
+                if (!source.getValueIsAdjusting()) {
+                    settingsChanged();
                 }
             }
         });
@@ -457,11 +897,7 @@ public class MatrixPanel extends JPanel {
                     roll.gridSetKey(activeGrid, roll.gridGetKey(activeGrid) - 12);
                 }
                 currentKey.setText("Key: " + Scale.getNoteNameByNumber(roll.gridGetKey(activeGrid)));
-                try {
-                    roll.compile();
-                } catch (Exception exc) {
-                    //
-                }
+                settingsChanged();
             }
         };
 
@@ -484,13 +920,55 @@ public class MatrixPanel extends JPanel {
                 if (confirm == JOptionPane.YES_OPTION) {
                     roll.clearGrid(activeGrid);
                     matrix.repaint();
+                    compiler.requestGrid(activeGrid);
                 }
-                try {
-                    roll.compile();
-                } catch (Exception exc) {
-                    //
+            }
+        });
+
+        // Zoom and pan controls under the matrix
+        panBar = new JScrollBar(JScrollBar.HORIZONTAL);
+        panBar.addAdjustmentListener(new AdjustmentListener() {
+
+            public void adjustmentValueChanged(AdjustmentEvent e) {
+                matrix.panTo(e.getValue());
+            }
+        });
+        JButton zoomOut = new JButton("-"), zoomIn = new JButton("+"), zoomFit = new JButton("Fit");
+        zoomOut.setToolTipText("Zoom out (or control + mouse wheel)");
+        zoomIn.setToolTipText("Zoom in (or control + mouse wheel)");
+        zoomFit.setToolTipText("Show the whole matrix");
+        ActionListener zoomListener = new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                Point middle = new Point(matrix.getWidth() / 2, matrix.getHeight() / 2);
+                if (e.getActionCommand().equals("+")) {
+                    matrix.zoomBy(1, middle);
+                } else if (e.getActionCommand().equals("-")) {
+                    matrix.zoomBy(-1, middle);
+                } else {
+                    matrix.zoomToFit();
                 }
             }
+        };
+        zoomOut.addActionListener(zoomListener);
+        zoomIn.addActionListener(zoomListener);
+        zoomFit.addActionListener(zoomListener);
+        JPanel zoomButtons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 2, 0));
+        zoomButtons.add(zoomOut);
+        zoomButtons.add(zoomIn);
+        zoomButtons.add(zoomFit);
+        JPanel navigation = new JPanel(new BorderLayout());
+        navigation.add(panBar, BorderLayout.CENTER);
+        navigation.add(zoomButtons, BorderLayout.EAST);
+        JPanel matrixView = new JPanel(new BorderLayout());
+        matrixView.add(matrix, BorderLayout.CENTER);
+        matrixView.add(navigation, BorderLayout.SOUTH);
+        matrix.addComponentListener(new ComponentAdapter() {
+
+            @Override
+            public void componentResized(ComponentEvent e) {
+                matrix.updateScrollBar();
+            }
         });
 
         // Add things to the tool panel and position apropriately
@@ -560,13 +1038,99 @@ public class MatrixPanel extends JPanel {
         toolsLayout.putConstraint(SpringLayout.WEST, stop, 20, SpringLayout.EAST, velocity);
         toolsLayout.putConstraint(SpringLayout.NORTH, stop, 10, SpringLayout.SOUTH, loop);
 
+        tools.add(mute);
+        tools.add(solo);
+        tools.add(record);
+        toolsLayout.putConstraint(SpringLayout.WEST, mute, 20, SpringLayout.EAST, velocity);
+        toolsLayout.putConstraint(SpringLayout.NORTH, mute, 20, SpringLayout.SOUTH, stop);
+        toolsLayout.putConstraint(SpringLayout.WEST, solo, 20, SpringLayout.EAST, velocity);
+        toolsLayout.putConstraint(SpringLayout.NORTH, solo, 5, SpringLayout.SOUTH, mute);
+        toolsLayout.putConstraint(SpringLayout.WEST, record, 20, SpringLayout.EAST, velocity);
+        toolsLayout.putConstraint(SpringLayout.NORTH, record, 10, SpringLayout.SOUTH, solo);
+
         tools.add(clearMatrix);
         toolsLayout.putConstraint(SpringLayout.EAST, clearMatrix, -10, SpringLayout.EAST, tools);
         toolsLayout.putConstraint(SpringLayout.SOUTH, clearMatrix, -10, SpringLayout.SOUTH, tools);
 
         // finally, add everything to the panel
-        JSplitPane horizontal = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, tools, matrix);
+        JSplitPane horizontal = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, tools, matrixView);
         JSplitPane vertical = new JSplitPane(JSplitPane.VERTICAL_SPLIT, horizontal, matrixSelector);
         add(vertical);
     }
+
+    /**
+     * Set the tools to correspond to the active matrix
+     */
+    private void refreshTools() {
+        instrument.setSelectedIndex(roll.gridGetInstrument(activeGrid));
+        scale.setSelectedItem(roll.gridGetScale(activeGrid));
+        if (activeGrid < 12) {
+            scale.setEnabled(true);
+            instrument.setEnabled(true);
+        } else {
+            scale.setEnabled(false);
+            instrument.setEnabled(false);
+        }
+        velocity.setValue(roll.gridGetVelocity(activeGrid));
+        mute.setSelected(roll.gridGetMuted(activeGrid));
+        solo.setSelected(roll.gridGetSolo(activeGrid));
+        key.setValue(roll.gridGetKey(activeGrid) % 12);
+        currentKey.setText("Key: " + Scale.getNoteNameByNumber(roll.gridGetKey(activeGrid)));
+    }
+
+    /**
+     * Start recording into the active grid, looping it so that there is
+     * something to play along with
+     */
+    private void startRecording() {
+        if (!recorder.hasInput()) {
+            JOptionPane.showMessageDialog(
+                    this,
+                    "Choose a MIDI input device to record from in the Controls first.",
+                    "Nothing to Record From",
+                    JOptionPane.INFORMATION_MESSAGE,
+                    null);
+            record.setSelected(false);
+            return;
+        }
+        Grid grid = roll.getGrid(activeGrid);
+        int[] pitches = new int[grid.getHeight()];
+        for (int y = 0; y < pitches.length; y++) {
+            pitches[y] = grid.getPitch(y);
+        }
+        long position = playControl.isPlaying() ? playControl.getMicrosecondPosition() : 0;
+        recorder.start(activeGrid, pitches, grid.getWidth(), System.nanoTime() - position * 1000,
+                60000000000L / playControl.getTempo());
+        try {
+            playControl.setSequence(compiler.compileGridNow(activeGrid), activeGrid);
+        } catch (InvalidMidiDataException exc) {
+            //
+        }
+        playControl.setLoop(true);
+        if (!playControl.isPlaying()) {
+            playControl.play();
+        }
+    }
+
+    /**
+     * Have the active grid recompiled after its settings have changed,
+     * unless it is playing and the change is already being heard
+     */
+    private void settingsChanged() {
+        Playback.State state = playControl.getState();
+        if (!state.isPlaying() || !state.isChangeable(activeGrid)) {
+            compiler.requestGrid(activeGrid);
+        }
+    }
+
+    /**
+     * Bring the panel up to date after the roll has been changed from outside
+     * of it (e.g.: when a session is recovered)
+     */
+    public void refresh() {
+        refreshTools();
+        thumbnails.refresh();
+        matrix.repaint();
+        compiler.requestGrid(activeGrid);
+    }
 }
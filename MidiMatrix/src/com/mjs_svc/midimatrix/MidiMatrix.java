@@ -44,6 +44,7 @@ public class MidiMatrix extends JFrame {
             @Override
             public void windowClosing(WindowEvent e) {
                 MidiMatrix.this.setVisible(false);
+                pane.shutdown();
                 MidiMatrix.this.dispose();
                 System.exit(0);
             }
@@ -51,6 +52,12 @@ public class MidiMatrix extends JFrame {
     }
 
     public static void main(String[] args) {
-        new MidiMatrix().setVisible(true);
+        // build the window on the event dispatch thread, where Swing expects it
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                new MidiMatrix().setVisible(true);
+            }
+        });
     }
 }
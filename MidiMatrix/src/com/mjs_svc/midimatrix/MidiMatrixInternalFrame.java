@@ -22,6 +22,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.beans.PropertyVetoException;
 import javax.swing.*;
+import com.mjs_svc.midimatrix.core.*;
 
 /**
  * The base desktop for MidiMatrix (using JInternalFrames)
@@ -32,14 +33,19 @@ import javax.swing.*;
 public class MidiMatrixInternalFrame extends JPanel {
     private Roll roll;
     private Player playControl;
-    private JPanel homePanel, gridPanel, rollPanel, ctrlPanel, helpPanel, progressPanel;
+    private RenderCache cache = new RenderCache(16 * 1024 * 1024);
+    private CompileService compiler;
+    private Thumbnails thumbnails;
+    private DeviceDirectory devices;
+    private Recorder recorder = new Recorder();
+    private SynthMonitor monitor;
+    private Journal journal;
+    private MatrixPanel gridPanel;
+    private JPanel homePanel, rollPanel, ctrlPanel, helpPanel;
     private final JInternalFrame homeFrame, gridFrame, rollFrame, ctrlFrame, helpFrame;
     private final JDesktopPane desktop;
     private JToolBar toolBar;
     private JButton homeButton, gridButton, rollButton, ctrlButton, helpButton;
-    private JProgressBar progressBar;
-    private JFrame progressFrame;
-    private JLabel progressStatus;
     private boolean canSave = false;
 
     /**
@@ -49,59 +55,39 @@ public class MidiMatrixInternalFrame extends JPanel {
     public MidiMatrixInternalFrame (boolean _canSave) {
         canSave = _canSave;
 
-        // build a progress bar window to show the user what's going on
-        progressBar = new JProgressBar(0, 9);
-        progressFrame = new JFrame("Loading...");
-        progressStatus = new JLabel("Initializing");
-        progressPanel = new JPanel(new GridLayout(2, 1));
-        progressBar.setPreferredSize(new Dimension(50, 300));
-        progressBar.setStringPainted(true);
-        progressFrame.add(progressPanel);
-        progressPanel.add(progressBar);
-        progressPanel.add(progressStatus);
-        progressFrame.setPreferredSize(new Dimension(300, 75));
-        progressFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        progressFrame.pack();
-        progressFrame.setVisible(true);
-
-        // Set up panels
-        // Home panel
-        progressStatus.setText("Setting up the Welcome tab");
-        progressBar.setValue(1);
+        // Set up panels; the synthesizer warms up in the background, and the
+        // Controls and Help frames are filled in when first asked for
         homePanel = new HomePanel();
-
-        progressStatus.setText("Creating play controls");
-        progressBar.setValue(2);
         playControl = new Player(120);
+        monitor = new SynthMonitor(playControl);
 
         // set up the roll
-        progressStatus.setText("Starting a new sequence");
-        progressBar.setValue(3);
         try {
             roll = new Roll(120);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        compiler = new CompileService(roll, cache, playControl);
+        thumbnails = new Thumbnails(roll);
+        devices = new DeviceDirectory();
+        devices.start(DeviceDirectory.POLL);
+        gridPanel = new MatrixPanel(roll, playControl, compiler, thumbnails, recorder);
+        rollPanel = new SequencePanel(roll, playControl, compiler, thumbnails);
 
-        progressStatus.setText("Creating the Matrix panel");
-        progressBar.setValue(4);
-        gridPanel = new MatrixPanel(roll, playControl);
-
-        progressStatus.setText("Creating the Sequence panel");
-        progressBar.setValue(5);
-        rollPanel = new SequencePanel(roll, playControl);
-
-        progressStatus.setText("Creating the Control panel");
-        progressBar.setValue(6);
-        ctrlPanel = new ControlPanel(roll, playControl, canSave);
-
-        progressStatus.setText("Creating the Help panel");
-        progressBar.setValue(7);
-        helpPanel = new HelpPanel();
+        // If we can write to the disk, recover the last session and keep this one
+        if (canSave) {
+            journal = new Journal(Journal.getDefaultDirectory());
+            if (journal.recover(roll)) {
+                gridPanel.refresh();
+                rollPanel.repaint();
+            } else if (journal.getProblem() != null) {
+                JOptionPane.showMessageDialog(null, journal.getProblem(), "Recover Session", JOptionPane.WARNING_MESSAGE);
+            }
+            journal.start(roll);
+        }
+        playControl.follow(roll);
 
         // Set up tabbed pane and add all panels to their own tabs
-        progressStatus.setText("Building the interface");
-        progressBar.setValue(8);
         setLayout(new BorderLayout());
         desktop = new JDesktopPane();
         homeFrame = new JInternalFrame(
@@ -144,9 +130,6 @@ public class MidiMatrixInternalFrame extends JPanel {
                 false, // closable
                 false, // maximizable
                 true); // iconifiable
-        ctrlFrame.setContentPane(ctrlPanel);
-        ctrlFrame.setVisible(true);
-        ctrlFrame.pack();
         desktop.add(ctrlFrame);
 
         helpFrame = new JInternalFrame(
@@ -155,9 +138,6 @@ public class MidiMatrixInternalFrame extends JPanel {
                 true, // closable
                 true, // maximizable
                 true); // iconifiable
-        helpFrame.setContentPane(helpPanel);
-        //helpFrame.setVisible(true);
-        helpFrame.pack();
         helpFrame.setDefaultCloseOperation(JInternalFrame.HIDE_ON_CLOSE);
         desktop.add(helpFrame);
         try {
@@ -217,6 +197,11 @@ public class MidiMatrixInternalFrame extends JPanel {
         class ctrlAction extends AbstractAction {
             public void actionPerformed(ActionEvent e) {
                 try {
+                    if (ctrlPanel == null) {
+                        ctrlPanel = new ControlPanel(roll, playControl, devices, recorder, monitor, canSave);
+                        ctrlFrame.setContentPane(ctrlPanel);
+                        ctrlFrame.pack();
+                    }
                     ctrlFrame.setVisible(true);
                     ctrlFrame.setSelected(true);
                 } catch (Exception exc) {
@@ -232,6 +217,11 @@ public class MidiMatrixInternalFrame extends JPanel {
         class helpAction extends AbstractAction {
             public void actionPerformed(ActionEvent e) {
                 try {
+                    if (helpPanel == null) {
+                        helpPanel = new HelpPanel();
+                        helpFrame.setContentPane(helpPanel);
+                        helpFrame.pack();
+                    }
                     helpFrame.setVisible(true);
                     helpFrame.setSelected(true);
                 } catch (Exception exc) {
@@ -247,14 +237,8 @@ public class MidiMatrixInternalFrame extends JPanel {
         add(toolBar, BorderLayout.PAGE_START);
         add(desktop, BorderLayout.CENTER);
 
-        // Finish up with the progress bar
-        progressStatus.setText("Completed!");
-        progressBar.setValue(9);
         setPreferredSize(new Dimension(850, 850));
 
-        progressFrame.setVisible(false);
-        progressFrame.dispose();
-
         /*ActionListener taskPerformer = new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 homeFrame.setVisible(false);
@@ -262,4 +246,19 @@ public class MidiMatrixInternalFrame extends JPanel {
         };
         new Timer(5000, taskPerformer).start();*/
     }
+
+    /**
+     * Finish writing the session to disk before the application exits
+     */
+    public void shutdown() {
+        compiler.shutdown();
+        thumbnails.shutdown();
+        devices.shutdown();
+        recorder.close();
+        monitor.close();
+        playControl.close();
+        if (journal != null) {
+            journal.close();
+        }
+    }
 }
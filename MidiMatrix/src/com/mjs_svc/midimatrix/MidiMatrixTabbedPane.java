@@ -19,9 +19,9 @@ package com.mjs_svc.midimatrix;
  */
 
 import java.awt.*;
-import javax.sound.midi.InvalidMidiDataException;
 import javax.swing.*;
 import javax.swing.event.*;
+import com.mjs_svc.midimatrix.core.*;
 
 /**
  * The base tabbed pane for MidiMatrix
@@ -34,78 +34,46 @@ public class MidiMatrixTabbedPane extends JTabbedPane {
     private boolean canSave = false;
     private Roll roll;
     private Player playControl;
-    private JPanel homePanel, gridPanel, rollPanel, ctrlPanel, helpPanel, progressPanel;
-    private JProgressBar progressBar;
-    private JFrame progressFrame;
-    private JLabel progressStatus;
+    private RenderCache cache = new RenderCache(16 * 1024 * 1024);
+    private CompileService compiler;
+    private Thumbnails thumbnails;
+    private DeviceDirectory devices;
+    private Recorder recorder = new Recorder();
+    private SynthMonitor monitor;
+    private JPanel homePanel, gridPanel, rollPanel, ctrlPanel, helpPanel;
 
     /**
-     * Construct a new tabbed pane
+     * Construct a new tabbed pane.  The synthesizer warms up in the
+     * background, and the Controls and Help tabs are built when first shown.
      */
     public MidiMatrixTabbedPane(boolean _canSave) {
         canSave = _canSave;
 
-        // build a progress bar window to show the user what's going on
-        progressBar = new JProgressBar(0, 9);
-        progressFrame = new JFrame("Loading...");
-        progressStatus = new JLabel("Initializing");
-        progressPanel = new JPanel(new GridLayout(2, 1));
-        progressBar.setPreferredSize(new Dimension(50, 300));
-        progressBar.setStringPainted(true);
-        progressFrame.add(progressPanel);
-        progressPanel.add(progressBar);
-        progressPanel.add(progressStatus);
-        progressFrame.setPreferredSize(new Dimension(300, 75));
-        progressFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        progressFrame.pack();
-        progressFrame.setVisible(true);
-
         // Set up panels
-        // Home panel
-        progressStatus.setText("Setting up the Welcome tab");
-        progressBar.setValue(1);
         homePanel = new HomePanel();
-
-        progressStatus.setText("Creating play controls");
-        progressBar.setValue(2);
         playControl = new Player(120);
+        monitor = new SynthMonitor(playControl);
 
         // set up the roll
-        progressStatus.setText("Starting a new sequence");
-        progressBar.setValue(3);
         try {
             roll = new Roll(120);
         } catch (Exception e) {
             e.printStackTrace();
         }
-
-        progressStatus.setText("Creating the Matrix panel");
-        progressBar.setValue(4);
-        gridPanel = new MatrixPanel(roll, playControl);
-
-        progressStatus.setText("Creating the Sequence panel");
-        progressBar.setValue(5);
-        rollPanel = new SequencePanel(roll, playControl);
-
-        progressStatus.setText("Creating the Control panel");
-        progressBar.setValue(6);
-        ctrlPanel = new ControlPanel(roll, playControl, canSave);
-
-        progressStatus.setText("Creating the Help panel");
-        progressBar.setValue(7);
-        helpPanel = new HelpPanel();
+        compiler = new CompileService(roll, cache, playControl);
+        playControl.follow(roll);
+        thumbnails = new Thumbnails(roll);
+        devices = new DeviceDirectory();
+        devices.start(DeviceDirectory.POLL);
+        gridPanel = new MatrixPanel(roll, playControl, compiler, thumbnails, recorder);
+        rollPanel = new SequencePanel(roll, playControl, compiler, thumbnails);
 
         // Set up tabbed pane and add all panels to their own tabs
-        progressStatus.setText("Building the interface");
-        progressBar.setValue(8);
         addTab("MIDIMatrix", null, homePanel, "Welcome");
         addTab("Tone Matrices", null, gridPanel, "Build your tone matricies");
         addTab("Sequence", null, rollPanel, "Set up your sequence");
-        addTab("Controls", null, ctrlPanel, "Set up your MIDI devices and export your work");
-        addTab("Help", null, helpPanel, "Help");
-
-        progressStatus.setText("Completed!");
-        progressBar.setValue(9);
+        addTab("Controls", null, new JPanel(), "Set up your MIDI devices and export your work");
+        addTab("Help", null, new JPanel(), "Help");
         setPreferredSize(new Dimension(800, 800));
 
         addChangeListener(new ChangeListener() {
@@ -115,16 +83,15 @@ public class MidiMatrixTabbedPane extends JTabbedPane {
                 playControl.stop();
                 if (source.getSelectedIndex() == 2) {
                     // If we change to the SequencePanel, set the playControl to use the whole sequence
-                    try {
-                        playControl.setSequence(roll.getSequence());
-                    } catch (InvalidMidiDataException exc) {
-                        //
-                    }
+                    compiler.requestRoll();
+                } else if (source.getSelectedIndex() == 3 && ctrlPanel == null) {
+                    ctrlPanel = new ControlPanel(roll, playControl, devices, recorder, monitor, canSave);
+                    setComponentAt(3, ctrlPanel);
+                } else if (source.getSelectedIndex() == 4 && helpPanel == null) {
+                    helpPanel = new HelpPanel();
+                    setComponentAt(4, helpPanel);
                 }
             }
         });
-
-        progressFrame.setVisible(false);
-        progressFrame.dispose();
     }
 }
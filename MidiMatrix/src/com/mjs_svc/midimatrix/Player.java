@@ -18,20 +18,81 @@ package com.mjs_svc.midimatrix;
  * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
  */
 
-import javax.sound.midi.*;
+import com.mjs_svc.midimatrix.core.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.prefs.Preferences;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequence;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 
 /**
- * Player helps to play the midi data by keeping all of the javax.sound.midi
- * interaction encapsulated in one object.  This helps keep the playback
- * consistent across different areas of the application
+ * Player adds the Swing side of playback to Playback: buttons to control it,
+ * and dialogs to tell the user when something goes wrong.  This helps keep
+ * the playback consistent across different areas of the application
  *
  * @author Matthew Scott
  * @version $Id$
  */
-public class Player {
+public class Player extends Playback implements CompileListener {
+
+    private final ExecutorService opener;
+    private static final String SOUNDBANK = "soundbank"; // Preference for the soundbank file last played with
+    private static final String LATENCY = "latency", POLYPHONY = "polyphony"; // Preferences for the software synthesizer
+
+    /**
+     * Show playback problems to the user in a dialog
+     */
+    protected static class ErrorDialog implements PlaybackListener {
+
+        public void playbackStarted(Playback playback) {
+        }
+
+        public void playbackStopped(Playback playback) {
+        }
+
+        /**
+         * Show the problem in a dialog
+         * @param playback The playback that had the problem
+         * @param message A description of the problem
+         * @param cause The exception behind the problem
+         */
+        public void playbackError(Playback playback, final String message, Exception cause) {
+            // problems may be reported from the sequencer's thread
+            SwingUtilities.invokeLater(new Runnable() {
+
+                public void run() {
+                    JOptionPane.showMessageDialog(
+                            null,
+                            message,
+                            "MIDI Oops!",
+                            JOptionPane.ERROR_MESSAGE,
+                            null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Play a sequence compiled in the background, switching to it on the
+     * event dispatch thread
+     * @param sequence The compiled sequence
+     * @param gridIndex The grid that was compiled, or CompileService.ROLL
+     */
+    public void compiled(final Sequence sequence, final int gridIndex) {
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                setSequence(sequence, gridIndex == CompileService.ROLL ? -1 : gridIndex);
+            }
+        });
+    }
 
     /**
      * Construct a JButton that will start the MIDI playing
@@ -102,7 +163,7 @@ public class Player {
          */
         public void actionPerformed(ActionEvent e) {
             stop();
-            loop = false;
+            setLoop(false);
         }
     }
 
@@ -137,193 +198,242 @@ public class Player {
          * @param e ActionEvent received
          */
         public void actionPerformed(ActionEvent e) {
-            loop = true;
+            setLoop(true);
             play();
         }
     }
 
-    private Sequence sequence;
-    private int tempo = 120;
-    private long currPos = 0;
-    private boolean loop = false, playing = false;
-    private Sequencer seq;
-    private MidiDevice synth;
-
     /**
-     * Construct a new MIDI play-helper
+     * Construct a new MIDI play-helper.  The default synthesizer is opened
+     * (and its soundbank loaded) on a thread of its own while the rest of
+     * the application starts; anything played before then plays once it is
+     * ready.
      * @param _tempo The tempo
      */
     public Player(int _tempo) {
-        tempo = _tempo;
-        try {
-            setSynthesizer(MidiSystem.getSynthesizer().getDeviceInfo());
-            setTempo(tempo);
-            if (seq instanceof Sequencer) {
-                seq.addMetaEventListener(new MetaEventListener() {
-
-                    public void meta(MetaMessage mesg) {
-                        // check for a MIDI stop message and loop if we need to
-                        if (mesg.getType() == 47) {
-                            stop();
-                            if (loop) {
-                                play();
-                            }
-                        }
-                    }
-                });
+        super(_tempo, new ErrorDialog(), false);
+        opener = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MIDIMatrix synthesizer");
+                thread.setDaemon(true);
+                return thread;
             }
+        });
+
+        // open the synthesizer as it was set up last time, with the soundbank
+        // last chosen if it's still there
+        Preferences prefs = preferences();
+        if (prefs != null && (prefs.getLong(LATENCY, -1) > 0 || prefs.getInt(POLYPHONY, -1) > 0)) {
+            setSynthesizerSettings(prefs.getLong(LATENCY, -1), prefs.getInt(POLYPHONY, -1));
+        }
+        String saved = prefs == null ? null : prefs.get(SOUNDBANK, null);
+        if (saved != null && new File(saved).isFile()) {
+            setSoundbank(new File(saved));
+        }
+        try {
+            openLater(MidiSystem.getSynthesizer().getDeviceInfo());
         } catch (MidiUnavailableException e) {
-            JOptionPane.showMessageDialog(
-                    null,
-                    "There was a problem instantiating the midi: " + e.getMessage() + "\n" +
-                    "Try another MIDI device, maybe?",
-                    "MIDI Oops!",
-                    JOptionPane.ERROR_MESSAGE,
-                    null);
+            fireError("There was a problem instantiating the midi: " + e.getMessage() + "\n" +
+                    "Try another MIDI device, maybe?", e);
         }
     }
 
     /**
-     * Get a button to start playing
-     * @return A pre-built JButton
+     * Play through another device, opening it in the background if it
+     * isn't open already; playback carries on through the old device until
+     * then
+     * @param _synth a MidiDevice.Info describing the new synth
      */
-    public PlayButton getPlayButton() {
-        return new PlayButton();
+    @Override
+    public void setSynthesizer(MidiDevice.Info _synth) {
+        openLater(_synth);
     }
 
     /**
-     * Get a button to stop playing
-     * @return A pre-built JButton
+     * Play one of the other ports through a device of its own, opening it
+     * in the background if it isn't open already
+     * @param port The port
+     * @param _synth The device, or null to play the port through the first
+     * port's device
      */
-    public StopButton getStopButton() {
-        return new StopButton();
+    @Override
+    public void setPortDevice(final int port, final MidiDevice.Info _synth) {
+        opener.execute(new Runnable() {
+
+            public void run() {
+                Player.super.setPortDevice(port, _synth);
+            }
+        });
     }
 
     /**
-     * Get a button to loop playing
-     * @return A pre-built JButton
+     * Set which instruments are played, changing the synthesizers in the
+     * background
+     * @param _programs Which programs are played, or null to hold the
+     * whole soundbank
+     * @param _percussion Whether a drum kit is played
      */
-    public LoopButton getLoopButton() {
-        return new LoopButton();
+    @Override
+    public void setInstruments(final boolean[] _programs, final boolean _percussion) {
+        opener.execute(new Runnable() {
+
+            public void run() {
+                Player.super.setInstruments(_programs, _percussion);
+            }
+        });
     }
 
     /**
-     * Start playing
+     * Play with the instruments of a soundbank file, reading it in the
+     * background.  The file is remembered for the next time the application
+     * is run.
+     * @param file An SF2 or DLS file, or null for the default soundbank
      */
-    public void play() {
-        try {
-            seq.setMicrosecondPosition(currPos);
-            seq.start();
-            playing = true;
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(
-                    null,
-                    "There was a problem playing the midi: " + e.getMessage(),
-                    "MIDI Oops!",
-                    JOptionPane.ERROR_MESSAGE,
-                    null);
-        }
+    @Override
+    public void setSoundbank(final File file) {
+        opener.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    Player.super.setSoundbank(file);
+                } catch (IOException e) {
+                    fireError("There was a problem reading that soundbank: " + e.getMessage(), e);
+                    return;
+                } catch (InvalidMidiDataException e) {
+                    fireError("That file isn't a soundbank MIDIMatrix can use: " + e.getMessage(), e);
+                    return;
+                }
+                Preferences prefs = preferences();
+                if (prefs != null && file == null) {
+                    prefs.remove(SOUNDBANK);
+                } else if (prefs != null) {
+                    prefs.put(SOUNDBANK, file.getAbsolutePath());
+                }
+            }
+        });
     }
 
     /**
-     * Stop playing
+     * Set how the software synthesizer is opened, opening the one played
+     * through afresh in the background.  Settings the synthesizer takes are
+     * remembered for the next time the application is run.
+     * @param _latency The latency in microseconds, or -1 for the
+     * synthesizer's default
+     * @param _polyphony The most voices to sound at once, or -1 for the
+     * synthesizer's default
      */
-    public void stop() {
-        if (seq instanceof Sequencer) {
-            seq.stop();
-            playing = false;
-            seq.setTickPosition(0);
-            currPos = 0;
-        }
+    @Override
+    public void setSynthesizerSettings(final long _latency, final int _polyphony) {
+        opener.execute(new Runnable() {
+
+            public void run() {
+                Player.super.setSynthesizerSettings(_latency, _polyphony);
+                Preferences prefs = preferences();
+                // settings the synthesizer refused are not kept
+                if (prefs != null && getLatency() == _latency && getPolyphony() == _polyphony) {
+                    prefs.putLong(LATENCY, _latency);
+                    prefs.putInt(POLYPHONY, _polyphony);
+                }
+            }
+        });
     }
 
     /**
-     * Pause playing
+     * Find the lowest latency the software synthesizer keeps up at, in the
+     * background, and play with it from then on
+     * @param done Run on the event dispatch thread once the latency found
+     * is being played with (or none was found), or null
      */
-    public void pause() {
-        if (seq instanceof Sequencer) {
-            currPos = seq.getMicrosecondPosition() + 1;
-            seq.stop();
-            playing = false;
-        }
+    public void calibrate(final Runnable done) {
+        opener.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    if (calibrateLatency() < 0) {
+                        fireError("The synthesizer couldn't keep up at any latency tried; the settings are unchanged.", null);
+                    }
+                } catch (MidiUnavailableException e) {
+                    fireError("There was a problem trying out the synthesizer: " + e.getMessage(), e);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                // the latency found is set by a task queued behind this one
+                if (done != null) {
+                    opener.execute(new Runnable() {
+
+                        public void run() {
+                            SwingUtilities.invokeLater(done);
+                        }
+                    });
+                }
+            }
+        });
     }
 
     /**
-     * Set the sequence to play
-     * @param _sequence The new sequence
+     * Get where the player's settings are kept between runs
+     * @return The preferences, or null if they may not be used, e.g.: in an
+     * applet
      */
-    public void setSequence(Sequence _sequence) {
-        sequence = _sequence;
+    private static Preferences preferences() {
         try {
-            // if we're running, stop, set sequence, start; otherwise just set sequence
-            if (seq.isRunning()) {
-                seq.stop();
-                seq.setSequence(sequence);
-                seq.setTempoInBPM(tempo);
-                play();
-            } else {
-                seq.setSequence(sequence);
-                seq.setTempoInBPM(tempo);
-            }
-        } catch (InvalidMidiDataException e) {
-            if (e instanceof InvalidMidiDataException) {
-                JOptionPane.showMessageDialog(
-                        null,
-                        "There was a problem loading the midi: " + e.getMessage(),
-                        "MIDI Oops!",
-                        JOptionPane.ERROR_MESSAGE,
-                        null);
-            }
-        } catch (Exception e) {
-            //
+            return Preferences.userNodeForPackage(Player.class);
+        } catch (SecurityException e) {
+            return null;
         }
     }
 
     /**
-     * Set the speed of the sequence by modifying the tempo factor
-     * @param _tempo the new tempo in BPM
+     * Close the sequencer and every device played through
      */
-    public void setTempo(int _tempo) {
-        if (seq instanceof Sequencer) {
-            seq.setTempoFactor((float) _tempo / (float) tempo);
-        }
+    @Override
+    public void close() {
+        opener.shutdownNow();
+        super.close();
     }
 
     /**
-     * Set a new synthesizer to use for playback after cleaning up
-     * @param _synth a MidiDevice.Info describing the new synth
+     * Open a device on the opener's thread, then hand it to the transport.
+     * Devices are switched to in the order they were asked for, so the
+     * default synthesizer never takes over from a device chosen after it.
+     * @param _synth The device
      */
-    public void setSynthesizer(MidiDevice.Info _synth) {
-        try {
-            if (synth instanceof Synthesizer) {
-                synth.close();
-                synth.getReceiver().close();
-            }
-            if (seq instanceof Sequencer) {
-                seq.close();
-                seq.getTransmitter().close();
+    private void openLater(final MidiDevice.Info _synth) {
+        opener.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    useDevices(openDevices(_synth));
+                } catch (MidiUnavailableException e) {
+                    fireError("There was a problem setting up that device: " + e.getMessage(), e);
+                }
             }
-            synth = MidiSystem.getMidiDevice(_synth);
-            seq = MidiSystem.getSequencer();
-            synth.open();
-            seq.open();
-            seq.getTransmitter().setReceiver(synth.getReceiver());
-            setSequence(sequence);
-        } catch (MidiUnavailableException e) {
-            JOptionPane.showMessageDialog(
-                    null,
-                    "There was a problem setting up that device: " + e.getMessage(),
-                    "MIDI Oops!",
-                    JOptionPane.ERROR_MESSAGE,
-                    null);
-        }
+        });
+    }
+
+    /**
+     * Get a button to start playing
+     * @return A pre-built JButton
+     */
+    public PlayButton getPlayButton() {
+        return new PlayButton();
+    }
+
+    /**
+     * Get a button to stop playing
+     * @return A pre-built JButton
+     */
+    public StopButton getStopButton() {
+        return new StopButton();
     }
 
     /**
-     * Tell whether or not the sequence is playing currently
-     * @return True if the sequence is playing, false otherwise
+     * Get a button to loop playing
+     * @return A pre-built JButton
      */
-    public boolean isPlaying() {
-        return playing;
+    public LoopButton getLoopButton() {
+        return new LoopButton();
     }
 }
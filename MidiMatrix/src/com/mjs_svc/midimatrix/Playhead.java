@@ -0,0 +1,144 @@
+package com.mjs_svc.midimatrix;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import com.mjs_svc.midimatrix.core.*;
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+
+/**
+ * Playhead shows which step is playing in a view of a grid or roll.  While
+ * playback runs, a timer polls the sequencer's tick position about once a
+ * frame; when the step changes, only the strips covering the old and new
+ * steps are repainted.  The view draws the playhead over whatever it has
+ * already painted by calling paint() last, so its own cached drawing is
+ * never invalidated by the playhead moving.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class Playhead implements PlaybackListener, ActionListener {
+
+    /**
+     * How a view lays out its steps
+     */
+    public interface Steps {
+
+        /**
+         * Find the step playing at a tick of the loaded sequence
+         * @param tick The tick
+         * @return The step, or -1 if the view doesn't show it
+         */
+        public int stepAt(long tick);
+
+        /**
+         * Find where a step is drawn
+         * @param step The step
+         * @return The step's strip, in the view's coordinates
+         */
+        public Rectangle stepBounds(int step);
+    }
+
+    private static final int FRAME = 16; // milliseconds, about one frame at 60 Hz
+    private static final Color SHADE = new Color(255, 200, 0, 90), EDGE = new Color(230, 140, 0);
+
+    private final Playback playback;
+    private final JComponent view;
+    private final Steps steps;
+    private final Timer timer;
+    private int step = -1;
+    private Rectangle shown;
+
+    /**
+     * Attach a playhead to a view
+     * @param _playback The playback to follow
+     * @param _view The view to draw on
+     * @param _steps How the view lays out its steps
+     */
+    public Playhead(Playback _playback, JComponent _view, Steps _steps) {
+        playback = _playback;
+        view = _view;
+        steps = _steps;
+        timer = new Timer(FRAME, this);
+        timer.setCoalesce(true);
+        playback.addPlaybackListener(this);
+    }
+
+    /**
+     * Draw the playhead; call this at the end of the view's paintComponent
+     * @param g Graphics object
+     */
+    public void paint(Graphics g) {
+        // the view may have been resized since the step was found
+        shown = step < 0 ? null : steps.stepBounds(step);
+        if (shown != null && g.hitClip(shown.x, shown.y, shown.width, shown.height)) {
+            g.setColor(SHADE);
+            g.fillRect(shown.x, shown.y, shown.width, shown.height);
+            g.setColor(EDGE);
+            g.drawRect(shown.x, shown.y, shown.width - 1, shown.height - 1);
+        }
+    }
+
+    /**
+     * Move the playhead if the step has changed
+     * @param e The timer's event
+     */
+    public void actionPerformed(ActionEvent e) {
+        if (!view.isShowing()) {
+            return;
+        }
+        long tick = playback.getTickPosition();
+        moveTo(tick < 0 ? -1 : steps.stepAt(tick));
+    }
+
+    private void moveTo(int newStep) {
+        if (newStep == step) {
+            return;
+        }
+        if (shown != null) {
+            view.repaint(shown);
+        }
+        step = newStep;
+        shown = step < 0 ? null : steps.stepBounds(step);
+        if (shown != null) {
+            view.repaint(shown);
+        }
+        // hand the frame to the display now rather than whenever it flushes
+        Toolkit.getDefaultToolkit().sync();
+    }
+
+    public void playbackStarted(Playback _playback) {
+        timer.start();
+    }
+
+    public void playbackStopped(Playback _playback) {
+        timer.stop();
+        // the sequencer's thread may be the one telling us
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                moveTo(-1);
+            }
+        });
+    }
+
+    public void playbackError(Playback _playback, String message, Exception cause) {
+    }
+}
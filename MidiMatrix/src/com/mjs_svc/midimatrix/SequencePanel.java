@@ -1,429 +1,557 @@
-package com.mjs_svc.midimatrix;
-
-/*
- * MIDIMatrix - Matrix-based MIDI sequencer
- * Copyright (c) 2009 Matthew Scott
- *
- *>This program is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
- */
-
-import java.awt.*;
-import java.awt.event.*;
-import javax.swing.*;
-import javax.swing.event.*;
-import javax.sound.midi.InvalidMidiDataException;
-
-/**
- * SequencePanel controls the roll and the tools to work with it
- *
- * @author Matthew Scott
- * @version $Id$
- */
-public class SequencePanel extends JPanel {
-
-    /**
-     * Panel containing the visual representation of a Roll
-     */
-    public class sPanel extends JPanel implements MouseListener {
-        // commonly used spaces
-        // WHY DOES THIS WORK HERE AND NOT IN MATRIXPANEL?Xldlkfjnasekdnfjeownk
-
-        protected int square = getHeight() / 17;
-        protected int extraSpace = (getHeight() - square * 17) / 2;
-
-        /**
-         * Construct a new sPanel and set its mouseListener
-         */
-        public sPanel() {
-            addMouseListener(this);
-        }
-
-        /**
-         * Paint the panel with the roll
-         * @param g Graphics object
-         */
-        @Override
-        public void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            square = getHeight() / 17;
-            extraSpace = (getHeight() - square * 17) / 2;
-
-            setBackground(Color.WHITE);
-
-            // draw the first column and row
-            g.setColor(Color.BLACK);
-            for (int i = 1; i < 17; i++) {
-                g.drawRect(extraSpace, extraSpace + square * i, square, square);
-                g.setColor(new Color(225, 225, 225));
-                g.fillRect(extraSpace + 1, extraSpace + square * i + 1, square - 1, square - 1);
-                g.setColor(Color.BLACK);
-                if (i < 13) {
-                    g.drawString(String.valueOf(i), extraSpace + square / 4, extraSpace + (square * i) + square / 2);
-                } else {
-                    g.drawString("P" + String.valueOf(i - 12), extraSpace + square / 4, extraSpace + (square * i) + square / 2);
-                }
-            }
-
-            // Draw each of the segments
-            for (int i = 1; i <= roll.size(); i++) {
-                g.setColor(Color.BLACK);
-
-                // grab this segment
-                boolean[] thisSegment = roll.getSegment(i - 1);
-
-                // draw a header
-                g.drawRect(extraSpace + square * i,
-                        extraSpace,
-                        square,
-                        square);
-                g.setColor(new Color(225, 225, 225));
-                g.fillRect(extraSpace + square * i + 1,
-                        extraSpace + 1,
-                        square - 1,
-                        square - 1);
-                g.setColor(Color.BLACK);
-
-                if (selectedSegment == i) {
-                    // if this segment is selected, signify that it's selected by highlighting it
-                    g.setColor(new Color(190, 190, 190));
-                    g.fillRect(extraSpace + square * i + 1,
-                            extraSpace + 1,
-                            square - 1,
-                            square - 1);
-                    g.setColor(Color.BLACK);
-                    g.drawRect(extraSpace + square * i + 1,
-                            extraSpace + 1,
-                            square - 2,
-                            square * 17 - 1);
-                }
-
-                if (extraSpace + square * (i + 1) > getWidth()) {
-                    // If this segment goes past the end of the pane, expand the pane
-                    setPreferredSize(new Dimension(getWidth() + square * 2 + extraSpace, getHeight()));
-                    setSize(new Dimension(getWidth() + square * 2 + extraSpace, getHeight()));
-                }
-
-                // label the column header
-                g.drawString(String.valueOf(i),
-                        extraSpace + (square * i) + square / 3 + 3,
-                        extraSpace + square / 2 + 2);
-
-                Color bar = new Color(50, 200, 100);
-                Color handle = new Color(30, 235, 134);
-                for (int j = 1; j < 17; j++) {
-                    // draw the grid for the roll
-                    g.drawRect(extraSpace + square * i,
-                            extraSpace + square * j,
-                            square,
-                            square);
-                    if (thisSegment[j - 1]) {
-                        // if the cell is active, fill it
-                        g.setColor(bar);
-                        g.fillRect(extraSpace + square * i + 2,
-                                extraSpace + square * j + 2,
-                                square - 3,
-                                square - 3);
-                        g.setColor(handle);
-                        g.fillRect(extraSpace + square * i + 1 + square / 4,
-                                extraSpace + square * j + 1 + square / 4,
-                                square / 2,
-                                square / 2);
-                        g.setColor(Color.BLACK);
-                    }
-                }
-            }
-
-            // Since repaint is called often enough, control enabling/disabling buttons
-            if (selectedSegment == 0) {
-                removeSegment.setEnabled(false);
-                clearSegment.setEnabled(false);
-                moveSegmentLeft.setEnabled(false);
-                moveSegmentRight.setEnabled(false);
-            } else {
-                removeSegment.setEnabled(true);
-                clearSegment.setEnabled(true);
-                moveSegmentLeft.setEnabled(selectedSegment > 1);
-                moveSegmentRight.setEnabled(selectedSegment < roll.size());
-            }
-
-            // Recompile if need be
-            if (playControl.isPlaying()) {
-                try {
-                    playControl.pause();
-                    playControl.setSequence(roll.getSequence());
-                    playControl.play();
-                } catch(InvalidMidiDataException exc) {
-                    //
-                }
-            }
-        }
-
-        public void mouseEntered(MouseEvent e) {
-        }
-
-        public void mouseExited(MouseEvent e) {
-        }
-
-        public void mousePressed(MouseEvent e) {
-        }
-
-        /**
-         * Take action when the mouse is released - either toggle the cell, or
-         * if mouse was released on the header, select that segment
-         * @param e The mouseEvent
-         */
-        public void mouseReleased(MouseEvent e) {
-            Point coordinates = getCellCoordinates(e.getPoint());
-            if (coordinates.y > 0) {
-                selectedSegment = 0;
-                roll.toggleGridInRollSegment(coordinates.x - 1, coordinates.y - 1);
-            } else {
-                selectedSegment = coordinates.x;
-            }
-            repaint();
-            try {
-                playControl.setSequence(roll.getSequence());
-            } catch (InvalidMidiDataException exc) {
-                JOptionPane.showMessageDialog(
-                        null,
-                        "Problem compiling MIDI!  Sorry!\n" + exc.getMessage(),
-                        "MIDI Error",
-                        JOptionPane.ERROR_MESSAGE,
-                        null);
-            }
-        }
-
-        public void mouseClicked(MouseEvent e) {
-        }
-
-        /**
-         * Return a coordinate pair for the grid based on the mouse's coordinates
-         * @param p The mouse's coordinates in a Point() object
-         * @return A Point() object containing the grid coordinates
-         */
-        protected Point getCellCoordinates(Point p) {
-            return new Point(
-                    (int) Math.floor((p.x - extraSpace) / square),
-                    (int) Math.floor((p.y - extraSpace) / square));
-        }
-    }
-    private Roll roll;
-    private Player playControl;
-    private JSpinner tempo;
-    private JButton addSegment, clearSegment, removeSegment, moveSegmentRight,
-            moveSegmentLeft, play, loop, stop;
-    private sPanel sequencePanel;
-    private JPanel tools;
-    private JScrollPane scroller;
-    private int selectedSegment = 0;
-
-    /**
-     * Construct a new SequencePanel
-     * @param _roll The roll to display, edit, and play
-     * @param _playControl An object to control MIDI playback
-     */
-    public SequencePanel(Roll _roll, Player _playControl) {
-        roll = _roll;
-        roll.addRollSegment();
-
-        // Set up play controls
-        playControl = _playControl;
-        try {
-            playControl.setSequence(roll.getSequence());
-        } catch (InvalidMidiDataException e) {
-            JOptionPane.showMessageDialog(
-                    null,
-                    "Problem compiling MIDI!  Sorry!\n" + e.getMessage(),
-                    "MIDI Error",
-                    JOptionPane.ERROR_MESSAGE,
-                    null);
-        }
-
-        // set up the tempo spinner
-        tempo = new JSpinner(new SpinnerNumberModel(120, 40, 220, 1));
-        tempo.addChangeListener(new ChangeListener() {
-
-            public void stateChanged(ChangeEvent e) {
-                JSpinner source = (JSpinner) e.getSource();
-                roll.setTempo(((SpinnerNumberModel) source.getModel()).getNumber().intValue());
-                playControl.setTempo(((SpinnerNumberModel) source.getModel()).getNumber().intValue());
-            }
-        });
-
-        addSegment = new JButton("Add");
-        addSegment.setToolTipText("Add a frame to the sequence");
-        addSegment.addActionListener(new ActionListener() {
-
-            public void actionPerformed(ActionEvent e) {
-                // add a new segment to the roll, recompile, repaint
-                roll.addRollSegment();
-                try {
-                    roll.compile();
-                } catch (Exception exc) {
-                    //
-                }
-                sequencePanel.repaint();
-            }
-        });
-
-        removeSegment = new JButton("Remove");
-        removeSegment.setToolTipText("Remove the selected frame from the sequence");
-        removeSegment.addActionListener(new ActionListener() {
-
-            public void actionPerformed(ActionEvent e) {
-                // remove a segment from the roll, recompile, repaint
-                if (selectedSegment > 0) {
-                    roll.removeRollSegment(selectedSegment - 1);
-                    selectedSegment = 0;
-                    try {
-                        roll.compile();
-                    } catch (Exception exc) {
-                        //
-                    }
-                    sequencePanel.repaint();
-                } else {
-                    JOptionPane.showMessageDialog(
-                            null,
-                            "No frame selected!\nSelect a frame by clicking at its header.",
-                            "No frame selected!",
-                            JOptionPane.INFORMATION_MESSAGE);
-                }
-            }
-        });
-
-        clearSegment = new JButton("Clear");
-        clearSegment.setToolTipText("Clear the selected frame");
-        clearSegment.addActionListener(new ActionListener() {
-
-            public void actionPerformed(ActionEvent e) {
-                // disable all grids in the roll, recompile, repaint
-                if (selectedSegment > 0) {
-                    for (int i = 0; i < 16; i++) {
-                        roll.disableGridInRollSegment(selectedSegment - 1, i);
-                    }
-                    selectedSegment = 0;
-                    try {
-                        roll.compile();
-                    } catch (Exception exc) {
-                        //
-                    }
-                    sequencePanel.repaint();
-                } else {
-                    JOptionPane.showMessageDialog(
-                            null,
-                            "No frame selected!\nSelect a frame by clicking at its header.",
-                            "No frame selected!",
-                            JOptionPane.INFORMATION_MESSAGE);
-                }
-            }
-        });
-
-        moveSegmentLeft = new JButton("<<");
-        moveSegmentLeft.setToolTipText("Move the selected frame one frame to the left");
-        moveSegmentLeft.addActionListener(new ActionListener() {
-
-            public void actionPerformed(ActionEvent e) {
-                if (selectedSegment > 1) {
-                    roll.moveRollSegment(selectedSegment - 1, selectedSegment - 2);
-                    selectedSegment--;
-                    try {
-                        roll.compile();
-                    } catch (Exception exc) {
-                        //
-                    }
-                    sequencePanel.repaint();
-                } else {
-                    JOptionPane.showMessageDialog(
-                            null,
-                            "No frame selected!\nSelect a frame by clicking at its header.",
-                            "No frame selected!",
-                            JOptionPane.INFORMATION_MESSAGE);
-                }
-            }
-        });
-
-        moveSegmentRight = new JButton(">>");
-        moveSegmentRight.setToolTipText("Move the selected frame one frame to the right");
-        moveSegmentRight.addActionListener(new ActionListener() {
-
-            public void actionPerformed(ActionEvent e) {
-                if (selectedSegment < roll.size() && selectedSegment > 0) {
-                    roll.moveRollSegment(selectedSegment - 1, selectedSegment);
-                    selectedSegment++;
-                    try {
-                        roll.compile();
-                    } catch (Exception exc) {
-                        //
-                    }
-                    sequencePanel.repaint();
-                } else {
-                    JOptionPane.showMessageDialog(
-                            null,
-                            "No frame selected!\nSelect a frame by clicking at its header.",
-                            "No frame selected!",
-                            JOptionPane.INFORMATION_MESSAGE);
-                }
-            }
-        });
-
-        play = playControl.getPlayButton();
-        loop = playControl.getLoopButton();
-        stop = playControl.getStopButton();
-
-        play.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                try {
-                    playControl.setSequence(roll.getSequence());
-                } catch(InvalidMidiDataException exc) {
-                    //
-                }
-            }
-        });
-
-        loop.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                try {
-                    playControl.setSequence(roll.getSequence());
-                } catch(InvalidMidiDataException exc) {
-                    //
-                }
-            }
-        });
-
-        tools = new JPanel();
-        tools.add(new JLabel("Tempo (BPM): "));
-        tools.add(tempo);
-        tools.add(new JSeparator(SwingConstants.VERTICAL));
-        tools.add(play);
-        tools.add(loop);
-        tools.add(stop);
-        tools.add(new JSeparator(SwingConstants.VERTICAL));
-        tools.add(addSegment);
-        tools.add(removeSegment);
-        tools.add(clearSegment);
-        tools.add(moveSegmentLeft);
-        tools.add(moveSegmentRight);
-        tools.setPreferredSize(new Dimension(800, 50));
-
-        // set up the sPanel and put it in a scroller
-        sequencePanel = new sPanel();
-        sequencePanel.setPreferredSize(new Dimension(800, 600));
-        scroller = new JScrollPane(sequencePanel, JScrollPane.VERTICAL_SCROLLBAR_NEVER, JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
-        scroller.setPreferredSize(new Dimension(800, 620));
-
-        JSplitPane pane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, tools, scroller);
-
-        add(pane);
-    }
-}
+package com.mjs_svc.midimatrix;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ *>This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.*;
+import javax.swing.event.*;
+import javax.sound.midi.InvalidMidiDataException;
+import com.mjs_svc.midimatrix.core.*;
+
+/**
+ * SequencePanel controls the roll and the tools to work with it
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class SequencePanel extends JPanel {
+
+    private static final Color BAR = new Color(50, 200, 100), HANDLE = new Color(30, 235, 134);
+    private static final Color HEADER = new Color(225, 225, 225), SELECTED = new Color(190, 190, 190);
+    private static final Color MUTED = new Color(255, 255, 255, 170), SOLO = new Color(0, 150, 60);
+    private static final int ROWS = 16, DEFAULT_HEIGHT = 600, CACHED_COLUMNS = 64;
+
+    /**
+     * Panel containing the visual representation of a Roll.  Only the
+     * segments inside the clip are drawn, and the panel's size comes from
+     * the roll rather than from painting, so long rolls scroll as quickly
+     * as short ones.  The body of each column is drawn once per pattern of
+     * enabled grids and copied from then on.
+     */
+    public class sPanel extends JPanel implements MouseListener, Scrollable, RollListener {
+        // commonly used spaces
+        protected int square = DEFAULT_HEIGHT / 17;
+        protected int extraSpace = (DEFAULT_HEIGHT - square * 17) / 2;
+
+        // column bodies by the grids enabled in them, for the current square size
+        private final LinkedHashMap<Integer, BufferedImage> columns =
+                new LinkedHashMap<Integer, BufferedImage>(CACHED_COLUMNS, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, BufferedImage> eldest) {
+                return size() > CACHED_COLUMNS;
+            }
+        };
+        private int columnSquare = 0;
+
+        /**
+         * Construct a new sPanel and set its mouseListener
+         */
+        public sPanel() {
+            setBackground(Color.WHITE);
+            addMouseListener(this);
+        }
+
+        /**
+         * Work out the size of a cell from the panel's height
+         */
+        protected void measure() {
+            int height = getHeight() > 0 ? getHeight() : DEFAULT_HEIGHT;
+            square = height / 17;
+            extraSpace = (height - square * 17) / 2;
+        }
+
+        /**
+         * The panel is as wide as the roll needs, with room for one more
+         * segment
+         * @return The preferred size
+         */
+        @Override
+        public Dimension getPreferredSize() {
+            measure();
+            return new Dimension(extraSpace * 2 + square * (roll.size() + 2) + 1,
+                    getHeight() > 0 ? getHeight() : DEFAULT_HEIGHT);
+        }
+
+        /**
+         * Paint the segments inside the clip
+         * @param g Graphics object
+         */
+        @Override
+        public void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            measure();
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+
+            // draw the first column if it shows
+            if (clip.x <= extraSpace + square) {
+                g.setColor(Color.BLACK);
+                for (int i = 1; i < 17; i++) {
+                    g.drawRect(extraSpace, extraSpace + square * i, square, square);
+                    g.setColor(HEADER);
+                    g.fillRect(extraSpace + 1, extraSpace + square * i + 1, square - 1, square - 1);
+                    Image thumbnail = thumbnails.getImage(i - 1);
+                    if (thumbnail != null) {
+                        g.drawImage(thumbnail, extraSpace + 1, extraSpace + square * i + 1, square - 1, square - 1, null);
+                    }
+                    int row = extraSpace + square * i;
+                    if (roll.gridGetMuted(i - 1)) {
+                        // fade muted parts out
+                        g.setColor(MUTED);
+                        g.fillRect(extraSpace + 1, row + 1, square - 1, square - 1);
+                    }
+                    if (roll.gridGetSolo(i - 1)) {
+                        g.setColor(SOLO);
+                        g.drawRect(extraSpace + 1, row + 1, square - 2, square - 2);
+                        g.drawString("S", extraSpace + square - square / 3, row + square - 3);
+                    } else if (roll.gridGetMuted(i - 1)) {
+                        g.setColor(Color.RED);
+                        g.drawString("M", extraSpace + square - square / 3 - 2, row + square - 3);
+                    }
+                    g.setColor(Color.BLACK);
+                    if (i < 13) {
+                        g.drawString(String.valueOf(i), extraSpace + square / 4, extraSpace + (square * i) + square / 2);
+                    } else {
+                        g.drawString("P" + String.valueOf(i - 12), extraSpace + square / 4, extraSpace + (square * i) + square / 2);
+                    }
+                }
+            }
+
+            // Draw the segments the clip touches
+            int first = Math.max(1, (clip.x - extraSpace) / square);
+            int last = Math.min(roll.size(), (clip.x + clip.width - extraSpace) / square);
+            for (int i = first; i <= last; i++) {
+                drawSegment(g, i);
+            }
+            playhead.paint(g);
+
+            // Since repaint is called often enough, control enabling/disabling buttons
+            if (selectedSegment == 0) {
+                removeSegment.setEnabled(false);
+                clearSegment.setEnabled(false);
+                moveSegmentLeft.setEnabled(false);
+                moveSegmentRight.setEnabled(false);
+            } else {
+                removeSegment.setEnabled(true);
+                clearSegment.setEnabled(true);
+                moveSegmentLeft.setEnabled(selectedSegment > 1);
+                moveSegmentRight.setEnabled(selectedSegment < roll.size());
+            }
+        }
+
+        /**
+         * Draw one segment: its header, then its body from the cache
+         * @param g Graphics object
+         * @param i The segment's column, counting from 1
+         */
+        protected void drawSegment(Graphics g, int i) {
+            // draw a header
+            g.setColor(Color.BLACK);
+            g.drawRect(extraSpace + square * i, extraSpace, square, square);
+            g.setColor(selectedSegment == i ? SELECTED : HEADER);
+            g.fillRect(extraSpace + square * i + 1, extraSpace + 1, square - 1, square - 1);
+
+            // label the column header
+            g.setColor(Color.BLACK);
+            g.drawString(String.valueOf(i),
+                    extraSpace + (square * i) + square / 3 + 3,
+                    extraSpace + square / 2 + 2);
+
+            g.drawImage(getColumn(roll.getSegment(i - 1)), extraSpace + square * i, extraSpace + square, null);
+
+            if (selectedSegment == i) {
+                // if this segment is selected, signify that it's selected by outlining it
+                g.drawRect(extraSpace + square * i + 1,
+                        extraSpace + 1,
+                        square - 2,
+                        square * 17 - 1);
+            }
+        }
+
+        /**
+         * Find the body of a column showing the given grids, drawing it if
+         * it hasn't been drawn at this size
+         * @param segment Which grids are enabled
+         * @return The column's image
+         */
+        protected BufferedImage getColumn(boolean[] segment) {
+            if (columnSquare != square) {
+                columns.clear();
+                columnSquare = square;
+            }
+            int mask = 0;
+            for (int j = 0; j < ROWS; j++) {
+                if (segment[j]) {
+                    mask |= 1 << j;
+                }
+            }
+            BufferedImage column = columns.get(mask);
+            if (column == null) {
+                column = new BufferedImage(square + 1, square * ROWS + 1, BufferedImage.TYPE_INT_RGB);
+                Graphics g = column.getGraphics();
+                g.setColor(getBackground());
+                g.fillRect(0, 0, column.getWidth(), column.getHeight());
+                for (int j = 0; j < ROWS; j++) {
+                    // draw the grid for the roll
+                    g.setColor(Color.BLACK);
+                    g.drawRect(0, square * j, square, square);
+                    if (segment[j]) {
+                        // if the cell is active, fill it
+                        g.setColor(BAR);
+                        g.fillRect(2, square * j + 2, square - 3, square - 3);
+                        g.setColor(HANDLE);
+                        g.fillRect(1 + square / 4, square * j + 1 + square / 4, square / 2, square / 2);
+                    }
+                }
+                g.dispose();
+                columns.put(mask, column);
+            }
+            return column;
+        }
+
+        /**
+         * Repaint one segment's column
+         * @param i The segment's column, counting from 1
+         */
+        protected void repaintSegment(int i) {
+            repaint(extraSpace + square * i, 0, square + 1, getHeight());
+        }
+
+        /**
+         * Repaint what a change to the roll touched, and resize to fit when
+         * segments are added or removed
+         * @param _roll The roll that was edited
+         * @param edit What kind of edit was made
+         * @param args The arguments of the edit
+         */
+        public void rollEdited(Roll _roll, int edit, int[] args) {
+            switch (edit) {
+                case SEGMENT_ADD:
+                case SEGMENT_ADD_AT:
+                case SEGMENT_REMOVE:
+                    revalidate();
+                    repaint();
+                    break;
+                case SEGMENT_MOVE:
+                    for (int i = Math.min(args[0], args[1]); i <= Math.max(args[0], args[1]); i++) {
+                        repaintSegment(i + 1);
+                    }
+                    break;
+                case SEGMENT_ENABLE:
+                case SEGMENT_DISABLE:
+                case SEGMENT_TOGGLE:
+                    repaintSegment(args[0] + 1);
+                    break;
+                case GRID_MUTE:
+                case GRID_SOLO:
+                    repaintSegment(0);
+                    break;
+            }
+        }
+
+        public Dimension getPreferredScrollableViewportSize() {
+            return getPreferredSize();
+        }
+
+        public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+            return square;
+        }
+
+        public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+            return orientation == SwingConstants.HORIZONTAL ? Math.max(square, visibleRect.width - square) : visibleRect.height;
+        }
+
+        public boolean getScrollableTracksViewportWidth() {
+            // fill the viewport when the roll is narrower than it
+            return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+        }
+
+        public boolean getScrollableTracksViewportHeight() {
+            return true;
+        }
+
+        public void mouseEntered(MouseEvent e) {
+        }
+
+        public void mouseExited(MouseEvent e) {
+        }
+
+        public void mousePressed(MouseEvent e) {
+        }
+
+        /**
+         * Take action when the mouse is released - either toggle the cell, or
+         * if mouse was released on the header, select that segment.  Clicking
+         * a row header mutes or unmutes that grid; shift-clicking solos it.
+         * @param e The mouseEvent
+         */
+        public void mouseReleased(MouseEvent e) {
+            Point coordinates = getCellCoordinates(e.getPoint());
+            if (coordinates.x < 0 || coordinates.x > roll.size() || coordinates.y < 0 || coordinates.y > ROWS) {
+                // outside of the segments
+                return;
+            }
+            if (coordinates.x == 0 && coordinates.y > 0) {
+                int gridIndex = coordinates.y - 1;
+                if (e.isShiftDown()) {
+                    roll.gridSetSolo(gridIndex, !roll.gridGetSolo(gridIndex));
+                } else {
+                    roll.gridSetMuted(gridIndex, !roll.gridGetMuted(gridIndex));
+                }
+                return;
+            }
+            repaintSegment(selectedSegment);
+            if (coordinates.y > 0) {
+                selectedSegment = 0;
+                roll.toggleGridInRollSegment(coordinates.x - 1, coordinates.y - 1);
+                compiler.requestRoll();
+            } else {
+                selectedSegment = coordinates.x;
+                repaintSegment(selectedSegment);
+            }
+        }
+
+        public void mouseClicked(MouseEvent e) {
+        }
+
+        /**
+         * Return a coordinate pair for the grid based on the mouse's coordinates
+         * @param p The mouse's coordinates in a Point() object
+         * @return A Point() object containing the grid coordinates
+         */
+        protected Point getCellCoordinates(Point p) {
+            measure();
+            return new Point(
+                    (int) Math.floor((p.x - extraSpace) / (double) square),
+                    (int) Math.floor((p.y - extraSpace) / (double) square));
+        }
+    }
+    private Roll roll;
+    private Player playControl;
+    private CompileService compiler;
+    private Thumbnails thumbnails;
+    private JSpinner tempo;
+    private JButton addSegment, clearSegment, removeSegment, moveSegmentRight,
+            moveSegmentLeft, play, loop, stop;
+    private sPanel sequencePanel;
+    private Playhead playhead;
+    private JPanel tools;
+    private JScrollPane scroller;
+    private int selectedSegment = 0;
+
+    /**
+     * Construct a new SequencePanel
+     * @param _roll The roll to display, edit, and play
+     * @param _playControl An object to control MIDI playback
+     * @param _compiler What to compile the roll with
+     * @param _thumbnails Pictures of the grids, for the row headers
+     */
+    public SequencePanel(Roll _roll, Player _playControl, CompileService _compiler, Thumbnails _thumbnails) {
+        roll = _roll;
+        roll.addRollSegment();
+
+        // Set up play controls
+        playControl = _playControl;
+        compiler = _compiler;
+        compiler.requestRoll();
+        thumbnails = _thumbnails;
+
+        // set up the tempo spinner
+        tempo = new JSpinner(new SpinnerNumberModel(120, 40, 220, 1));
+        tempo.addChangeListener(new ChangeListener() {
+
+            public void stateChanged(ChangeEvent e) {
+                JSpinner source = (JSpinner) e.getSource();
+                roll.setTempo(((SpinnerNumberModel) source.getModel()).getNumber().intValue());
+                playControl.setTempo(((SpinnerNumberModel) source.getModel()).getNumber().intValue());
+            }
+        });
+
+        addSegment = new JButton("Add");
+        addSegment.setToolTipText("Add a frame to the sequence");
+        addSegment.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                // add a new segment to the roll, recompile, repaint
+                roll.addRollSegment();
+                compiler.requestRoll();
+                sequencePanel.repaint();
+            }
+        });
+
+        removeSegment = new JButton("Remove");
+        removeSegment.setToolTipText("Remove the selected frame from the sequence");
+        removeSegment.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                // remove a segment from the roll, recompile, repaint
+                if (selectedSegment > 0) {
+                    roll.removeRollSegment(selectedSegment - 1);
+                    selectedSegment = 0;
+                    compiler.requestRoll();
+                    sequencePanel.repaint();
+                } else {
+                    JOptionPane.showMessageDialog(
+                            null,
+                            "No frame selected!\nSelect a frame by clicking at its header.",
+                            "No frame selected!",
+                            JOptionPane.INFORMATION_MESSAGE);
+                }
+            }
+        });
+
+        clearSegment = new JButton("Clear");
+        clearSegment.setToolTipText("Clear the selected frame");
+        clearSegment.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                // disable all grids in the roll, recompile, repaint
+                if (selectedSegment > 0) {
+                    for (int i = 0; i < 16; i++) {
+                        roll.disableGridInRollSegment(selectedSegment - 1, i);
+                    }
+                    selectedSegment = 0;
+                    compiler.requestRoll();
+                    sequencePanel.repaint();
+                } else {
+                    JOptionPane.showMessageDialog(
+                            null,
+                            "No frame selected!\nSelect a frame by clicking at its header.",
+                            "No frame selected!",
+                            JOptionPane.INFORMATION_MESSAGE);
+                }
+            }
+        });
+
+        moveSegmentLeft = new JButton("<<");
+        moveSegmentLeft.setToolTipText("Move the selected frame one frame to the left");
+        moveSegmentLeft.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                if (selectedSegment > 1) {
+                    roll.moveRollSegment(selectedSegment - 1, selectedSegment - 2);
+                    selectedSegment--;
+                    compiler.requestRoll();
+                    sequencePanel.repaint();
+                } else {
+                    JOptionPane.showMessageDialog(
+                            null,
+                            "No frame selected!\nSelect a frame by clicking at its header.",
+                            "No frame selected!",
+                            JOptionPane.INFORMATION_MESSAGE);
+                }
+            }
+        });
+
+        moveSegmentRight = new JButton(">>");
+        moveSegmentRight.setToolTipText("Move the selected frame one frame to the right");
+        moveSegmentRight.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                if (selectedSegment < roll.size() && selectedSegment > 0) {
+                    roll.moveRollSegment(selectedSegment - 1, selectedSegment);
+                    selectedSegment++;
+                    compiler.requestRoll();
+                    sequencePanel.repaint();
+                } else {
+                    JOptionPane.showMessageDialog(
+                            null,
+                            "No frame selected!\nSelect a frame by clicking at its header.",
+                            "No frame selected!",
+                            JOptionPane.INFORMATION_MESSAGE);
+                }
+            }
+        });
+
+        play = playControl.getPlayButton();
+        loop = playControl.getLoopButton();
+        stop = playControl.getStopButton();
+
+        play.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    playControl.setSequence(compiler.compileRollNow());
+                } catch(InvalidMidiDataException exc) {
+                    //
+                }
+            }
+        });
+
+        loop.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    playControl.setSequence(compiler.compileRollNow());
+                } catch(InvalidMidiDataException exc) {
+                    //
+                }
+            }
+        });
+
+        tools = new JPanel();
+        tools.add(new JLabel("Tempo (BPM): "));
+        tools.add(tempo);
+        tools.add(new JSeparator(SwingConstants.VERTICAL));
+        tools.add(play);
+        tools.add(loop);
+        tools.add(stop);
+        tools.add(new JSeparator(SwingConstants.VERTICAL));
+        tools.add(addSegment);
+        tools.add(removeSegment);
+        tools.add(clearSegment);
+        tools.add(moveSegmentLeft);
+        tools.add(moveSegmentRight);
+        tools.setPreferredSize(new Dimension(800, 50));
+
+        // set up the sPanel and put it in a scroller
+        sequencePanel = new sPanel();
+        roll.addRollListener(sequencePanel);
+        thumbnails.addChangeListener(new ChangeListener() {
+
+            public void stateChanged(ChangeEvent e) {
+                // the row headers show the pictures
+                sequencePanel.repaintSegment(0);
+            }
+        });
+        playhead = new Playhead(playControl, sequencePanel, new Playhead.Steps() {
+
+            public int stepAt(long tick) {
+                int segment = (int) (tick / roll.getGridWidth()) + 1;
+                return segment <= roll.size() ? segment : -1;
+            }
+
+            public Rectangle stepBounds(int step) {
+                return new Rectangle(sequencePanel.extraSpace + sequencePanel.square * step, sequencePanel.extraSpace,
+                        sequencePanel.square + 1, sequencePanel.square * 17 + 1);
+            }
+        });
+        scroller = new JScrollPane(sequencePanel, JScrollPane.VERTICAL_SCROLLBAR_NEVER, JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
+        scroller.setPreferredSize(new Dimension(800, 620));
+
+        JSplitPane pane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, tools, scroller);
+
+        add(pane);
+    }
+}
@@ -0,0 +1,280 @@
+package com.mjs_svc.midimatrix;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import com.mjs_svc.midimatrix.core.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+import java.util.Vector;
+import java.util.concurrent.*;
+import javax.swing.*;
+import javax.swing.event.*;
+
+/**
+ * Thumbnails keeps a small picture of every grid in a roll, for previews.
+ * When a grid is edited its notes are copied on the event dispatch thread
+ * and the picture is redrawn from the copy on a pool of background threads,
+ * so that many grids are drawn at once and the user interface never waits.
+ * Edits made in one go are drawn once, grids that haven't changed since
+ * their picture was drawn are not drawn again, and listeners are told on the
+ * event dispatch thread when a picture changes.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class Thumbnails implements RollListener {
+
+    public static final int WIDTH = 32, HEIGHT = 32;
+    private static final Color NOTE = new Color(30, 144, 255), EDGE = new Color(160, 160, 160);
+
+    private final Roll roll;
+    private final BufferedImage[] images;
+    private final long[] requested;           // what each picture was last asked to be drawn from
+    private final int[] versions;             // the latest request for each picture
+    private final BitSet dirty = new BitSet();
+    private boolean flushQueued = false;
+    private final ExecutorService pool;
+    private final Vector<ChangeListener> listeners = new Vector<ChangeListener>();
+
+    /**
+     * Start keeping pictures of a roll's grids, drawing them all now
+     * @param _roll The roll
+     */
+    public Thumbnails(Roll _roll) {
+        roll = _roll;
+        int grids = roll.getNumGrids();
+        images = new BufferedImage[grids];
+        requested = new long[grids];
+        versions = new int[grids];
+        pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MIDIMatrix thumbnails");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        roll.addRollListener(this);
+        refresh();
+    }
+
+    /**
+     * Get the picture of a grid
+     * @param gridIndex The grid
+     * @return The picture, or null if it hasn't been drawn yet
+     */
+    public synchronized Image getImage(int gridIndex) {
+        return images[gridIndex];
+    }
+
+    /**
+     * Get an icon that always shows the latest picture of a grid
+     * @param gridIndex The grid
+     * @param badge A small image to draw in the corner, or null
+     * @return The icon
+     */
+    public Icon getIcon(final int gridIndex, final Image badge) {
+        return new Icon() {
+
+            public void paintIcon(Component c, Graphics g, int x, int y) {
+                Image image = getImage(gridIndex);
+                if (image != null) {
+                    g.drawImage(image, x, y, null);
+                }
+                if (badge != null) {
+                    g.drawImage(badge, x + 1, y + 1, null);
+                }
+            }
+
+            public int getIconWidth() {
+                return WIDTH;
+            }
+
+            public int getIconHeight() {
+                return HEIGHT;
+            }
+        };
+    }
+
+    /**
+     * Be told when a picture changes
+     * @param listener The listener, which is told on the event dispatch
+     * thread
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stop being told when a picture changes
+     * @param listener The listener
+     */
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Redraw any picture whose grid has changed, whether or not the roll
+     * said so (e.g.: after a whole roll has been loaded into it)
+     */
+    public void refresh() {
+        synchronized (this) {
+            for (int i = 0; i < images.length; i++) {
+                dirty.set(i);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Stop drawing pictures
+     */
+    public void shutdown() {
+        roll.removeRollListener(this);
+        pool.shutdownNow();
+    }
+
+    /**
+     * Mark a grid's picture for redrawing when its notes change
+     * @param _roll The roll that was edited
+     * @param edit What kind of edit was made
+     * @param args The arguments of the edit
+     */
+    public void rollEdited(Roll _roll, int edit, int[] args) {
+        switch (edit) {
+            case GRID_TOGGLE:
+            case GRID_TOGGLE_LENGTH:
+            case GRID_TOGGLE_ON:
+            case GRID_TOGGLE_OFF:
+            case GRID_CLEAR:
+                synchronized (this) {
+                    dirty.set(args[0]);
+                    if (flushQueued) {
+                        return;
+                    }
+                    flushQueued = true;
+                }
+                // draw once the rest of the edits made in one go are in
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    public void run() {
+                        flush();
+                    }
+                });
+                break;
+        }
+    }
+
+    /**
+     * Copy the notes of every grid marked for redrawing and have them drawn
+     */
+    private void flush() {
+        synchronized (this) {
+            flushQueued = false;
+            for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+                Grid grid = roll.getGrid(i);
+                if (grid == null || (versions[i] > 0 && requested[i] == grid.getFingerprint())) {
+                    // not enabled yet, or already drawn (or being drawn) as it is
+                    continue;
+                }
+                final int gridIndex = i, version = ++versions[i];
+                final boolean[][][] notes = grid.copyNotes();
+                requested[i] = grid.getFingerprint();
+                pool.execute(new Runnable() {
+
+                    public void run() {
+                        deliver(gridIndex, version, draw(notes));
+                    }
+                });
+            }
+            dirty.clear();
+        }
+    }
+
+    /**
+     * Keep a newly drawn picture unless a newer one has been asked for
+     */
+    private void deliver(int gridIndex, int version, BufferedImage image) {
+        synchronized (this) {
+            if (version != versions[gridIndex]) {
+                return;
+            }
+            images[gridIndex] = image;
+        }
+        final ChangeEvent event = new ChangeEvent(Integer.valueOf(gridIndex));
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                for (int i = 0; i < listeners.size(); i++) {
+                    listeners.get(i).stateChanged(event);
+                }
+            }
+        });
+    }
+
+    /**
+     * Draw a picture of a grid, shading each pixel by how much of the part
+     * of the grid under it is sounding
+     * @param notes The grid's notes, as copied by Grid.copyNotes()
+     * @return The picture
+     */
+    protected static BufferedImage draw(boolean[][][] notes) {
+        int width = notes.length, height = width > 0 ? notes[0].length : 0;
+        int[] sounding = new int[WIDTH * HEIGHT], covered = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < height; y++) {
+            int py0 = y * HEIGHT / height, py1 = Math.max(py0 + 1, (y + 1) * HEIGHT / height);
+            boolean playing = false;
+            for (int x = 0; x < width; x++) {
+                if (notes[x][y][0]) {
+                    playing = true;
+                }
+                int px0 = x * WIDTH / width, px1 = Math.max(px0 + 1, (x + 1) * WIDTH / width);
+                for (int py = py0; py < py1; py++) {
+                    for (int px = px0; px < px1; px++) {
+                        covered[py * WIDTH + px]++;
+                        if (playing) {
+                            sounding[py * WIDTH + px]++;
+                        }
+                    }
+                }
+                if (notes[x][y][1]) {
+                    playing = false;
+                }
+            }
+        }
+
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            float amount = sounding[i] == 0 ? 0 : 0.25f + 0.75f * sounding[i] / covered[i];
+            pixels[i] = 0xff000000
+                    | Math.round(255 + (NOTE.getRed() - 255) * amount) << 16
+                    | Math.round(255 + (NOTE.getGreen() - 255) * amount) << 8
+                    | Math.round(255 + (NOTE.getBlue() - 255) * amount);
+        }
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, WIDTH, HEIGHT, pixels, 0, WIDTH);
+        Graphics g = image.getGraphics();
+        g.setColor(EDGE);
+        g.drawRect(0, 0, WIDTH - 1, HEIGHT - 1);
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,275 @@
+package com.mjs_svc.midimatrix.cli;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import com.mjs_svc.midimatrix.core.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Export many projects at once from the command line:
+ *
+ * <pre>java -cp MidiMatrix.jar com.mjs_svc.midimatrix.cli.Batch [options] input output-dir</pre>
+ *
+ * <p>The input is either a directory, every file under which is read as a
+ * project, or a corpus file holding one encoded roll per line (such as a dump
+ * of MidiMatrixOnline's matrix column).  Projects are exported by a fixed pool
+ * of workers; the queue in front of them is bounded, so when the workers fall
+ * behind the thread reading the input runs an export itself instead of
+ * queueing more.  A project that fails is reported and skipped.  Exports go
+ * through a RenderCache, so repeated projects are rendered once, and with a
+ * cache directory a later run only renders what changed.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class Batch {
+
+    private static final String USAGE =
+            "usage: Batch [-midi] [-wav] [-threads n] [-tempo bpm] [-cache dir] input output-dir\n" +
+            "  input       a directory of projects, or a file with one encoded roll per line\n" +
+            "  output-dir  where to write the exports, mirroring the input's layout\n" +
+            "  -midi -wav  what to export (default -midi)\n" +
+            "  -threads n  how many exports to run at once (default: one per core)\n" +
+            "  -tempo bpm  export every project at this tempo (default: each project's own)\n" +
+            "  -cache dir  keep exports in dir, so unchanged projects are not rendered again";
+
+    private final File outDir;
+    private final boolean midi, wave;
+    private final int tempo;
+    private final ThreadPoolExecutor pool;
+    private final SynthesizerPool synths;
+    private final RenderCache cache;
+    private final AtomicInteger done = new AtomicInteger(), failed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Set up a batch export
+     * @param _outDir Where to write the exports
+     * @param _midi Whether to export MIDI files
+     * @param _wave Whether to export WAVE files
+     * @param _tempo The tempo to export at, or 0 to use each project's own
+     * @param threads How many exports to run at once
+     * @param _cache Where to keep exports
+     */
+    public Batch(File _outDir, boolean _midi, boolean _wave, int _tempo, int threads, RenderCache _cache) {
+        outDir = _outDir;
+        midi = _midi;
+        wave = _wave;
+        tempo = _tempo;
+        cache = _cache;
+        synths = new SynthesizerPool(Renderer.FORMAT, threads);
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 2),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Queue every project under a directory
+     * @param dir The directory to walk
+     * @param prefix The path of the directory relative to the input
+     */
+    public void submitDirectory(File dir, String prefix) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            report(prefix, "could not list directory");
+            return;
+        }
+        java.util.Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            String name = prefix + files[i].getName();
+            if (files[i].isDirectory()) {
+                submitDirectory(files[i], name + File.separator);
+            } else if (!files[i].isHidden()) {
+                submitFile(files[i], name);
+            }
+        }
+    }
+
+    /**
+     * Queue every encoded roll in a corpus file, one per line
+     * @param corpus The file to read
+     * @throws IOException The corpus could not be read
+     */
+    public void submitCorpus(File corpus) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(corpus), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    submit(new Export(line, null, String.valueOf(lineNumber)));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Queue one project file
+     * @param file The project
+     * @param name The project's path relative to the input
+     */
+    public void submitFile(File file, String name) {
+        submit(new Export(null, file, name));
+    }
+
+    private void submit(Export export) {
+        // blocks (by running the export here) when the queue is full
+        pool.execute(export);
+    }
+
+    /**
+     * Wait for every queued export to finish and print a summary
+     * @param started When the batch started, from System.nanoTime()
+     * @return True if every export succeeded
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public boolean finish(long started) throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        synths.close();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("%d exported (%d from cache), %d failed in %.1fs: %.1f projects/s, %.2f MB/s%n",
+                done.get(), cache.getHits(), failed.get(), seconds,
+                done.get() / seconds, bytes.get() / seconds / (1024 * 1024));
+        return failed.get() == 0;
+    }
+
+    private void report(String name, String message) {
+        failed.incrementAndGet();
+        System.err.println("FAIL " + name + ": " + message);
+    }
+
+    /**
+     * One project to export
+     */
+    private class Export implements Runnable {
+
+        private final String encoded;
+        private final File file;
+        private final String name;
+
+        Export(String _encoded, File _file, String _name) {
+            encoded = _encoded;
+            file = _file;
+            name = _name;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            long written = 0;
+            try {
+                Roll roll = file == null ? RollCodec.decode(encoded) : ProjectFile.read(file);
+                if (tempo > 0) {
+                    roll.setTempo(tempo);
+                }
+                String base = name;
+                int dot = base.lastIndexOf('.');
+                if (dot > base.lastIndexOf(File.separatorChar)) {
+                    base = base.substring(0, dot);
+                }
+                if (midi) {
+                    written += export(roll, new File(outDir, base + ".mid"), false);
+                }
+                if (wave) {
+                    written += export(roll, new File(outDir, base + ".wav"), true);
+                }
+            } catch (Exception e) {
+                report(name, String.valueOf(e.getMessage()));
+                return;
+            }
+            done.incrementAndGet();
+            bytes.addAndGet(written);
+            System.out.printf("ok   %s %dms %dk%n", name, (System.nanoTime() - start) / 1000000, written / 1024);
+        }
+
+        private long export(Roll roll, File out, boolean asWave) throws Exception {
+            byte[] data = asWave ? cache.wave(roll, synths) : cache.midi(roll);
+            out.getParentFile().mkdirs();
+            OutputStream os = new FileOutputStream(out);
+            try {
+                os.write(data);
+            } finally {
+                os.close();
+            }
+            return data.length;
+        }
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        boolean midi = false, wave = false;
+        int tempo = 0, threads = Runtime.getRuntime().availableProcessors(), i = 0;
+        File cacheDir = null;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                if (args[i].equals("-midi")) {
+                    midi = true;
+                } else if (args[i].equals("-wav")) {
+                    wave = true;
+                } else if (args[i].equals("-tempo")) {
+                    tempo = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-threads")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-cache")) {
+                    cacheDir = new File(args[++i]);
+                } else {
+                    usage();
+                }
+            }
+        } catch (RuntimeException e) {
+            usage();
+        }
+        if (args.length - i != 2 || threads < 1) {
+            usage();
+        }
+        if (!wave) {
+            midi = true;
+        }
+        File in = new File(args[i]);
+        RenderCache cache = new RenderCache(64 * 1024 * 1024, cacheDir, Long.MAX_VALUE);
+        Batch batch = new Batch(new File(args[i + 1]), midi, wave, tempo, threads, cache);
+        long started = System.nanoTime();
+        try {
+            if (in.isDirectory()) {
+                batch.submitDirectory(in, "");
+            } else {
+                batch.submitCorpus(in);
+            }
+            System.exit(batch.finish(started) ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Batch: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
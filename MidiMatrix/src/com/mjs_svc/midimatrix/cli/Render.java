@@ -0,0 +1,91 @@
+package com.mjs_svc.midimatrix.cli;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import com.mjs_svc.midimatrix.core.*;
+import java.io.*;
+
+/**
+ * Render a MIDIMatrix project to a MIDI or WAVE file from the command line,
+ * without a display:
+ *
+ * <pre>java -cp MidiMatrix.jar com.mjs_svc.midimatrix.cli.Render [-wav] [-tempo bpm] project output</pre>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class Render {
+
+    private static final String USAGE =
+            "usage: Render [-wav] [-tempo bpm] project output\n" +
+            "  project  a file holding an encoded roll or a session snapshot\n" +
+            "  output   the file to write; .wav files are rendered as audio";
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        boolean wave = false;
+        int tempo = -1, i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                if (args[i].equals("-wav")) {
+                    wave = true;
+                } else if (args[i].equals("-tempo")) {
+                    tempo = Integer.parseInt(args[++i]);
+                } else {
+                    usage();
+                }
+            }
+        } catch (RuntimeException e) {
+            usage();
+        }
+        if (args.length - i != 2) {
+            usage();
+        }
+        File in = new File(args[i]), out = new File(args[i + 1]);
+        wave = wave || out.getName().toLowerCase().endsWith(".wav");
+        try {
+            Roll roll = ProjectFile.read(in);
+            if (tempo > 0) {
+                roll.setTempo(tempo);
+            }
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(out));
+            try {
+                if (wave) {
+                    Renderer.writeWave(roll, os);
+                } else {
+                    Renderer.writeMidi(roll, os);
+                }
+            } finally {
+                os.close();
+            }
+        } catch (Exception e) {
+            System.err.println("Render: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,81 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+/**
+ * ChannelAllocator decides which MIDI port and channel each grid of a roll
+ * plays on, so that every grid has a channel (and so an instrument) of its
+ * own.  A port has sixteen channels: fifteen for pitched grids and the
+ * tenth, the General MIDI percussion channel, for one percussion grid.
+ * Pitched grids fill the first port's channels before spilling over onto
+ * the next; each percussion grid has a port's percussion channel.  Only
+ * when every port is full are channels shared.
+ *
+ * <p>Grids are numbered separately by kind, in the order they were
+ * enabled, so the same roll always gets the same channels.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class ChannelAllocator {
+
+    public static final int PORTS = 4, CHANNELS = 16, PERCUSSION = 9;
+    private static final int PITCHED = CHANNELS - 1; // pitched channels a port has
+
+    private ChannelAllocator() {
+    }
+
+    /**
+     * Find the port for a pitched grid
+     * @param n How many pitched grids were enabled before it
+     * @return The port
+     */
+    public static int pitchedPort(int n) {
+        return (n / PITCHED) % PORTS;
+    }
+
+    /**
+     * Find the channel for a pitched grid
+     * @param n How many pitched grids were enabled before it
+     * @return The channel, never the percussion channel
+     */
+    public static int pitchedChannel(int n) {
+        int channel = n % PITCHED;
+        return channel < PERCUSSION ? channel : channel + 1;
+    }
+
+    /**
+     * Find the port for a percussion grid, which always plays on the
+     * percussion channel
+     * @param n How many percussion grids were enabled before it
+     * @return The port
+     */
+    public static int percussionPort(int n) {
+        return n % PORTS;
+    }
+
+    /**
+     * Find the port a message is for
+     * @param message The message
+     * @return Its port, or 0 if it doesn't say
+     */
+    public static int portOf(javax.sound.midi.MidiMessage message) {
+        return message instanceof PortMessage ? ((PortMessage) message).getPort() : 0;
+    }
+}
@@ -0,0 +1,39 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import javax.sound.midi.Sequence;
+
+/**
+ * CompileListener is handed each sequence that a CompileService finishes
+ * compiling, unless a newer request has made it stale.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public interface CompileListener {
+
+    /**
+     * Called on the compile service's thread when a compile finishes
+     * @param sequence The compiled sequence, which must not be changed
+     * @param gridIndex The grid that was compiled, or CompileService.ROLL
+     * for the whole roll
+     */
+    public void compiled(Sequence sequence, int gridIndex);
+}
@@ -0,0 +1,175 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Sequence;
+
+/**
+ * CompileService compiles a roll, or one of its grids, on a background
+ * thread so that the thread editing the roll never waits for a compile.
+ *
+ * <p>Each request takes a snapshot of the roll (its RollCodec encoding, which
+ * is cheap to make) and waits a moment for more edits; a burst of requests is
+ * compiled once, from the last snapshot.  A request also makes any compile
+ * already under way stale, and stale results are thrown away rather than
+ * handed to the listener.  The roll itself is only ever touched by the thread
+ * making requests.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class CompileService {
+
+    public static final int ROLL = -1;     // request the whole roll rather than a grid
+    private static final long DEBOUNCE = 40, MAX_WAIT = 250; // milliseconds
+
+    private final Roll roll;
+    private final RenderCache cache;
+    private final CompileListener listener;
+    private final ScheduledExecutorService worker;
+    private final AtomicLong generation = new AtomicLong();
+    private ScheduledFuture<?> pending;
+    private long pendingSince;
+    private Roll copy; // the worker's own copy of the roll, decoded from snapshots
+
+    /**
+     * Start a compile service
+     * @param _roll The roll to compile
+     * @param _cache Where to keep compiled sequences
+     * @param _listener Who to give them to
+     */
+    public CompileService(Roll _roll, RenderCache _cache, CompileListener _listener) {
+        roll = _roll;
+        cache = _cache;
+        listener = _listener;
+        worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MIDIMatrix compiler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return The cache compiled sequences are kept in
+     */
+    public RenderCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Ask for the whole roll to be compiled soon
+     */
+    public void requestRoll() {
+        request(ROLL);
+    }
+
+    /**
+     * Ask for one grid to be compiled soon
+     * @param gridIndex The grid
+     */
+    public void requestGrid(int gridIndex) {
+        request(gridIndex);
+    }
+
+    /**
+     * Compile the whole roll right away, on this thread.  This is quick if
+     * the roll was compiled in the background since its last edit.
+     * @return The compiled sequence, which must not be changed
+     * @throws InvalidMidiDataException The roll could not be compiled
+     */
+    public Sequence compileRollNow() throws InvalidMidiDataException {
+        generation.incrementAndGet();
+        return cache.sequence(roll);
+    }
+
+    /**
+     * Compile one grid right away, on this thread
+     * @param gridIndex The grid
+     * @return The compiled sequence, which must not be changed
+     * @throws InvalidMidiDataException The grid could not be compiled
+     */
+    public Sequence compileGridNow(int gridIndex) throws InvalidMidiDataException {
+        generation.incrementAndGet();
+        return cache.gridSequence(roll, gridIndex);
+    }
+
+    /**
+     * Stop compiling
+     */
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+
+    private synchronized void request(final int target) {
+        final String snapshot = RollCodec.encode(roll);
+        final long requested = generation.incrementAndGet();
+
+        // put the compile off while edits keep coming, but not forever
+        long now = System.currentTimeMillis();
+        if (pending == null || pending.isDone()) {
+            pendingSince = now;
+        } else {
+            pending.cancel(false);
+        }
+        long delay = now - pendingSince >= MAX_WAIT ? 0 : DEBOUNCE;
+        pending = worker.schedule(new Runnable() {
+
+            public void run() {
+                compile(snapshot, target, requested);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compile a snapshot on the worker thread
+     */
+    private void compile(String snapshot, int target, long requested) {
+        if (requested != generation.get()) {
+            return;
+        }
+        try {
+            if (copy != null) {
+                try {
+                    RollCodec.decode(snapshot, copy);
+                } catch (IllegalArgumentException e) {
+                    // the roll changed shape
+                    copy = null;
+                }
+            }
+            if (copy == null) {
+                copy = RollCodec.decode(snapshot);
+            }
+            if (requested != generation.get()) {
+                return;
+            }
+            Sequence sequence = target == ROLL ? cache.sequence(copy) : cache.gridSequence(copy, target);
+            if (requested == generation.get()) {
+                listener.compiled(sequence, target);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
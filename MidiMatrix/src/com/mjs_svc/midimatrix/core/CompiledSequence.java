@@ -0,0 +1,85 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import javax.sound.midi.*;
+
+/**
+ * CompiledSequence is a compiled roll or grid that remembers the settings
+ * each of its tracks was compiled with, so that playback can tell how the
+ * notes it sends differ from what the grids' settings are now.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class CompiledSequence extends Sequence {
+
+    private final Part[] parts;
+
+    /**
+     * The settings a grid was compiled with
+     */
+    public static class Part {
+
+        final int port, channel, instrument, velocity;
+        final int[] pitches; // the note each row plays
+
+        /**
+         * Take a grid's settings as they are now
+         * @param grid The grid
+         */
+        public Part(Grid grid) {
+            port = grid.getPort();
+            channel = grid.getChannel();
+            instrument = grid.isPercussion() ? -1 : grid.getInstrument();
+            velocity = grid.getVelocity();
+            pitches = new int[grid.getHeight()];
+            for (int y = 0; y < pitches.length; y++) {
+                pitches[y] = grid.getPitch(y);
+            }
+        }
+    }
+
+    /**
+     * Copy a compiled sequence, with the settings of its tracks' grids
+     * @param compiled The sequence
+     * @param _parts The settings each track was compiled with, or null for
+     * a track of no grid
+     * @throws InvalidMidiDataException The sequence's timing isn't valid
+     */
+    public CompiledSequence(Sequence compiled, Part[] _parts) throws InvalidMidiDataException {
+        super(compiled.getDivisionType(), compiled.getResolution(), compiled.getTracks().length);
+        parts = _parts;
+        Track[] from = compiled.getTracks(), to = getTracks();
+        for (int i = 0; i < from.length; i++) {
+            for (int j = 0; j < from[i].size(); j++) {
+                to[i].add(from[i].get(j));
+            }
+        }
+    }
+
+    /**
+     * Get the settings a track was compiled with
+     * @param track The track
+     * @return The settings, or null if the track isn't a grid's
+     */
+    public Part getPart(int track) {
+        return track < parts.length ? parts[track] : null;
+    }
+}
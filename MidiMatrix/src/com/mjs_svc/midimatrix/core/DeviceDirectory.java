@@ -0,0 +1,226 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.*;
+import javax.sound.midi.*;
+
+/**
+ * DeviceDirectory finds the MIDI devices that playback can be sent to, and
+ * those that can be recorded from, away from the thread that asks.  Opening a device to see whether it takes MIDI
+ * can be slow when there are many virtual ports, so each device is looked at
+ * once and what was found is kept until the device goes away.  Any receiver
+ * opened to look is closed again straight away.
+ *
+ * <p>Once started, the directory looks at the list of devices every so often
+ * and tells its listeners when outputs or inputs come or go.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class DeviceDirectory {
+
+    public static final long POLL = 5000; // milliseconds
+
+    private final ScheduledExecutorService worker;
+    private final Map<MidiDevice.Info, Capabilities> known = new HashMap<MidiDevice.Info, Capabilities>();
+    private final Vector<DeviceListener> listeners = new Vector<DeviceListener>();
+    private volatile MidiDevice.Info[] outputs;
+    private volatile MidiDevice.Info[] inputs;
+    private volatile MidiDevice.Info synthesizer;
+
+    /**
+     * What a device was found to be able to do
+     */
+    private static class Capabilities {
+
+        private final boolean output, synthesizer, input;
+
+        private Capabilities(boolean _output, boolean _synthesizer, boolean _input) {
+            output = _output;
+            synthesizer = _synthesizer;
+            input = _input;
+        }
+    }
+
+    /**
+     * Create a directory; nothing is looked at until start() is called
+     */
+    public DeviceDirectory() {
+        worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MIDIMatrix devices");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Look at the devices now, then again every so often
+     * @param period How often to look for devices plugged in or unplugged,
+     * in milliseconds
+     */
+    public void start(long period) {
+        worker.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                scan();
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop looking for devices
+     */
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+
+    /**
+     * Be told when outputs or inputs come or go.  A listener added after the
+     * first look is told about the devices found so far straight away.
+     * @param listener The listener
+     */
+    public void addDeviceListener(final DeviceListener listener) {
+        listeners.add(listener);
+        worker.execute(new Runnable() {
+
+            public void run() {
+                if (outputs != null) {
+                    listener.devicesChanged(DeviceDirectory.this, outputs);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop being told when outputs or inputs come or go
+     * @param listener The listener
+     */
+    public void removeDeviceListener(DeviceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the devices that accept MIDI
+     * @return The devices, or null if they haven't been looked at yet
+     */
+    public MidiDevice.Info[] getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Get the devices that MIDI can be recorded from, e.g.: keyboards and
+     * controllers
+     * @return The devices, or null if they haven't been looked at yet
+     */
+    public MidiDevice.Info[] getInputs() {
+        return inputs;
+    }
+
+    /**
+     * Get the first synthesizer among the outputs
+     * @return The synthesizer, or null if there is none (or the devices
+     * haven't been looked at yet)
+     */
+    public MidiDevice.Info getSynthesizer() {
+        return synthesizer;
+    }
+
+    /**
+     * List the devices, looking at any that are new, and tell the listeners
+     * if the outputs or inputs have changed
+     */
+    private void scan() {
+        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
+        Map<MidiDevice.Info, Capabilities> present = new HashMap<MidiDevice.Info, Capabilities>();
+        Vector<MidiDevice.Info> found = new Vector<MidiDevice.Info>();
+        Vector<MidiDevice.Info> foundInputs = new Vector<MidiDevice.Info>();
+        MidiDevice.Info firstSynth = null;
+        for (int i = 0; i < infos.length; i++) {
+            Capabilities capabilities = known.get(infos[i]);
+            if (capabilities == null) {
+                capabilities = probe(infos[i]);
+            }
+            present.put(infos[i], capabilities);
+            if (capabilities.output) {
+                found.add(infos[i]);
+                if (capabilities.synthesizer && firstSynth == null) {
+                    firstSynth = infos[i];
+                }
+            }
+            if (capabilities.input) {
+                foundInputs.add(infos[i]);
+            }
+        }
+        known.clear();
+        known.putAll(present);
+
+        MidiDevice.Info[] latest = found.toArray(new MidiDevice.Info[found.size()]);
+        MidiDevice.Info[] latestInputs = foundInputs.toArray(new MidiDevice.Info[foundInputs.size()]);
+        if (outputs != null && Arrays.equals(outputs, latest) && Arrays.equals(inputs, latestInputs)) {
+            return;
+        }
+        inputs = latestInputs;
+        outputs = latest;
+        synthesizer = firstSynth;
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).devicesChanged(this, latest);
+        }
+    }
+
+    /**
+     * Find out whether a device takes MIDI, closing anything opened to do
+     * so, and whether it sends MIDI of its own (the sequencer and
+     * synthesizers only pass on what they're sent, so don't count)
+     */
+    private static Capabilities probe(MidiDevice.Info info) {
+        MidiDevice device;
+        try {
+            device = MidiSystem.getMidiDevice(info);
+        } catch (Exception e) {
+            return new Capabilities(false, false, false);
+        }
+        boolean synth = device instanceof Synthesizer;
+        boolean input = !synth && !(device instanceof Sequencer) && device.getMaxTransmitters() != 0;
+        int max = device.getMaxReceivers();
+        if (max == 0) {
+            return new Capabilities(false, synth, input);
+        }
+        // the count can't always be trusted, so make sure a receiver can be had
+        Receiver receiver = null;
+        try {
+            receiver = device.getReceiver();
+            return new Capabilities(receiver != null, synth, input);
+        } catch (Exception e) {
+            return new Capabilities(false, synth, input);
+        } finally {
+            if (receiver != null) {
+                receiver.close();
+            }
+        }
+    }
+}
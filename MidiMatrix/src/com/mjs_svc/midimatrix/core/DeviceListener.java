@@ -0,0 +1,40 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import javax.sound.midi.MidiDevice;
+
+/**
+ * DeviceListener is told when the MIDI devices that playback can be sent to,
+ * or recorded from, change, e.g.: when one is plugged in or unplugged.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public interface DeviceListener {
+
+    /**
+     * Called on the device directory's thread when the list of outputs or
+     * of inputs (see DeviceDirectory.getInputs()) changes
+     * @param directory The directory that found the change
+     * @param outputs Every device that accepts MIDI, in the order the MIDI
+     * system lists them
+     */
+    public void devicesChanged(DeviceDirectory directory, MidiDevice.Info[] outputs);
+}
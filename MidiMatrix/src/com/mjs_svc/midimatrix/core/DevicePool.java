@@ -0,0 +1,251 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import javax.sound.midi.*;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * DevicePool keeps the MIDI devices played through most recently open, each
+ * with a receiver, so that going back to one doesn't mean opening it (and,
+ * for a synthesizer, loading its soundbank) again.  When more than
+ * <code>size</code> devices have been used, the one used longest ago is
+ * closed, unless it has been pinned because it is still being played
+ * through.
+ *
+ * <p>The JDK's software synthesizer can be opened with properties of its
+ * own, e.g.: not to load its default soundbank.</p>
+ *
+ * <p>Devices may be asked for from any thread.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class DevicePool {
+
+    private final int size;
+    private final LinkedHashMap<MidiDevice.Info, Warm> open = new LinkedHashMap<MidiDevice.Info, Warm>(16, 0.75f, true);
+    private final Map<MidiDevice.Info, Integer> pinned = new HashMap<MidiDevice.Info, Integer>();
+    private Map<String, Object> properties = null; // How to open software synthesizers, or null for their defaults
+
+    /**
+     * An open device and the receiver it is played through
+     */
+    private static class Warm {
+
+        private final MidiDevice device;
+        private final Receiver receiver;
+
+        private Warm(MidiDevice _device, Receiver _receiver) {
+            device = _device;
+            receiver = _receiver;
+        }
+
+        private void close() {
+            receiver.close();
+            device.close();
+        }
+    }
+
+    /**
+     * Create an empty pool; devices are opened as they are asked for
+     * @param _size The most devices to keep open
+     */
+    public DevicePool(int _size) {
+        size = _size;
+    }
+
+    /**
+     * Get a receiver for a device, opening the device if it isn't already
+     * @param info The device
+     * @return The device's receiver, which stays open while the device is
+     * in the pool and must not be closed by the caller
+     * @throws MidiUnavailableException The device could not be opened
+     */
+    public synchronized Receiver getReceiver(MidiDevice.Info info) throws MidiUnavailableException {
+        Warm warm = open.get(info);
+        if (warm != null) {
+            return warm.receiver;
+        }
+        MidiDevice device = MidiSystem.getMidiDevice(info);
+        open(device);
+        try {
+            warm = new Warm(device, device.getReceiver());
+        } catch (MidiUnavailableException e) {
+            device.close();
+            throw e;
+        }
+        open.put(info, warm);
+
+        // close whatever has gone unused the longest
+        Iterator<Map.Entry<MidiDevice.Info, Warm>> eldest = open.entrySet().iterator();
+        while (open.size() > size && eldest.hasNext()) {
+            Map.Entry<MidiDevice.Info, Warm> entry = eldest.next();
+            if (!pinned.containsKey(entry.getKey())) {
+                entry.getValue().close();
+                eldest.remove();
+            }
+        }
+        return warm.receiver;
+    }
+
+    /**
+     * Get a device that is open in the pool
+     * @param info The device
+     * @return The device, or null if it isn't open
+     */
+    public synchronized MidiDevice getDevice(MidiDevice.Info info) {
+        Warm warm = open.get(info);
+        return warm == null ? null : warm.device;
+    }
+
+    /**
+     * Get every device open in the pool
+     * @return The devices
+     */
+    public synchronized Vector<MidiDevice> getDevices() {
+        Vector<MidiDevice> devices = new Vector<MidiDevice>();
+        for (Warm warm : open.values()) {
+            devices.add(warm.device);
+        }
+        return devices;
+    }
+
+    /**
+     * Set the properties software synthesizers are opened with from now on,
+     * e.g.: "load default soundbank"; those already open keep theirs
+     * @param _properties The properties, or null for the synthesizers'
+     * defaults
+     */
+    public synchronized void setSynthesizerProperties(Map<String, Object> _properties) {
+        properties = _properties == null ? null : new HashMap<String, Object>(_properties);
+    }
+
+    /**
+     * Open a device afresh in place of the one open, e.g.: for a
+     * synthesizer to take on new properties.  The old device is taken out
+     * of the pool but left open, for whatever plays through it to be
+     * switched over first.
+     * @param info The device
+     * @return The old device, to be closed by the caller, or null if it
+     * wasn't open
+     * @throws MidiUnavailableException The device could not be opened; the
+     * old one is kept
+     */
+    public synchronized MidiDevice reopen(MidiDevice.Info info) throws MidiUnavailableException {
+        Warm old = open.remove(info);
+        try {
+            getReceiver(info);
+        } catch (MidiUnavailableException e) {
+            if (old != null) {
+                open.put(info, old);
+            }
+            throw e;
+        }
+        return old == null ? null : old.device;
+    }
+
+    /**
+     * Open another of a device apart from the pool, e.g.: to try out
+     * properties without touching the one played through
+     * @param info The device
+     * @param _properties The properties to open it with if it is a
+     * software synthesizer, or null for its defaults
+     * @return The device, to be closed by the caller
+     * @throws MidiUnavailableException The device could not be opened
+     */
+    public MidiDevice openApart(MidiDevice.Info info, Map<String, Object> _properties) throws MidiUnavailableException {
+        MidiDevice device = MidiSystem.getMidiDevice(info);
+        open(device, _properties);
+        return device;
+    }
+
+    /**
+     * Open a device, with the pool's properties if it is a software
+     * synthesizer.  The method taking them isn't part of the public API, so
+     * without access to it (see Renderer.openStream()) the synthesizer is
+     * opened with its defaults.
+     * @param device The device
+     * @throws MidiUnavailableException The device could not be opened
+     */
+    private void open(MidiDevice device) throws MidiUnavailableException {
+        open(device, properties);
+    }
+
+    private static void open(MidiDevice device, Map<String, Object> properties) throws MidiUnavailableException {
+        if (properties != null) {
+            try {
+                Method withProperties = device.getClass().getMethod("open", SourceDataLine.class, Map.class);
+                withProperties.invoke(device, new Object[]{null, properties});
+                return;
+            } catch (NoSuchMethodException e) {
+                // not a software synthesizer
+            } catch (IllegalAccessException e) {
+                // not exported to us
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof MidiUnavailableException) {
+                    throw (MidiUnavailableException) e.getCause();
+                }
+                throw new MidiUnavailableException(String.valueOf(e.getCause()));
+            }
+        }
+        device.open();
+    }
+
+    /**
+     * Keep a device open however long ago it was asked for, until it is
+     * unpinned as many times as it was pinned
+     * @param info The device
+     */
+    public synchronized void pin(MidiDevice.Info info) {
+        Integer count = pinned.get(info);
+        pinned.put(info, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+    }
+
+    /**
+     * Let a pinned device be closed to make room again
+     * @param info The device
+     */
+    public synchronized void unpin(MidiDevice.Info info) {
+        Integer count = pinned.get(info);
+        if (count == null || count.intValue() <= 1) {
+            pinned.remove(info);
+        } else {
+            pinned.put(info, Integer.valueOf(count.intValue() - 1));
+        }
+    }
+
+    /**
+     * Close every device in the pool
+     */
+    public synchronized void close() {
+        for (Warm warm : open.values()) {
+            warm.close();
+        }
+        open.clear();
+        pinned.clear();
+    }
+}
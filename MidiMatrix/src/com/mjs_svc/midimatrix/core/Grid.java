@@ -0,0 +1,796 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import javax.sound.midi.*;
+import java.util.*;
+
+/**
+ * Grid represents a (currently) 16x16 grid of cells.  The cells in the grid
+ * contain information that tells when a note starts or ends, allowing for notes
+ * of any duration up to 16.  This information is compiled into a MIDI track.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class Grid {
+
+    // Data
+    
+    protected Scale scale;       // What notes to populate the grid with
+    protected int width, height; // The width and height of the grid
+    protected int instrument;    // What instrument to play the notes in
+    protected int key;           // What note is the lowest y value set to
+    protected int velocity;      // What volume to play the grid at
+    protected int channel;       // What MIDI channel to play the grid on
+    protected int port;          // What MIDI port the channel is on
+    protected boolean muted;     // Whether the grid should be muted
+    protected boolean solo;      // Whether the grid should be solo
+    protected Track track;	 // The actual MIDI representation of the grid
+    protected boolean[][][] grid;  // The grid itself
+    private int[] pitches;         // The note each row plays, kept in step with key and scale
+    protected long fingerprint;    // Zobrist hash of everything compile() reads
+    private long compiledFingerprint; // The fingerprint when the track was last compiled
+    private boolean compiled = false;
+    public Vector<String> instrumentList;  // The list of instruments possible
+    private static final Vector<String> instruments = new Vector<String>(); // Shared by every grid
+
+    static {
+        buildInstrumentList();
+    }
+    public static final int lowBound = 0, highBound = 127;  // Low and high notes
+    private static final int PARAM_SCALE = 1, PARAM_INSTRUMENT = 2, PARAM_KEY = 3, PARAM_VELOCITY = 4, PARAM_CHANNEL = 5,
+            PARAM_PORT = 6;
+
+    /**
+     * Construct a new Grid
+     * @param _width The width of the grid (how many notes long it is)
+     * @param _height The height of the grid (how many pitches for each column)
+     * @param _scale The scale to use for the grid
+     * @param _instrument The instrument to use for the grid
+     * @param _key The key to use for the grid (middle C = 60)
+     * @param _velocity The velocity (volume) of the grid
+     * @param _track A javax.sound.midi.Track object for compilation
+     */
+    public Grid(int _width, int _height, Scale _scale, int _instrument, int _key, int _velocity, Track _track) {
+        // Set all the protected data
+        width = _width;
+        height = _height;
+        scale = _scale;
+        instrument = _instrument;
+        key = _key;
+        velocity = _velocity;
+        muted = false;
+        solo = false;
+        track = _track;
+
+        // grid represents our 16x16 tone matrix.  Each of the 256 slots has space for a noteOff signal and a noteOn signal;
+        //      this way, a note is held until the next noteOff signal is reached
+        grid = new boolean[width][height][2];
+        pitches = new int[height];
+        buildPitches();
+
+        // All grids share the same instrumentList vector
+        instrumentList = instruments;
+
+        // an empty grid's fingerprint covers only its settings; each cell
+        // toggled on later mixes in that cell's own random-looking value
+        fingerprint = mix(isPercussion() ? 1 : 2) ^ mix(((long) width << 32) | height)
+                ^ paramHash(PARAM_SCALE, scaleHash(scale))
+                ^ paramHash(PARAM_INSTRUMENT, instrument)
+                ^ paramHash(PARAM_KEY, key)
+                ^ paramHash(PARAM_VELOCITY, velocity)
+                ^ paramHash(PARAM_CHANNEL, channel)
+                ^ paramHash(PARAM_PORT, port);
+    }
+
+    /**
+     * Scramble a number; the finalizer of the SplitMix64 generator
+     * @param z The number to scramble
+     * @return A well-mixed 64 bit value
+     */
+    protected static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long cellHash(int x, int y, int which) {
+        return mix(0x43454C4C00000000L ^ ((long) x << 17) ^ (y << 1) ^ which);
+    }
+
+    private static long paramHash(int param, long value) {
+        return mix(((long) param << 56) ^ value);
+    }
+
+    private static long scaleHash(Scale _scale) {
+        return Arrays.hashCode(_scale.getScale());
+    }
+
+    /**
+     * Set a noteOn or noteOff in a cell, keeping the fingerprint up to date
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param which 0 for the noteOn, 1 for the noteOff
+     * @param value Whether the message is set
+     */
+    protected void setCell(int x, int y, int which, boolean value) {
+        if (grid[x][y][which] != value) {
+            grid[x][y][which] = value;
+            fingerprint ^= cellHash(x, y, which);
+        }
+    }
+
+    /**
+     * Swap one setting's contribution to the fingerprint for another's
+     */
+    private void changeParam(int param, long oldValue, long newValue) {
+        fingerprint ^= paramHash(param, oldValue) ^ paramHash(param, newValue);
+    }
+
+    /**
+     * Get a fingerprint of the grid: a 64 bit hash of its cells and every
+     * setting that changes how it compiles, kept up to date on every edit.
+     * Equal grids have equal fingerprints, and a different fingerprint
+     * means the grid has changed.
+     * @return The fingerprint
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Tell whether this grid plays percussion rather than pitched notes
+     * @return False for a normal grid
+     */
+    public boolean isPercussion() {
+        return false;
+    }
+
+    /**
+     * Populates the shared instrumentList vector with strings used for display
+     */
+    private static void buildInstrumentList() {
+        // Keyboards
+        instruments.add("Acoustic Grand Piano");
+        instruments.add("Bright Acoustic Piano");
+        instruments.add("Electric Grand Piano");
+        instruments.add("Honky-tonk Piano");
+        instruments.add("Rhodes Piano");
+        instruments.add("Chorused Piano");
+        instruments.add("Harpsichord");
+        instruments.add("Clavinet");
+
+        // Chromatic percussion
+        instruments.add("Celesta");
+        instruments.add("Glockenspiel");
+        instruments.add("Music Box");
+        instruments.add("Vibraphone");
+        instruments.add("Marimba");
+        instruments.add("Xylophone");
+        instruments.add("Tubular Bells");
+        instruments.add("Dulcimer");
+
+        // Organs
+        instruments.add("Hammond Organ");
+        instruments.add("Percussive Organ");
+        instruments.add("Rock Organ");
+        instruments.add("Church Organ");
+        instruments.add("Reed Organ");
+        instruments.add("Accordion");
+        instruments.add("Harmonica");
+        instruments.add("Tango Accordion");
+
+        // Guitars
+        instruments.add("Acoustic Guitar (nylon)");
+        instruments.add("Acoustic Guitar (steel)");
+        instruments.add("Electric Guitar (jazz)");
+        instruments.add("Electric Guitar (clean)");
+        instruments.add("Electric Guitar (muted)");
+        instruments.add("Overdriven Guitar");
+        instruments.add("Distortion Guitar");
+        instruments.add("Guitar Harmonics");
+
+        // Basses
+        instruments.add("Acoustic Bass");
+        instruments.add("Electric Bass (finger)");
+        instruments.add("Electric Bass (pick)");
+        instruments.add("Fretless Bass");
+        instruments.add("Slap Bass 1");
+        instruments.add("Slap Bass 2");
+        instruments.add("Synth Bass 1");
+        instruments.add("Synth Bass 2");
+
+        // Strings 1
+        instruments.add("Violin");
+        instruments.add("Viola");
+        instruments.add("Cello");
+        instruments.add("Contrabass");
+        instruments.add("Tremolo Strings");
+        instruments.add("Pizzicato Strings");
+        instruments.add("Orchestral Harp");
+        instruments.add("Timpani");
+
+        // Strings 2
+        instruments.add("String Ensemble 1");
+        instruments.add("String Ensemble 2");
+        instruments.add("SynthStrings 1");
+        instruments.add("SynthStrings 2");
+        instruments.add("Choir Aahs");
+        instruments.add("Voice Oohs");
+        instruments.add("Synth Voice");
+        instruments.add("Orchestra Hit");
+
+        // Brass
+        instruments.add("Trumpet");
+        instruments.add("Trombone");
+        instruments.add("Tuba");
+        instruments.add("Muted Trumpet");
+        instruments.add("French Horn");
+        instruments.add("Brass Section");
+        instruments.add("Synth Brass 1");
+        instruments.add("Synth Brass 2");
+
+        // Reeds
+        instruments.add("Soprano Sax");
+        instruments.add("Alto Sax");
+        instruments.add("Tenor Sax");
+        instruments.add("Baritone Sax");
+        instruments.add("Oboe");
+        instruments.add("English Horn");
+        instruments.add("Bassoon");
+        instruments.add("Clarinet");
+
+        // Winds
+        instruments.add("Piccolo");
+        instruments.add("Flute");
+        instruments.add("Recorder");
+        instruments.add("Pan Flute");
+        instruments.add("Bottle Blow");
+        instruments.add("Shakuhachi");
+        instruments.add("Whistle");
+        instruments.add("Ocarina");
+
+        // Synth Leads
+        instruments.add("Lead 1 (square)");
+        instruments.add("Lead 2 (sawtooth)");
+        instruments.add("Lead 3 (calliope lead)");
+        instruments.add("Lead 4 (chiff lead)");
+        instruments.add("Lead 5 (charang)");
+        instruments.add("Lead 6 (voice)");
+        instruments.add("Lead 7 (fifths)");
+        instruments.add("Lead 8 (bass + lead)");
+
+        // Synth Pads
+        instruments.add("Pad 1 (new age)");
+        instruments.add("Pad 2 (warm)");
+        instruments.add("Pad 3 (polysynth)");
+        instruments.add("Pad 4 (choir)");
+        instruments.add("Pad 5 (bowed)");
+        instruments.add("Pad 6 (metallic)");
+        instruments.add("Pad 7 (halo)");
+        instruments.add("Pad 8 (sweep)");
+
+        // Synth Effects
+        instruments.add("FX 1 (rain)");
+        instruments.add("FX 2 (soundtrack)");
+        instruments.add("FX 3 (crystal)");
+        instruments.add("FX 4 (atmosphere)");
+        instruments.add("FX 5 (brightness)");
+        instruments.add("FX 6 (goblins)");
+        instruments.add("FX 7 (echoes)");
+        instruments.add("FX 8 (sci-fi)");
+
+        // Ethnic
+        instruments.add("Sitar");
+        instruments.add("Banjo");
+        instruments.add("Shamisen");
+        instruments.add("Koto");
+        instruments.add("Kalimba");
+        instruments.add("Bagpipe");
+        instruments.add("Fiddle");
+        instruments.add("Shanai");
+
+        // Percussion
+        instruments.add("Tinkle Bell");
+        instruments.add("Agogo");
+        instruments.add("Steel Drums");
+        instruments.add("Woodblock");
+        instruments.add("Taiko Drum");
+        instruments.add("Melodic Tom");
+        instruments.add("Synth Drum");
+        instruments.add("Reverse Cymbal");
+        instruments.add("Guitar Fret Noise");
+
+        // Sound Effects
+        instruments.add("Breath Noise");
+        instruments.add("Seashore");
+        instruments.add("Bird Tweet");
+        instruments.add("Telephone Ring");
+        instruments.add("Helicopter");
+        instruments.add("Applause");
+        instruments.add("Gunshot");
+    }
+
+    /**
+     * Set the instrument of the grid
+     * @param _instrument The instrument
+     */
+    public void setInstrument(int _instrument) {
+        changeParam(PARAM_INSTRUMENT, instrument, _instrument);
+        instrument = _instrument;
+    }
+
+    /**
+     * Get the instrument of the grid
+     * @return The instrument
+     */
+    public int getInstrument() {
+        return instrument;
+    }
+
+    /**
+     * Set the scale of the grid
+     * @param _scale The scale
+     */
+    public void setScale(Scale _scale) {
+        changeParam(PARAM_SCALE, scaleHash(scale), scaleHash(_scale));
+        scale = _scale;
+        buildPitches();
+    }
+
+    /**
+     * Get the scale of the grid
+     * @return The scale
+     */
+    public Scale getScale() {
+        return scale;
+    }
+
+    /**
+     * @deprecated Use setVelocity()
+     * @see #setVelocity(int)
+     */
+    @Deprecated
+    public void velocityUp() {
+        // make sure 127 is our top velocity
+        setVelocity((velocity + 16 > 127) ? 127 : velocity + 16);
+    }
+
+    /**
+     * @deprecated Use setVelocity()
+     * @see #setVelocity(int)
+     */
+    @Deprecated
+    public void velocityDown() {
+        // make sure 0 is our bottom velocity
+        setVelocity((velocity - 16 < 0) ? 0 : velocity - 16);
+    }
+
+    /**
+     * Set the velocity (volume) of the grid
+     * @param _velocity
+     * @throws IndexOutOfBoundsException
+     */
+    public void setVelocity(int _velocity) throws IndexOutOfBoundsException {
+        if (_velocity >= 0 && _velocity <= 127) {
+            changeParam(PARAM_VELOCITY, velocity, _velocity);
+            velocity = _velocity;
+        } else {
+            throw new IndexOutOfBoundsException("Velocity must be between 0 and 127");
+        }
+    }
+
+    /**
+     * Return the velocity (volume) of the grid
+     * @return The velocity
+     */
+    public int getVelocity() {
+        return velocity;
+    }
+
+    /**
+     * Set the MIDI channel the grid plays on
+     * @param _channel The channel, from 0 to 15
+     */
+    public void setChannel(int _channel) {
+        changeParam(PARAM_CHANNEL, channel, _channel);
+        channel = _channel;
+    }
+
+    /**
+     * Get the MIDI channel the grid plays on
+     * @return The channel
+     */
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * Set the MIDI port the grid plays on
+     * @param _port The port, from 0 to ChannelAllocator.PORTS - 1
+     * @see com.mjs_svc.midimatrix.core.ChannelAllocator
+     */
+    public void setPort(int _port) {
+        changeParam(PARAM_PORT, port, _port);
+        port = _port;
+    }
+
+    /**
+     * Get the MIDI port the grid plays on
+     * @return The port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Create a message for the grid's port, to be set with setMessage()
+     * @return The message
+     */
+    protected ShortMessage newMessage() {
+        return port == 0 ? new ShortMessage() : new PortMessage(port);
+    }
+
+    /**
+     * Get the note a row of the grid plays, with the grid's key and scale
+     * @param y Y coordinate
+     * @return The MIDI note number
+     */
+    public int getPitch(int y) {
+        return pitches[y];
+    }
+
+    /**
+     * Work out the note for every row once, so that looking one up - as
+     * auditioning a cell does - costs nothing
+     */
+    private void buildPitches() {
+        for (int y = 0; y < height; y++) {
+            pitches[y] = key + scale.getNoteNumberByScaleDegree((height - 1) - y);
+        }
+    }
+
+    /**
+     * Set whether the grid is muted.  Muting is applied as the grid is
+     * played rather than compiled, so it isn't part of the fingerprint.
+     * @param _muted True to mute
+     */
+    public void setMuted(boolean _muted) {
+        muted = _muted;
+    }
+
+    /**
+     * Tell whether the grid is muted
+     * @return True if muted
+     */
+    public boolean isMuted() {
+        return muted;
+    }
+
+    /**
+     * Set whether the grid is solo; while any grid is, only solo grids are
+     * heard.  Like muting, this isn't part of the fingerprint.
+     * @param _solo True to solo
+     */
+    public void setSolo(boolean _solo) {
+        solo = _solo;
+    }
+
+    /**
+     * Tell whether the grid is solo
+     * @return True if solo
+     */
+    public boolean isSolo() {
+        return solo;
+    }
+
+    /**
+     * Set the key of the grid (middle C = 60)
+     * @param _key The new key of the grid
+     * @throws IndexOutOfBoundsException Upper note of the scale can't be more
+     * than 127, and the lower not less than 0
+     */
+    public void setKey(int _key) throws IndexOutOfBoundsException {
+        // make sure that the note at the top of the scale is no greater than 127 and the bottom no lower than 0
+        if (lowBound < _key && key + scale.getNoteNumberByScaleDegree(height) < highBound) {
+            setKeyUnchecked(_key);
+        } else {
+            throw new IndexOutOfBoundsException("Key must be between " + lowBound + " and " + String.valueOf(highBound - scale.getNoteNumberByScaleDegree(height)) + " for this key");
+        }
+    }
+
+    /**
+     * Set the key without checking it, for restoring saved state
+     * @param _key The new key of the grid
+     */
+    void setKeyUnchecked(int _key) {
+        changeParam(PARAM_KEY, key, _key);
+        key = _key;
+        buildPitches();
+    }
+
+    /**
+     * Returns the key of the grid
+     * @return The key
+     */
+    public int getKey() {
+        return key;
+    }
+
+    /**
+     * @deprecated
+     * @see #setKey(int)
+     */
+    @Deprecated
+    public void octaveUp() {
+        setKey(key + 12);
+    }
+
+    /**
+     * @deprecated
+     * @see #setKey(int)
+     */
+    @Deprecated
+    public void octaveDown() {
+        setKey(key - 12);
+    }
+
+    /**
+     * Check to see if the cell is currently "on"
+     * @param x X coordinate
+     * @param y Y coordiante
+     * @return The status of the cell
+     */
+    public boolean noteStatus(int x, int y) {
+        // check to see if note is currently on by looking for noteOns and adjusting for noteOffs
+        boolean status = false;
+        for (int i = 0; i <= x; i++) {
+            if (grid[i][y][0]) {
+                status = true;
+            }
+            if (grid[i][y][1] && i < x) {
+                status = false;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Get the length of a note, given the known start
+     * @param x X coordinate of start
+     * @param y Y coordinate of start
+     * @return The length of the note or 0
+     */
+    public int noteLength(int x, int y) {
+        // return the length of the note
+        // make sure this is a noteOn cell
+        if (grid[x][y][0]) {
+            // loop until we find the noteOff cell
+            for (int i = x; i < width; i++) {
+                if (grid[i][y][1]) {
+                    return (i - x) + 1;
+                }
+            }
+            // should never happen, but 0 is safe
+            return 0;
+        } else {
+            // otherwise return 0
+            return 0;
+        }
+    }
+
+    /**
+     * Check whether a noteOn message is set in a cell
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @return True if the cell starts a note
+     */
+    public boolean hasNoteOn(int x, int y) {
+        return grid[x][y][0];
+    }
+
+    /**
+     * Check whether a noteOff message is set in a cell
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @return True if the cell ends a note
+     */
+    public boolean hasNoteOff(int x, int y) {
+        return grid[x][y][1];
+    }
+
+    /**
+     * Copy the grid's notes, so that they can be read on another thread
+     * @return The copy, indexed [x][y][0] for note-ons and [x][y][1] for
+     * note-offs
+     */
+    public boolean[][][] copyNotes() {
+        boolean[][][] copy = new boolean[width][height][];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                copy[x][y] = grid[x][y].clone();
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Get the width of the grid
+     * @return How many notes long the grid is
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the height of the grid
+     * @return How many pitches are in each column
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Toggle the noteOn message for fine control
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+    public void toggleNoteOn(int x, int y) {
+        setCell(x, y, 0, !grid[x][y][0]);
+    }
+
+    /**
+     * Toggle the noteOff message for fine control
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+    public void toggleNoteOff(int x, int y) {
+        setCell(x, y, 1, !grid[x][y][1]);
+    }
+
+    /**
+     * Given an empty cell, toggle it to on; given a full cell, toggle the
+     * entire note off, even if it's a long one.
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+    public void toggleNote(int x, int y) {
+        // toggle one grid cell, but give the option to turn a long note off
+
+        // check if we're turning a note off
+        if (grid[x][y][0]) {
+            // remove the noteOn
+            setCell(x, y, 0, false);
+
+            // search for the noteOff
+            for (int i = x; i < width; i++) {
+                if (grid[i][y][1]) {
+                    setCell(i, y, 1, false);
+                    return;
+                }
+            }
+        } else {
+            // otherwise, turn one cell on
+            toggleNote(x, y, 0);
+
+        }
+    }
+
+    /**
+     * Toggle a note of a given duration (mostly for turning a note on)
+     * @param x X coordinate of start
+     * @param y Y coordinate of start
+     * @param duration Duration of the note
+     */
+    public void toggleNote(int x, int y, int duration) {
+        // toggle a note of a certain duration
+        if (noteStatus(x + duration, y) && x + duration < width - 1 && !grid[x + duration][y][1]) {
+            // if we're ending in the middle of a note, add a noteOn
+            setCell(x + duration + 1, y, 0, true);
+        }
+        if (noteStatus(x - 1, y)) {
+            // if we're starting in the middle of a note, add a noteOff
+            setCell(x - 1, y, 1, true);
+        }
+        if (!noteStatus(x, y)) {
+            // otherwise, remove everything else if we're turning something on
+            for (int i = x; i <= x + duration; i++) {
+                setCell(i, y, 0, false);
+                setCell(i, y, 1, false);
+            }
+        }
+
+        // toggle the note
+        setCell(x, y, 0, !grid[x][y][0]);
+        setCell(x + duration, y, 1, grid[x][y][0]); // ensure the same signal is being sent to noteOff as to noteOn rather than relying on existing conditions
+    }
+
+    /**
+     * Compile a grid into a MIDI track for playback.  If nothing has changed
+     * since the last compile, the track is returned as it is.
+     * @return The javax.sound.midi.Track object containing the grid
+     * @throws InvalidMidiDataException
+     */
+    public Track compile() throws InvalidMidiDataException {
+        if (compiled && compiledFingerprint == fingerprint) {
+            return track;
+        }
+        compiledFingerprint = fingerprint;
+        compiled = true;
+        return compileTrack();
+    }
+
+    /**
+     * Empty the track, ready to compile into it again
+     */
+    protected void clearTrack() {
+        // work backwards, since removing shifts the later events down
+        for (int i = track.size() - 1; i >= 0; i--) {
+            track.remove(track.get(i));
+        }
+    }
+
+    /**
+     * Compile the grid into its track, whether or not it has changed
+     * @return The javax.sound.midi.Track object containing the grid
+     * @throws InvalidMidiDataException
+     */
+    protected Track compileTrack() throws InvalidMidiDataException {
+        // First, clear the track
+        clearTrack();
+
+        boolean[] noteStat = new boolean[height];
+
+        // Next, set the track up with the instrument
+        ShortMessage mesg = newMessage();
+        mesg.setMessage(ShortMessage.PROGRAM_CHANGE, channel, instrument, 0);
+        track.add(new MidiEvent(mesg, 0));
+
+        // loop through the grid and add apropriate noteon/offs
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (grid[x][y][0]) {
+                    mesg = newMessage();
+                    mesg.setMessage(ShortMessage.NOTE_ON, channel, getPitch(y), velocity);
+                    track.add(new MidiEvent(mesg, x));
+                    noteStat[y] = true;
+                }
+                if (grid[x][y][1]) {
+                    mesg = newMessage();
+                    mesg.setMessage(ShortMessage.NOTE_OFF, channel, getPitch(y), velocity);
+                    track.add(new MidiEvent(mesg, x + 1));
+                    noteStat[y] = false;
+                }
+            }
+        }
+
+        // Check for any lingering notes
+        for (int i = 0; i < noteStat.length; i++) {
+            if (noteStat[i]) {
+                mesg = newMessage();
+                mesg.setMessage(ShortMessage.NOTE_OFF, channel, getPitch(i), velocity);
+                track.add(new MidiEvent(mesg, width));
+            }
+        }
+
+        return track;
+    }
+}
@@ -0,0 +1,505 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Journal keeps the current session on disk so that it can be recovered after
+ * a crash.  Every edit made to the roll is appended to a journal file by a
+ * background thread, which syncs the file once per batch of edits.  Every so
+ * often a full snapshot of the roll is written next to it and the journal is
+ * started over.  Each journal line carries a sequence number and a checksum;
+ * the snapshot records the last sequence number it includes, so a crash at
+ * any point leaves a snapshot and a journal that replay to the same state.
+ *
+ * <p>Edits and snapshots are only turned into text on the calling thread
+ * (normally the event dispatch thread); all writing and syncing, of the
+ * snapshot as well as the journal, is done by the writer thread.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class Journal implements RollListener {
+
+    /**
+     * A full copy of the roll to be written by the writer thread
+     */
+    private static class Snapshot {
+
+        private String text;
+
+        public Snapshot(String _text) {
+            text = _text;
+        }
+    }
+    private static final String SNAPSHOT_HEADER = "midimatrix-snapshot 2";
+    private static final int COMPACT_EVERY = 500;  // edits between snapshots
+    private static final long SYNC_INTERVAL = 100; // ms to gather edits before syncing
+    private static final Object CLOSE = new Object();
+    private File directory, journalFile, snapshotFile, snapshotTemp;
+    private LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+    private Thread writer;
+    private long sequence = 0;   // last sequence number handed out
+    private int sinceSnapshot = 0;
+    private Roll roll;
+    private String problem;
+
+    /**
+     * Construct a new Journal keeping its files in a directory
+     * @param _directory The directory to keep the journal in
+     */
+    public Journal(File _directory) {
+        directory = _directory;
+        directory.mkdirs();
+        journalFile = new File(directory, "session.journal");
+        snapshotFile = new File(directory, "session.snapshot");
+        snapshotTemp = new File(directory, "session.snapshot.tmp");
+    }
+
+    /**
+     * Get the default place to keep the journal
+     * @return A directory in the user's home directory
+     */
+    public static File getDefaultDirectory() {
+        return new File(System.getProperty("user.home"), ".midimatrix");
+    }
+
+    /**
+     * Bring a roll back to the state saved by an earlier session, if there is
+     * one.  This should be called before start().
+     *
+     * <p>If the snapshot can't be read, the journal can't be replayed onto
+     * it either, so nothing is recovered: both files are moved aside with a
+     * <code>.corrupt</code> suffix rather than being written over, the roll is
+     * left as it was, and getProblem() says what happened.</p>
+     * @param _roll The roll to recover into
+     * @return True if anything was recovered
+     */
+    public boolean recover(Roll _roll) {
+        boolean recovered = false;
+        long snapshotSequence = 0;
+        problem = null;
+
+        // start with the last full snapshot
+        if (snapshotFile.exists()) {
+            String fresh = RollCodec.encode(_roll);
+            int freshEnabled = _roll.getGridsEnabled();
+            try {
+                BufferedReader in = new BufferedReader(new FileReader(snapshotFile));
+                try {
+                    snapshotSequence = readSnapshot(_roll, in);
+                    recovered = true;
+                } finally {
+                    in.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                RollCodec.decode(fresh, _roll);
+                for (int i = freshEnabled; i < _roll.getGridsEnabled(); i++) {
+                    _roll.clearGrid(i);
+                }
+                problem = "The last session could not be recovered: " + e.getMessage();
+                moveAside();
+                return false;
+            }
+        }
+        sequence = snapshotSequence;
+
+        // then replay every edit made since
+        if (journalFile.exists()) {
+            try {
+                BufferedReader in = new BufferedReader(new FileReader(journalFile));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        long[] entry = parseLine(line);
+                        if (entry == null) {
+                            // a torn write at the end of the file; nothing after it is good
+                            break;
+                        }
+                        if (entry[0] <= snapshotSequence) {
+                            continue;
+                        }
+                        int[] args = new int[entry.length - 2];
+                        for (int i = 0; i < args.length; i++) {
+                            args[i] = (int) entry[i + 2];
+                        }
+                        try {
+                            apply(_roll, (int) entry[1], args);
+                            recovered = true;
+                        } catch (RuntimeException e) {
+                            // an edit that no longer makes sense; skip it
+                        }
+                        sequence = entry[0];
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Get what went wrong the last time a session was recovered
+     * @return A description of the problem, or null if there was none
+     */
+    public String getProblem() {
+        return problem;
+    }
+
+    /**
+     * Move the snapshot and journal out of the way so that they are kept
+     * rather than written over
+     */
+    private void moveAside() {
+        File[] files = {snapshotFile, journalFile};
+        for (File file : files) {
+            if (!file.exists()) {
+                continue;
+            }
+            File corrupt = new File(directory, file.getName() + ".corrupt");
+            try {
+                Files.move(file.toPath(), corrupt.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                problem += "\nKept as " + corrupt;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        syncDirectory();
+    }
+
+    /**
+     * Start journaling every edit made to a roll
+     * @param _roll The roll to journal
+     */
+    public void start(Roll _roll) {
+        if (problem != null && snapshotFile.exists()) {
+            // the unreadable snapshot couldn't be moved aside; don't write over it
+            return;
+        }
+        roll = _roll;
+
+        // begin with a fresh snapshot so the journal always has a base to replay onto
+        queue.offer(new Snapshot(snapshotText(roll, sequence)));
+        roll.addRollListener(this);
+
+        writer = new Thread(new Runnable() {
+
+            public void run() {
+                writeLoop();
+            }
+        }, "MidiMatrix journal writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop journaling, waiting for everything queued to be written
+     */
+    public void close() {
+        if (roll != null) {
+            roll.removeRollListener(this);
+        }
+        if (writer != null) {
+            queue.offer(CLOSE);
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Queue an edit to be written to the journal
+     * @param _roll The roll that was edited
+     * @param edit The kind of edit
+     * @param args The arguments of the edit
+     */
+    public void rollEdited(Roll _roll, int edit, int[] args) {
+        sequence++;
+        StringBuilder line = new StringBuilder();
+        line.append(sequence).append(' ').append(edit);
+        for (int i = 0; i < args.length; i++) {
+            line.append(' ').append(args[i]);
+        }
+        long sum = checksum(line);
+        queue.offer(line.append(' ').append(sum).toString());
+
+        // every so often, compact the journal into a snapshot
+        if (++sinceSnapshot >= COMPACT_EVERY) {
+            sinceSnapshot = 0;
+            queue.offer(new Snapshot(snapshotText(_roll, sequence)));
+        }
+    }
+
+    /**
+     * Write queued edits and snapshots until closed
+     */
+    private void writeLoop() {
+        FileOutputStream out = null;
+        ArrayList<Object> batch = new ArrayList<Object>();
+        boolean closing = false;
+        try {
+            boolean created = !journalFile.exists();
+            out = new FileOutputStream(journalFile, true);
+            if (created) {
+                syncDirectory();
+            }
+            while (!closing) {
+                // wait for something to do, then gather up whatever follows it quickly
+                batch.add(queue.take());
+                Thread.sleep(SYNC_INTERVAL);
+                queue.drainTo(batch);
+
+                StringBuilder pending = new StringBuilder();
+                for (int i = 0; i < batch.size(); i++) {
+                    Object item = batch.get(i);
+                    if (item instanceof String) {
+                        pending.append((String) item).append('\n');
+                    } else if (item instanceof Snapshot) {
+                        // flush what came before, then replace the snapshot and start the journal over
+                        writeAndSync(out, pending);
+                        compact((Snapshot) item);
+                        out.close();
+                        out = new FileOutputStream(journalFile, false);
+                    } else if (item == CLOSE) {
+                        closing = true;
+                    }
+                }
+                writeAndSync(out, pending);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // exit quietly
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //
+                }
+            }
+        }
+    }
+
+    /**
+     * Write out pending journal lines and sync them to the disk
+     * @param out The journal file
+     * @param pending The lines to write; emptied afterwards
+     * @throws IOException
+     */
+    private void writeAndSync(FileOutputStream out, StringBuilder pending) throws IOException {
+        if (pending.length() == 0) {
+            return;
+        }
+        out.write(pending.toString().getBytes("UTF-8"));
+        out.getFD().sync();
+        pending.setLength(0);
+    }
+
+    /**
+     * Write a snapshot to a temporary file, then move it over the old one and
+     * sync the directory so the move itself is on the disk
+     * @param snapshot The snapshot to write
+     * @throws IOException
+     */
+    private void compact(Snapshot snapshot) throws IOException {
+        FileOutputStream out = new FileOutputStream(snapshotTemp);
+        try {
+            out.write(snapshot.text.getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(snapshotTemp.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    /**
+     * Sync the journal's directory, so that a file created or renamed in it
+     * survives a crash as well as the file's contents do
+     */
+    private void syncDirectory() {
+        try {
+            FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                dir.force(true);
+            } finally {
+                dir.close();
+            }
+        } catch (IOException e) {
+            // some platforms (Windows) cannot open or sync a directory
+        }
+    }
+
+    /**
+     * Checksum a journal line so that a partly-written line can be spotted
+     * @param line The line, without its checksum
+     * @return The checksum
+     */
+    private static long checksum(CharSequence line) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < line.length(); i++) {
+            crc.update(line.charAt(i));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Parse a journal line into its sequence number, edit and arguments
+     * @param line The line to parse
+     * @return The numbers in the line, or null if the line is damaged
+     */
+    private static long[] parseLine(String line) {
+        int last = line.lastIndexOf(' ');
+        if (last < 0) {
+            return null;
+        }
+        String[] parts = line.substring(0, last).split(" ");
+        if (parts.length < 2) {
+            return null;
+        }
+        try {
+            if (Long.parseLong(line.substring(last + 1)) != checksum(line.substring(0, last))) {
+                return null;
+            }
+            long[] entry = new long[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                entry[i] = Long.parseLong(parts[i]);
+            }
+            return entry;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Make an edit to a roll again, as it was described to a RollListener
+     * @param roll The roll to edit
+     * @param edit The kind of edit
+     * @param args The arguments of the edit
+     */
+    public static void apply(Roll roll, int edit, int[] args) {
+        switch (edit) {
+            case TEMPO:
+                roll.setTempo(args[0]);
+                break;
+            case SEGMENT_ADD:
+                roll.addRollSegment();
+                break;
+            case SEGMENT_ADD_AT:
+                roll.addRollSegmentAt(args[0]);
+                break;
+            case SEGMENT_REMOVE:
+                roll.removeRollSegment(args[0]);
+                break;
+            case SEGMENT_MOVE:
+                roll.moveRollSegment(args[0], args[1]);
+                break;
+            case SEGMENT_ENABLE:
+                roll.enableGridInRollSegment(args[0], args[1]);
+                break;
+            case SEGMENT_DISABLE:
+                roll.disableGridInRollSegment(args[0], args[1]);
+                break;
+            case SEGMENT_TOGGLE:
+                roll.toggleGridInRollSegment(args[0], args[1]);
+                break;
+            case GRID_INSTRUMENT:
+                roll.gridSetInstrument(args[0], args[1]);
+                break;
+            case GRID_SCALE:
+                if (args[1] >= 0) {
+                    roll.gridSetScale(args[0], Scale.SCALES[args[1]]);
+                }
+                break;
+            case GRID_VELOCITY:
+                roll.gridSetVelocity(args[0], args[1]);
+                break;
+            case GRID_KEY:
+                roll.gridSetKey(args[0], args[1]);
+                break;
+            case GRID_TOGGLE:
+                roll.gridToggleNote(args[0], args[1], args[2]);
+                break;
+            case GRID_TOGGLE_LENGTH:
+                roll.gridToggleNote(args[0], args[1], args[2], args[3]);
+                break;
+            case GRID_TOGGLE_ON:
+                roll.gridToggleNoteOn(args[0], args[1], args[2]);
+                break;
+            case GRID_TOGGLE_OFF:
+                roll.gridToggleNoteOff(args[0], args[1], args[2]);
+                break;
+            case GRID_CLEAR:
+                roll.clearGrid(args[0]);
+                break;
+            case GRID_MUTE:
+                roll.gridSetMuted(args[0], args[1] != 0);
+                break;
+            case GRID_SOLO:
+                roll.gridSetSolo(args[0], args[1] != 0);
+                break;
+        }
+    }
+
+    /**
+     * Take down the entire state of a roll.  This is done on the thread that
+     * edits the roll, so the snapshot is consistent; writing it to disk is
+     * left to the writer thread.
+     * @param roll The roll to take down
+     * @param sequence The last journal sequence number included
+     * @return The snapshot as text
+     */
+    private static String snapshotText(Roll roll, long sequence) {
+        return SNAPSHOT_HEADER + "\n" + sequence + "\n" + RollCodec.encode(roll) + "\n";
+    }
+
+    /**
+     * Read a snapshot back into a roll
+     * @param roll The roll to read into
+     * @param in The snapshot
+     * @return The last journal sequence number included in the snapshot
+     * @throws IOException The snapshot could not be read
+     */
+    private static long readSnapshot(Roll roll, BufferedReader in) throws IOException {
+        if (!SNAPSHOT_HEADER.equals(in.readLine())) {
+            throw new IOException("Not a MIDIMatrix snapshot");
+        }
+        long snapshotSequence = Long.parseLong(in.readLine());
+        RollCodec.decode(in.readLine(), roll);
+        return snapshotSequence;
+    }
+}
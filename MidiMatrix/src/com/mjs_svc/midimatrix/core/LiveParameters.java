@@ -0,0 +1,392 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import javax.sound.midi.*;
+
+/**
+ * LiveParameters sits between the sequencer and the device, changing the
+ * notes and programs of a compiled sequence on their way out so that a
+ * grid's instrument, velocity, key and scale take effect as soon as they're
+ * changed, without recompiling.  Each channel of each port (numbered
+ * <code>port * 16 + channel</code>) can be given a Mapping: the
+ * note each compiled note should sound as, a level for the channel, a
+ * velocity to play every note at and a program to play them with.  A note is
+ * let go of at the pitch it was started at, however the mapping changes in
+ * between.
+ *
+ * <p>A level is sent as the channel's expression controller (CC11) when it
+ * changes, leaving the notes as they were compiled; rewriting velocities is
+ * left for what a device can't be told with its controllers.</p>
+ *
+ * <p>Messages that need no change are passed on as they are; nothing is
+ * allocated for them.</p>
+ *
+ * <p>The notes sounding at once can be held to a budget, to spare a
+ * synthesizer that can't keep up: once it is reached, a new note quieter
+ * than every note sounding isn't played, and otherwise the quietest note
+ * sounding is let go of to make room.  The notes sounding are kept in a
+ * list for each velocity, so the quietest is found straight away however
+ * many are sounding.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class LiveParameters implements Receiver {
+
+    private static final int EXPRESSION = 11, ALL_SOUND_OFF = 120, ALL_NOTES_OFF = 123;
+
+    private static final int VOICES = ChannelAllocator.PORTS * ChannelAllocator.CHANNELS;
+
+    private final Receiver target;
+    private volatile Mapping[] mappings = new Mapping[VOICES];
+    private final int[][] sounding = new int[VOICES][128]; // the pitch each compiled note was started at, or -1
+    private final int[][] loudness = new int[VOICES][128]; // the velocity each sounding note was started at
+    private final boolean[][] dropped = new boolean[VOICES][128]; // notes not played, or let go of early, whose note off is still to come
+    private final int[] firstAtVelocity = new int[128];        // the first note sounding at each velocity, as voice * 128 + note, or -1
+    private final int[] nextAtVelocity = new int[VOICES * 128]; // the next note sounding at the same velocity, or -1
+    private final int[] previousAtVelocity = new int[VOICES * 128];
+    private final long[] velocitiesSounding = new long[2];      // a bit for each velocity some note is sounding at
+    private int notes = 0;     // how many notes are sounding
+    private int budget = -1;   // the most notes to sound at once, or -1 for no limit
+
+    /**
+     * How the notes of one channel are changed
+     */
+    public static class Mapping {
+
+        final int[] pitches = new int[128];
+        final int velocity, expression, program;
+
+        /**
+         * Play each note as itself
+         * @param _velocity The velocity to play every note at, or -1 to
+         * leave them be
+         * @param _expression The channel's expression controller, or -1 to
+         * leave it at full
+         * @param _program The program to play notes with, or -1 to leave it
+         * be
+         */
+        public Mapping(int _velocity, int _expression, int _program) {
+            velocity = _velocity;
+            expression = _expression;
+            program = _program;
+            for (int i = 0; i < pitches.length; i++) {
+                pitches[i] = i;
+            }
+        }
+
+        /**
+         * Play one note as another
+         * @param from The compiled note
+         * @param to The note to sound instead
+         */
+        public void map(int from, int to) {
+            pitches[from] = Math.max(0, Math.min(127, to));
+        }
+    }
+
+    /**
+     * Change the messages passing on to a receiver
+     * @param _target The receiver
+     */
+    public LiveParameters(Receiver _target) {
+        target = _target;
+        for (int voice = 0; voice < VOICES; voice++) {
+            for (int i = 0; i < 128; i++) {
+                sounding[voice][i] = -1;
+            }
+        }
+        for (int velocity = 0; velocity < 128; velocity++) {
+            firstAtVelocity[velocity] = -1;
+        }
+    }
+
+    /**
+     * Change how each channel's messages are changed from now on; a
+     * channel's new program and level, if they changed, are sent straight
+     * away
+     * @param _mappings The mapping for each channel of each port, or null to
+     * leave it be; these must not be changed once handed over
+     */
+    public void setMappings(Mapping[] _mappings) {
+        Mapping[] old = mappings;
+        mappings = _mappings.clone();
+        try {
+            for (int voice = 0; voice < VOICES; voice++) {
+                int program = _mappings[voice] == null ? -1 : _mappings[voice].program;
+                int was = old[voice] == null ? -1 : old[voice].program;
+                if (program >= 0 && program != was) {
+                    ShortMessage mesg = newMessage(voice / ChannelAllocator.CHANNELS);
+                    mesg.setMessage(ShortMessage.PROGRAM_CHANGE, voice % ChannelAllocator.CHANNELS, program, 0);
+                    target.send(mesg, -1);
+                }
+                int expression = expression(_mappings[voice]);
+                if (expression != expression(old[voice])) {
+                    ShortMessage mesg = newMessage(voice / ChannelAllocator.CHANNELS);
+                    mesg.setMessage(ShortMessage.CONTROL_CHANGE, voice % ChannelAllocator.CHANNELS, EXPRESSION, expression);
+                    target.send(mesg, -1);
+                }
+            }
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The expression controller a mapping sets its channel to
+     */
+    private static int expression(Mapping mapping) {
+        return mapping == null || mapping.expression < 0 ? 127 : mapping.expression;
+    }
+
+    /**
+     * Pass a message on, changed as its channel's mapping says
+     * @param message The message
+     * @param timeStamp When to play it, in microseconds, or -1 for now
+     */
+    public synchronized void send(MidiMessage message, long timeStamp) {
+        if (!(message instanceof ShortMessage)) {
+            target.send(message, timeStamp);
+            return;
+        }
+        ShortMessage mesg = (ShortMessage) message;
+        int channel = mesg.getChannel(), data1 = mesg.getData1(), data2 = mesg.getData2();
+        int port = ChannelAllocator.portOf(mesg);
+        int voice = port * ChannelAllocator.CHANNELS + channel;
+        Mapping mapping = mappings[voice];
+        int command = mesg.getCommand();
+        if (command == ShortMessage.NOTE_ON && data2 == 0) {
+            // a note on with no velocity is a note off
+            command = ShortMessage.NOTE_OFF;
+        }
+        try {
+            switch (command) {
+                case ShortMessage.NOTE_ON:
+                    int pitch = mapping == null ? data1 : mapping.pitches[data1];
+                    int velocity = mapping == null || mapping.velocity < 0 ? data2 : mapping.velocity;
+                    if (sounding[voice][data1] < 0 && !makeRoom(velocity)) {
+                        dropped[voice][data1] = true;
+                        return;
+                    }
+                    sound(voice, data1, pitch, velocity);
+                    dropped[voice][data1] = false;
+                    if (pitch != data1 || velocity != data2) {
+                        mesg = newMessage(port);
+                        mesg.setMessage(ShortMessage.NOTE_ON, channel, pitch, velocity);
+                    }
+                    break;
+                case ShortMessage.NOTE_OFF:
+                    if (dropped[voice][data1]) {
+                        dropped[voice][data1] = false;
+                        return;
+                    }
+                    int sent = silence(voice, data1);
+                    if (sent >= 0 && sent != data1) {
+                        mesg = newMessage(port);
+                        mesg.setMessage(ShortMessage.NOTE_OFF, channel, sent, data2);
+                    }
+                    break;
+                case ShortMessage.PROGRAM_CHANGE:
+                    if (mapping != null && mapping.program >= 0 && mapping.program != data1) {
+                        mesg = newMessage(port);
+                        mesg.setMessage(ShortMessage.PROGRAM_CHANGE, channel, mapping.program, 0);
+                    }
+                    break;
+                case ShortMessage.CONTROL_CHANGE:
+                    if (data1 == ALL_SOUND_OFF || data1 == ALL_NOTES_OFF) {
+                        for (int i = 0; i < 128; i++) {
+                            silence(voice, i);
+                            dropped[voice][i] = false;
+                        }
+                    }
+                    break;
+            }
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+        target.send(mesg, timeStamp);
+    }
+
+    /**
+     * Let go of every note sounding on one channel of a port, each with a
+     * note off of its own, leaving the notes other ports play through the
+     * same device and channel alone (as a controller such as All Notes Off
+     * would not)
+     * @param port The port
+     * @param channel The channel
+     */
+    public synchronized void letGo(int port, int channel) {
+        int voice = port * ChannelAllocator.CHANNELS + channel;
+        try {
+            for (int i = 0; i < 128; i++) {
+                int sent = silence(voice, i);
+                if (sent >= 0) {
+                    ShortMessage mesg = newMessage(port);
+                    mesg.setMessage(ShortMessage.NOTE_OFF, channel, sent, 0);
+                    target.send(mesg, -1);
+                }
+                dropped[voice][i] = false;
+            }
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Hold the notes sounding at once to a budget; if more are sounding,
+     * the quietest are let go of straight away
+     * @param _budget The most notes to sound at once, or -1 for no limit
+     */
+    public synchronized void setBudget(int _budget) {
+        budget = _budget;
+        while (budget >= 0 && notes > budget) {
+            letGoOfQuietest();
+        }
+    }
+
+    /**
+     * Get the budget notes are held to
+     * @return The most notes to sound at once, or -1 for no limit
+     */
+    public synchronized int getBudget() {
+        return budget;
+    }
+
+    /**
+     * Tell how many notes are sounding
+     * @return The number of notes
+     */
+    public synchronized int getNotesSounding() {
+        return notes;
+    }
+
+    /**
+     * Make room under the budget for a new note, letting go of the quietest
+     * note sounding if it is quieter than the new one
+     * @param velocity How loud the new note is
+     * @return True if the new note may be played
+     */
+    private boolean makeRoom(int velocity) {
+        if (budget < 0 || notes < budget) {
+            return true;
+        }
+        if (budget == 0 || quietest() >= velocity) {
+            return false;
+        }
+        letGoOfQuietest();
+        return true;
+    }
+
+    /**
+     * Find how loud the quietest note sounding is
+     * @return Its velocity, or Integer.MAX_VALUE if no note is sounding
+     */
+    private int quietest() {
+        if (velocitiesSounding[0] != 0) {
+            return Long.numberOfTrailingZeros(velocitiesSounding[0]);
+        }
+        if (velocitiesSounding[1] != 0) {
+            return 64 + Long.numberOfTrailingZeros(velocitiesSounding[1]);
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Let go of the quietest note sounding, swallowing its own note off
+     * when it comes
+     */
+    private void letGoOfQuietest() {
+        int least = quietest();
+        if (least == Integer.MAX_VALUE) {
+            return;
+        }
+        int voice = firstAtVelocity[least] / 128, note = firstAtVelocity[least] % 128;
+        int sent = silence(voice, note);
+        try {
+            ShortMessage mesg = newMessage(voice / ChannelAllocator.CHANNELS);
+            mesg.setMessage(ShortMessage.NOTE_OFF, voice % ChannelAllocator.CHANNELS, sent, 0);
+            target.send(mesg, -1);
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+        dropped[voice][note] = true;
+    }
+
+    /**
+     * Keep track of a note that has started sounding
+     * @param voice The port and channel of the note
+     * @param note The compiled note
+     * @param pitch The pitch it is sounding at
+     * @param velocity How loud it is
+     */
+    private void sound(int voice, int note, int pitch, int velocity) {
+        silence(voice, note);
+        sounding[voice][note] = pitch;
+        loudness[voice][note] = velocity;
+        int key = voice * 128 + note;
+        previousAtVelocity[key] = -1;
+        nextAtVelocity[key] = firstAtVelocity[velocity];
+        if (firstAtVelocity[velocity] >= 0) {
+            previousAtVelocity[firstAtVelocity[velocity]] = key;
+        }
+        firstAtVelocity[velocity] = key;
+        velocitiesSounding[velocity / 64] |= 1L << (velocity % 64);
+        notes++;
+    }
+
+    /**
+     * Stop keeping track of a note that is no longer sounding
+     * @param voice The port and channel of the note
+     * @param note The compiled note
+     * @return The pitch it was sounding at, or -1 if it wasn't sounding
+     */
+    private int silence(int voice, int note) {
+        int pitch = sounding[voice][note];
+        if (pitch < 0) {
+            return -1;
+        }
+        int key = voice * 128 + note, velocity = loudness[voice][note];
+        if (previousAtVelocity[key] >= 0) {
+            nextAtVelocity[previousAtVelocity[key]] = nextAtVelocity[key];
+        } else {
+            firstAtVelocity[velocity] = nextAtVelocity[key];
+        }
+        if (nextAtVelocity[key] >= 0) {
+            previousAtVelocity[nextAtVelocity[key]] = previousAtVelocity[key];
+        }
+        if (firstAtVelocity[velocity] < 0) {
+            velocitiesSounding[velocity / 64] &= ~(1L << (velocity % 64));
+        }
+        sounding[voice][note] = -1;
+        notes--;
+        return pitch;
+    }
+
+    private static ShortMessage newMessage(int port) {
+        return port == 0 ? new ShortMessage() : new PortMessage(port);
+    }
+
+    /**
+     * Close the receiver messages are passed on to
+     */
+    public void close() {
+        target.close();
+    }
+}
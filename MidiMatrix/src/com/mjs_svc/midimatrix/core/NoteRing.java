@@ -0,0 +1,108 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NoteRing is a fixed-size queue of timestamped MIDI messages between one
+ * thread putting them in and one taking them out.  Neither side locks or
+ * allocates: each message is packed into an int beside its time, and the
+ * two sides only ever share the count of messages put in and taken out.
+ * When the ring is full, new messages are dropped (and counted) rather than
+ * waited for.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class NoteRing {
+
+    private final long[] times;
+    private final int[] messages;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // how many have been taken out
+    private final AtomicLong tail = new AtomicLong(); // how many have been put in
+    private final AtomicLong dropped = new AtomicLong();
+    private long lastTaken; // the time of the message last taken out
+
+    /**
+     * Create an empty ring
+     * @param capacity The most messages it holds; rounded up to a power of
+     * two
+     */
+    public NoteRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        times = new long[size];
+        messages = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Put a message in; only ever call this from one thread
+     * @param time When the message came, e.g.: from System.nanoTime()
+     * @param status The status byte
+     * @param data1 The first data byte
+     * @param data2 The second data byte
+     * @return False if the ring was full and the message was dropped
+     */
+    public boolean offer(long time, int status, int data1, int data2) {
+        long t = tail.get();
+        if (t - head.get() >= times.length) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int i = (int) t & mask;
+        times[i] = time;
+        messages[i] = (status & 0xff) << 16 | (data1 & 0xff) << 8 | (data2 & 0xff);
+        // publish the message only once it has been written
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Take the oldest message out; only ever call this from one thread
+     * @return The message, packed as status &lt;&lt; 16 | data1 &lt;&lt; 8 | data2, or
+     * -1 if the ring is empty; its time is then given by lastTime()
+     */
+    public int poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return -1;
+        }
+        int i = (int) h & mask;
+        lastTaken = times[i];
+        int message = messages[i];
+        head.lazySet(h + 1);
+        return message;
+    }
+
+    /**
+     * @return The time of the message last taken out by poll()
+     */
+    public long lastTime() {
+        return lastTaken;
+    }
+
+    /**
+     * @return How many messages have been dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
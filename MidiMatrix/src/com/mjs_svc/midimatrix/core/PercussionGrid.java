@@ -1,4 +1,4 @@
-package com.mjs_svc.midimatrix;
+package com.mjs_svc.midimatrix.core;
 
 /*
  * MIDIMatrix - Matrix-based MIDI sequencer
@@ -30,13 +30,27 @@ import java.util.*;
 public class PercussionGrid extends Grid {
     // Data
     public static final int lowBound = 35, highBound = 81;  // Low and high notes
+    private static final Vector<String> percussionInstruments = new Vector<String>();
+
+    static {
+        percussionInstruments.add("Percussion");
+    }
 
     public PercussionGrid(int _width, int _height, int _key, int _velocity, Track _track) {
         super(_width, _height, Scale.CHROMATIC, 0, _key, _velocity, _track);
 
-        // build instrument list with percussion instrument only
-        instrumentList = new Vector();
-        instrumentList.add("Percussion");
+        // use the instrument list with percussion instrument only
+        instrumentList = percussionInstruments;
+        setChannel(ChannelAllocator.PERCUSSION);
+    }
+
+    /**
+     * Tell whether this grid plays percussion rather than pitched notes
+     * @return Always true
+     */
+    @Override
+    public boolean isPercussion() {
+        return true;
     }
 
     /**
@@ -101,33 +115,31 @@ public class PercussionGrid extends Grid {
     }*/
 
     /**
-     * Compile a grid into a MIDI track for playback
+     * Compile the grid into its track on the percussion channel
      * @return The javax.sound.midi.Track object containing the grid
      * @throws InvalidMidiDataException
      */
     @Override
-    public Track compile() throws InvalidMidiDataException {
+    protected Track compileTrack() throws InvalidMidiDataException {
         // First, clear the track
-        for (int i = 0; i < track.size(); i++) {
-            track.remove(track.get(i));
-        }
+        clearTrack();
 
         int[] scaleArray = scale.getScale();    // the scale used to determine pitches
-        boolean[] noteStat = new boolean[16];   // the note status for each pitch level
-        ShortMessage mesg = new ShortMessage(); // The message object to use
+        boolean[] noteStat = new boolean[height];   // the note status for each pitch level
+        ShortMessage mesg = newMessage(); // The message object to use
 
         // loop through the grid and add apropriate noteon/offs
-        for (int x = 0; x < 16; x++) {
-            for (int y = 0; y < 16; y++) {
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
                 if (grid[x][y][0]) {
-                    mesg = new ShortMessage();
-                    mesg.setMessage(ShortMessage.NOTE_ON, 9, key + scale.getNoteNumberByScaleDegree((height - 1) - y), velocity);
+                    mesg = newMessage();
+                    mesg.setMessage(ShortMessage.NOTE_ON, channel, getPitch(y), velocity);
                     track.add(new MidiEvent(mesg, x));
                     noteStat[y] = true;
                 }
                 if (grid[x][y][1]) {
-                    mesg = new ShortMessage();
-                    mesg.setMessage(ShortMessage.NOTE_OFF, 9, key + scale.getNoteNumberByScaleDegree((height - 1) - y), velocity);
+                    mesg = newMessage();
+                    mesg.setMessage(ShortMessage.NOTE_OFF, channel, getPitch(y), velocity);
                     track.add(new MidiEvent(mesg, x + 1));
                     noteStat[y] = false;
                 }
@@ -137,9 +149,9 @@ public class PercussionGrid extends Grid {
         // Check for any lingering notes
         for (int i = 0; i < noteStat.length; i++) {
             if (noteStat[i]) {
-                mesg = new ShortMessage();
-                mesg.setMessage(ShortMessage.NOTE_OFF, 9, key + scale.getNoteNumberByScaleDegree((height - 1) - i), velocity);
-                track.add(new MidiEvent(mesg, 16));
+                mesg = newMessage();
+                mesg.setMessage(ShortMessage.NOTE_OFF, channel, getPitch(i), velocity);
+                track.add(new MidiEvent(mesg, width));
             }
         }
 
@@ -0,0 +1,1327 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.midi.*;
+
+/**
+ * Playback keeps all of the javax.sound.midi interaction needed to play a
+ * sequence encapsulated in one object.  It has no user interface of its own;
+ * problems and changes in state are reported to PlaybackListeners.
+ *
+ * <p>Everything that changes playback (play, stop, pause, seek, loop, a new
+ * sequence, tempo or device) is a command, queued without locking from
+ * whichever thread asks and carried out in order by a single transport
+ * thread, the only one to touch the sequencer or playback's state.  Callers
+ * never wait for a device.  What the transport is doing is published as an
+ * immutable State after each command, so it can be read from any thread; it
+ * reflects the commands carried out so far, not those still queued.</p>
+ *
+ * <p>Parts (the grids of a roll) can be muted or soloed as they play, by
+ * muting the sequencer's tracks, without touching the compiled sequence.
+ * Likewise a part's instrument, velocity, key and scale can be changed as it
+ * plays: the notes and programs it was compiled with are changed on their
+ * way to the device, as long as the part has a channel to itself.  A part
+ * made quieter is turned down with its channel's expression controller; its
+ * velocities are only rewritten when it is made louder than it was compiled,
+ * or when its device doesn't follow the controller.</p>
+ *
+ * <p>Grids on ports other than the first (see ChannelAllocator) can be
+ * played through devices of their own, each sent to on its own thread; a
+ * port without a device plays through the first port's.</p>
+ *
+ * <p>A synthesizer played through holds only the instruments of the roll
+ * being followed, from its default soundbank or one read from a file.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class Playback {
+
+    public static final int POOL_SIZE = 4; // devices kept open for switching between, besides those in use
+    private static final int VOLUME = 7, EXPRESSION = 11, SUSTAIN = 64, ALL_NOTES_OFF = 123;
+    private static final long[] LATENCIES = {10000, 15000, 20000, 30000, 40000, 60000, 80000, 120000}; // tried by calibrateLatency(), in microseconds
+    private static final long CALIBRATION_TIME = 1000; // How long to try each latency for, in milliseconds
+    private static final String NOT_APPLIED = "The synthesizer's latency and voices can't be set, so it plays with its own. "
+            + "Run MIDIMatrix with java -jar, or with --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED.";
+
+    private static final int PLAY = 0, STOP = 1, PAUSE = 2, SEEK = 3, LOOP = 4,
+            SEQUENCE = 5, TEMPO = 6, DEVICES = 7, END = 8, CLOSE = 9, MIX = 10, PARAMETERS = 11, PORT = 12;
+
+    private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<Command>();
+    private final Thread transport;
+    private volatile State state = new State(false, false, false, null, new boolean[0]);
+    private volatile int bpm;
+    private volatile Sequencer seq;
+    private volatile MidiDevice.Info device; // What the first port plays through
+    private final DevicePool pool = new DevicePool(POOL_SIZE + ChannelAllocator.PORTS);
+    private final SwitchingReceiver output = new SwitchingReceiver();
+    private final PortRouter router = new PortRouter(output);
+    private final LiveParameters live = new LiveParameters(router);
+    private Vector<PlaybackListener> listeners = new Vector<PlaybackListener>();
+
+    // the note being auditioned, guarded by this
+    private final ShortMessage auditionMessage = new ShortMessage(); // reused, as the first port is sent to before send() returns
+    private int auditionPort = -1, auditionChannel, auditionPitch;
+
+    // the instruments synthesizers are to hold
+    private final SoundbankCache banks = new SoundbankCache();
+    private volatile Soundbank soundbank;  // The soundbank to play with, or null for each synthesizer's default
+    private volatile File soundbankFile;   // Where it was read from
+    private volatile boolean[] programs;   // The programs played, or null for the whole soundbank
+    private volatile boolean percussion;   // Whether a drum kit is played
+    private volatile long latency = -1;    // The software synthesizer's latency in microseconds, or -1 for its default
+    private volatile int polyphony = -1;   // The most voices it sounds at once, or -1 for its default
+
+    // only touched by the transport thread
+    private Sequence sequence;
+    private long loadedFingerprint; // The roll's fingerprint when it was handed to the sequencer
+    private int part = -1;          // The part the sequence's only track plays, or -1 if each track is a part
+    private boolean[] muted = new boolean[0], solo = new boolean[0];
+    private CompiledSequence.Part[] parts = new CompiledSequence.Part[0]; // each part's settings as they are now
+    private boolean[] changeable = new boolean[0];                        // which parts can be changed as they play
+    private boolean[] silenced = new boolean[0];                          // which tracks are muted
+    private MidiDevice.Info[] portDevices = new MidiDevice.Info[ChannelAllocator.PORTS]; // what each port plays through
+    private boolean[] portLevels = new boolean[ChannelAllocator.PORTS];                  // whether it follows the level controllers
+    private int tempo = 120;
+    private long currPos = 0;
+    private boolean loop = false, playing = false, playWhenOpen = false;
+    private float tempoFactor = 1;
+
+    /**
+     * What the transport is doing, as of the last command it carried out
+     */
+    public static class State {
+
+        private final boolean playing, looping, open;
+        private final Sequence sequence;
+        private final boolean[] changeable;
+
+        private State(boolean _playing, boolean _looping, boolean _open, Sequence _sequence, boolean[] _changeable) {
+            playing = _playing;
+            looping = _looping;
+            open = _open;
+            sequence = _sequence;
+            changeable = _changeable;
+        }
+
+        /**
+         * @return True if the sequence is playing
+         */
+        public boolean isPlaying() {
+            return playing;
+        }
+
+        /**
+         * @return True if playback starts over when it reaches the end
+         */
+        public boolean isLooping() {
+            return looping;
+        }
+
+        /**
+         * @return True if there is a sequencer and a device to play through
+         */
+        public boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * @return The sequence being played, or null if none has been set
+         */
+        public Sequence getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Tell whether a part of the sequence picks up changes to its
+         * settings as it plays, so that it needn't be recompiled to hear
+         * them
+         * @param part The part
+         * @return True if it does
+         */
+        public boolean isChangeable(int part) {
+            return part >= 0 && part < changeable.length && changeable[part];
+        }
+    }
+
+    /**
+     * Something for the transport thread to do
+     */
+    private static class Command {
+
+        private final int type;
+        private final Object argument;
+        private final long value;
+
+        private Command(int _type, Object _argument, long _value) {
+            type = _type;
+            argument = _argument;
+            value = _value;
+        }
+    }
+
+    /**
+     * A device made ready for playback, along with a sequencer if playback
+     * didn't have one yet, so that opening them can be done away from the
+     * thread using them
+     */
+    public static class Devices {
+
+        private final MidiDevice.Info synth;
+        private final Sequencer seq;
+        private MidiDevice retired; // The device's old instance, when it was opened afresh
+
+        private Devices(MidiDevice.Info _synth, Sequencer _seq) {
+            synth = _synth;
+            seq = _seq;
+        }
+
+        /**
+         * Close what won't be used after all; the device itself stays warm
+         * in the pool
+         */
+        public void close() {
+            if (seq != null) {
+                seq.close();
+            }
+            retire();
+        }
+
+        /**
+         * Close the device's old instance, once nothing plays through it
+         */
+        private void retire() {
+            if (retired != null) {
+                retired.close();
+                retired = null;
+            }
+        }
+    }
+
+    /**
+     * Construct a new MIDI play-helper using the default synthesizer
+     * @param _tempo The tempo
+     * @param listener A listener to be told about problems opening the
+     * synthesizer, or null
+     */
+    public Playback(int _tempo, PlaybackListener listener) {
+        this(_tempo, listener, true);
+    }
+
+    /**
+     * Construct a new MIDI play-helper
+     * @param _tempo The tempo
+     * @param listener A listener to be told about problems opening the
+     * synthesizer, or null
+     * @param openNow True to open the default synthesizer now; otherwise
+     * nothing is heard until open() or useDevices() is called, and a
+     * sequence set or played before then waits for it
+     */
+    public Playback(int _tempo, PlaybackListener listener, boolean openNow) {
+        tempo = _tempo;
+        bpm = _tempo;
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        transport = new Thread(new Runnable() {
+
+            public void run() {
+                runTransport();
+            }
+        }, "MIDIMatrix transport");
+        transport.setDaemon(true);
+        transport.start();
+
+        // the instruments played are loaded once a synthesizer is open
+        pool.setSynthesizerProperties(synthesizerProperties(latency, polyphony));
+        if (openNow) {
+            open();
+        }
+    }
+
+    /**
+     * Open the default synthesizer on this thread
+     */
+    public void open() {
+        try {
+            useDevices(openDevices(MidiSystem.getSynthesizer().getDeviceInfo()));
+        } catch (MidiUnavailableException e) {
+            fireError("There was a problem instantiating the midi: " + e.getMessage() + "\n" +
+                    "Try another MIDI device, maybe?", e);
+        }
+    }
+
+    /**
+     * Add a listener to be told about playback
+     * @param listener The listener to add
+     */
+    public void addPlaybackListener(PlaybackListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stop telling a listener about playback
+     * @param listener The listener to remove
+     */
+    public void removePlaybackListener(PlaybackListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start playing
+     */
+    public void play() {
+        send(PLAY, null, 0);
+    }
+
+    /**
+     * Stop playing
+     */
+    public void stop() {
+        send(STOP, null, 0);
+    }
+
+    /**
+     * Pause playing
+     */
+    public void pause() {
+        send(PAUSE, null, 0);
+    }
+
+    /**
+     * Move to another place in the sequence
+     * @param position Where to go, in microseconds
+     */
+    public void seek(long position) {
+        send(SEEK, null, position);
+    }
+
+    /**
+     * Get where playback is
+     * @return The position in ticks of the loaded sequence, or -1 if not
+     * playing
+     */
+    public long getTickPosition() {
+        Sequencer sequencer = seq;
+        return state.isPlaying() && sequencer != null ? sequencer.getTickPosition() : -1;
+    }
+
+    /**
+     * Get where the sequencer is, e.g.: to line something up with playback
+     * as it starts
+     * @return The position in microseconds of the loaded sequence, or -1 if
+     * there is no sequencer yet
+     */
+    public long getMicrosecondPosition() {
+        Sequencer sequencer = seq;
+        return sequencer != null ? sequencer.getMicrosecondPosition() : -1;
+    }
+
+    /**
+     * Set whether playback should start over when it reaches the end
+     * @param _loop True to loop
+     */
+    public void setLoop(boolean _loop) {
+        send(LOOP, null, _loop ? 1 : 0);
+    }
+
+    /**
+     * Tell whether playback starts over when it reaches the end
+     * @return True if looping
+     */
+    public boolean isLooping() {
+        return state.isLooping();
+    }
+
+    /**
+     * Set the sequence to play.  Setting the sequence that is already loaded
+     * does nothing, unless it is a roll that has changed since.
+     * @param _sequence The new sequence, which must not change once it has
+     * been handed over (a roll is looked at when this is called)
+     */
+    public void setSequence(Sequence _sequence) {
+        setSequence(_sequence, -1);
+    }
+
+    /**
+     * Set a sequence to play that holds a single part, e.g.: one grid
+     * compiled on its own, so that the part's mute and solo apply to it
+     * @param _sequence The new sequence, which must not change once it has
+     * been handed over (a roll is looked at when this is called)
+     * @param _part The part its only track plays, or -1 if each of its
+     * tracks is the part of the same number
+     */
+    public void setSequence(Sequence _sequence, int _part) {
+        long fingerprint = _sequence instanceof Roll ? ((Roll) _sequence).getFingerprint() : 0;
+        send(SEQUENCE, new Object[]{_sequence, Integer.valueOf(_part)}, fingerprint);
+    }
+
+    /**
+     * Sound the note of a row of a grid straight away, as it would be
+     * played but without compiling anything or going through the
+     * sequencer, e.g.: while a cell is being pressed.  The note lasts until
+     * auditionOff() is called or another note is auditioned.  Nothing is
+     * allocated for a grid on the first port, so this may be called as often
+     * as the mouse moves.
+     * @param grid The grid
+     * @param y The row whose note to sound
+     */
+    public synchronized void auditionOn(Grid grid, int y) {
+        auditionOff();
+        int port = grid.getPort(), channel = grid.getChannel(), pitch = grid.getPitch(y);
+        if (!grid.isPercussion()) {
+            audition(port, ShortMessage.PROGRAM_CHANGE, channel, grid.getInstrument(), 0);
+        }
+        audition(port, ShortMessage.NOTE_ON, channel, pitch, grid.getVelocity());
+        auditionPort = port;
+        auditionChannel = channel;
+        auditionPitch = pitch;
+    }
+
+    /**
+     * Let go of the note being auditioned, if there is one
+     */
+    public synchronized void auditionOff() {
+        if (auditionPort < 0) {
+            return;
+        }
+        audition(auditionPort, ShortMessage.NOTE_OFF, auditionChannel, auditionPitch, 0);
+        auditionPort = -1;
+    }
+
+    /**
+     * Send a message for auditioning straight to the device.  The first
+     * port's message is reused; any other port is sent a new one, as its
+     * thread sends it later on.
+     */
+    private void audition(int port, int command, int channel, int data1, int data2) {
+        ShortMessage mesg = port == 0 ? auditionMessage : new PortMessage(port);
+        try {
+            mesg.setMessage(command, channel, data1, data2);
+            router.send(mesg, -1);
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Set which parts are heard.  A muted part is silent; while any part is
+     * solo, only solo parts that aren't muted are heard.  This takes effect
+     * straight away, even while playing.
+     * @param _muted Whether each part is muted
+     * @param _solo Whether each part is solo
+     */
+    public void setMix(boolean[] _muted, boolean[] _solo) {
+        send(MIX, new boolean[][]{_muted.clone(), _solo.clone()}, 0);
+    }
+
+    /**
+     * Change a part's settings as it plays.  Only parts of sequences that
+     * were compiled by a RenderCache are changed, and only if they have a
+     * channel to themselves; others are heard as they were compiled.
+     * @param _part The part
+     * @param settings Its grid's settings as they are now
+     */
+    public void setParameters(int _part, CompiledSequence.Part settings) {
+        send(PARAMETERS, settings, _part);
+    }
+
+    /**
+     * Keep the mix, and the settings of each part, in step with a roll's
+     * grids, each grid being the part of the same number
+     * @param roll The roll, whose edits are listened for on the thread
+     * making them
+     */
+    public void follow(final Roll roll) {
+        roll.addRollListener(new RollListener() {
+
+            public void rollEdited(Roll _roll, int edit, int[] args) {
+                switch (edit) {
+                    case GRID_MUTE:
+                    case GRID_SOLO:
+                        setMixFrom(roll);
+                        break;
+                    case GRID_INSTRUMENT:
+                        setInstrumentsFrom(roll);
+                        setParameters(args[0], new CompiledSequence.Part(roll.getGrid(args[0])));
+                        break;
+                    case GRID_SCALE:
+                    case GRID_VELOCITY:
+                    case GRID_KEY:
+                        setParameters(args[0], new CompiledSequence.Part(roll.getGrid(args[0])));
+                        break;
+                }
+            }
+        });
+        setMixFrom(roll);
+        setInstrumentsFrom(roll);
+        for (int i = 0; i < roll.getNumGrids(); i++) {
+            if (roll.getGrid(i) != null) {
+                setParameters(i, new CompiledSequence.Part(roll.getGrid(i)));
+            }
+        }
+    }
+
+    private void setMixFrom(Roll roll) {
+        boolean[] _muted = new boolean[roll.getNumGrids()], _solo = new boolean[roll.getNumGrids()];
+        for (int i = 0; i < _muted.length; i++) {
+            Grid grid = roll.getGrid(i);
+            _muted[i] = grid != null && grid.isMuted();
+            _solo[i] = grid != null && grid.isSolo();
+        }
+        send(MIX, new boolean[][]{_muted, _solo}, 0);
+    }
+
+    private void setInstrumentsFrom(Roll roll) {
+        boolean[] _programs = new boolean[128];
+        boolean _percussion = false;
+        for (int i = 0; i < roll.getNumGrids(); i++) {
+            Grid grid = roll.getGrid(i);
+            if (grid != null && grid.isPercussion()) {
+                _percussion = true;
+            } else if (grid != null) {
+                _programs[grid.getInstrument()] = true;
+            }
+        }
+        setInstruments(_programs, _percussion);
+    }
+
+    /**
+     * Set which instruments are played, so that synthesizers hold just
+     * those.  Synthesizers already open are changed on this thread, which
+     * can be slow if an instrument's samples must be read.
+     * @param _programs Which programs are played, or null to hold the
+     * whole soundbank
+     * @param _percussion Whether a drum kit is played
+     */
+    public void setInstruments(boolean[] _programs, boolean _percussion) {
+        programs = _programs == null ? null : _programs.clone();
+        percussion = _percussion;
+        fitInstruments();
+    }
+
+    /**
+     * Play with the instruments of a soundbank file rather than each
+     * synthesizer's default.  A file is only read once, unless it changes;
+     * synthesizers already open are changed on this thread.
+     * @param file An SF2 or DLS file, or null for the default soundbank
+     * @throws IOException The file could not be read
+     * @throws InvalidMidiDataException The file isn't a soundbank
+     */
+    public void setSoundbank(File file) throws IOException, InvalidMidiDataException {
+        soundbank = file == null ? null : banks.get(file);
+        soundbankFile = file;
+        fitInstruments();
+    }
+
+    /**
+     * Get the soundbank file played with
+     * @return The file, or null for the default soundbank
+     */
+    public File getSoundbank() {
+        return soundbankFile;
+    }
+
+    /**
+     * Make every synthesizer open hold the instruments played
+     */
+    public void fitInstruments() {
+        for (MidiDevice device : pool.getDevices()) {
+            fit(device);
+        }
+    }
+
+    private void fit(MidiDevice device) {
+        if (device instanceof Synthesizer) {
+            synchronized (banks) {
+                SoundbankCache.fit((Synthesizer) device, soundbank, programs, percussion);
+            }
+        }
+    }
+
+    /**
+     * Set how the software synthesizer is opened: the latency sets the size
+     * of its audio buffer, the smaller the sooner a note is heard, but the
+     * likelier the buffer runs dry.  The synthesizer the first port plays
+     * through is opened afresh straight away, on this thread; others take
+     * the settings when next opened.  If it comes up without them (its
+     * properties can only be passed to it when the JVM exports
+     * com.sun.media.sound), the settings are refused with an error and left
+     * as they were.
+     * @param _latency The latency in microseconds, or -1 for the
+     * synthesizer's default
+     * @param _polyphony The most voices to sound at once, or -1 for the
+     * synthesizer's default
+     */
+    public void setSynthesizerSettings(long _latency, int _polyphony) {
+        pool.setSynthesizerProperties(synthesizerProperties(_latency, _polyphony));
+        MidiDevice.Info info = device;
+        if (info == null || !(pool.getDevice(info) instanceof Synthesizer)) {
+            latency = _latency;
+            polyphony = _polyphony;
+            return;
+        }
+        try {
+            Devices devices = new Devices(info, null);
+            devices.retired = pool.reopen(info);
+            MidiDevice reopened = pool.getDevice(info);
+            if (applied(reopened, _latency, _polyphony)) {
+                latency = _latency;
+                polyphony = _polyphony;
+            } else {
+                // it came up as it was before, so it may as well be played through
+                pool.setSynthesizerProperties(synthesizerProperties(latency, polyphony));
+                fireError(NOT_APPLIED, null);
+            }
+            fit(reopened);
+            useDevices(devices);
+        } catch (MidiUnavailableException e) {
+            pool.setSynthesizerProperties(synthesizerProperties(latency, polyphony));
+            fireError("There was a problem opening the synthesizer with those settings: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Tell whether a software synthesizer was opened with the settings asked
+     * for; when they can't be passed to it, it is opened with its own
+     */
+    private static boolean applied(MidiDevice synth, long _latency, int _polyphony) {
+        return synth instanceof Synthesizer
+                && (_latency <= 0 || ((Synthesizer) synth).getLatency() == _latency)
+                && (_polyphony <= 0 || ((Synthesizer) synth).getMaxPolyphony() == _polyphony);
+    }
+
+    /**
+     * Get the software synthesizer's latency
+     * @return The latency in microseconds, or -1 for the synthesizer's
+     * default
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Get the most voices the software synthesizer sounds at once
+     * @return The polyphony, or -1 for the synthesizer's default
+     */
+    public int getPolyphony() {
+        return polyphony;
+    }
+
+    /**
+     * Find the lowest latency at which the software synthesizer keeps up on
+     * this machine, and play with it from then on.  Each latency is tried,
+     * lowest first, on another instance of the synthesizer sounding as many
+     * quiet notes as it has voices, until one never runs dry.  This takes
+     * a few seconds, on this thread.
+     * @return The latency found in microseconds, or -1 if none kept up, in
+     * which case the settings are left as they were
+     * @throws MidiUnavailableException The synthesizer could not be opened,
+     * or not with the latency being tried
+     * @throws InterruptedException Interrupted while trying a latency
+     */
+    public long calibrateLatency() throws MidiUnavailableException, InterruptedException {
+        MidiDevice.Info info = device;
+        if (info == null || !(pool.getDevice(info) instanceof Synthesizer)) {
+            info = MidiSystem.getSynthesizer().getDeviceInfo();
+        }
+        for (int i = 0; i < LATENCIES.length; i++) {
+            MidiDevice test = pool.openApart(info, synthesizerProperties(LATENCIES[i], polyphony));
+            boolean held = false;
+            try {
+                if (!(test instanceof Synthesizer)) {
+                    throw new MidiUnavailableException("Only a software synthesizer's latency can be set");
+                }
+                if (!applied(test, LATENCIES[i], polyphony)) {
+                    // it would only be trying its own latency each time
+                    throw new MidiUnavailableException(NOT_APPLIED);
+                }
+                Synthesizer synth = (Synthesizer) test;
+                boolean[] piano = new boolean[128];
+                piano[0] = true;
+                SoundbankCache.fit(synth, soundbank, piano, false);
+                Receiver receiver = synth.getReceiver();
+                ShortMessage mesg = new ShortMessage();
+                for (int note = 0; note < synth.getMaxPolyphony(); note++) {
+                    int channel = note % (ChannelAllocator.CHANNELS - 1);
+                    mesg.setMessage(ShortMessage.NOTE_ON, channel < ChannelAllocator.PERCUSSION ? channel : channel + 1,
+                            36 + note % 48, 1);
+                    receiver.send(mesg, -1);
+                }
+                Thread.sleep(CALIBRATION_TIME / 5); // let it settle first
+                held = SynthMonitor.keepsUp(synth, CALIBRATION_TIME);
+            } catch (InvalidMidiDataException e) {
+                e.printStackTrace();
+            } finally {
+                test.close();
+            }
+            if (held) {
+                setSynthesizerSettings(LATENCIES[i], polyphony);
+                return LATENCIES[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Build the properties the software synthesizer is opened with; the
+     * instruments played are loaded once it is open
+     */
+    private static Map<String, Object> synthesizerProperties(long _latency, int _polyphony) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("load default soundbank", Boolean.FALSE);
+        if (_latency > 0) {
+            properties.put("latency", Long.valueOf(_latency));
+        }
+        if (_polyphony > 0) {
+            properties.put("max polyphony", Integer.valueOf(_polyphony));
+        }
+        return properties;
+    }
+
+    /**
+     * Get the synthesizer the first port plays through
+     * @return The synthesizer, or null if it plays through another kind of
+     * device or none yet
+     */
+    public Synthesizer getSynthesizer() {
+        MidiDevice.Info info = device;
+        MidiDevice played = info == null ? null : pool.getDevice(info);
+        return played instanceof Synthesizer ? (Synthesizer) played : null;
+    }
+
+    /**
+     * Hold the notes played at once, on every port, to a budget, sparing a
+     * device that can't keep up.  Once the budget is reached, a new note
+     * quieter than every note sounding isn't played; otherwise the quietest
+     * note sounding is let go of to make room.
+     * @param budget The most notes to sound at once, or -1 for no limit
+     */
+    public void setVoiceBudget(int budget) {
+        live.setBudget(budget);
+    }
+
+    /**
+     * Get the budget the notes played are held to
+     * @return The most notes to sound at once, or -1 for no limit
+     */
+    public int getVoiceBudget() {
+        return live.getBudget();
+    }
+
+    /**
+     * Tell how many notes played are sounding
+     * @return The number of notes
+     */
+    public int getNotesSounding() {
+        return live.getNotesSounding();
+    }
+
+    /**
+     * Get the sequence being played
+     * @return The sequence, or null if none has been set
+     */
+    public Sequence getSequence() {
+        return state.getSequence();
+    }
+
+    /**
+     * Set the speed of the sequence by modifying the tempo factor
+     * @param _tempo the new tempo in BPM
+     */
+    public void setTempo(int _tempo) {
+        bpm = _tempo;
+        send(TEMPO, Float.valueOf((float) _tempo / (float) tempo), 0);
+    }
+
+    /**
+     * Get the speed playback was last set to; a step of a grid lasts a beat
+     * @return The tempo in BPM
+     */
+    public int getTempo() {
+        return bpm;
+    }
+
+    /**
+     * Play through another device.  A device played through recently is
+     * still open, so switching back to it is immediate; playback carries on
+     * without a pause, and the old device is told to let go of its notes.
+     * @param _synth a MidiDevice.Info describing the new synth
+     */
+    public void setSynthesizer(MidiDevice.Info _synth) {
+        try {
+            useDevices(openDevices(_synth));
+        } catch (MidiUnavailableException e) {
+            fireError("There was a problem setting up that device: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Play one of the ports other than the first through a device of its
+     * own.  The device is opened on this thread if it isn't open already.
+     * @param port The port, from 1 to ChannelAllocator.PORTS - 1
+     * @param _synth The device, or null to play the port through the first
+     * port's device
+     */
+    public void setPortDevice(int port, MidiDevice.Info _synth) {
+        if (port <= 0 || port >= ChannelAllocator.PORTS) {
+            throw new IndexOutOfBoundsException("There is no port " + port + " to play through");
+        }
+        try {
+            if (_synth != null) {
+                pool.getReceiver(_synth);
+                fit(pool.getDevice(_synth));
+            }
+            send(PORT, _synth, port);
+        } catch (MidiUnavailableException e) {
+            fireError("There was a problem setting up that device: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Make a device ready to play through, opening it (and a sequencer, the
+     * first time) if needed.  This can be slow (a synthesizer loads the
+     * instruments played), but touches no playback, so it may be done on any thread
+     * and handed to useDevices() afterwards.
+     * @param _synth a MidiDevice.Info describing the synth
+     * @return The devices
+     * @throws MidiUnavailableException The devices could not be opened
+     */
+    public Devices openDevices(MidiDevice.Info _synth) throws MidiUnavailableException {
+        pool.getReceiver(_synth);
+        fit(pool.getDevice(_synth));
+        Sequencer sequencer = null;
+        if (seq == null) {
+            sequencer = MidiSystem.getSequencer(false);
+            sequencer.open();
+        }
+        return new Devices(_synth, sequencer);
+    }
+
+    /**
+     * Play through devices from openDevices()
+     * @param devices The devices
+     */
+    public void useDevices(Devices devices) {
+        send(DEVICES, devices, 0);
+    }
+
+    /**
+     * Close the sequencer and every device played through, waiting a moment
+     * for the transport to finish
+     */
+    public void close() {
+        auditionOff();
+        send(CLOSE, null, 0);
+        try {
+            transport.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tell whether playback has a sequencer and a device to play through yet
+     * @return True if it has
+     */
+    public boolean isOpen() {
+        return state.isOpen();
+    }
+
+    /**
+     * Tell whether or not the sequence is playing currently
+     * @return True if the sequence is playing, false otherwise
+     */
+    public boolean isPlaying() {
+        return state.isPlaying();
+    }
+
+    /**
+     * Get everything the transport is doing at once
+     * @return The state as of the last command carried out
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Tell all listeners that playback started
+     */
+    protected void fireStarted() {
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).playbackStarted(this);
+        }
+    }
+
+    /**
+     * Tell all listeners that playback stopped
+     */
+    protected void fireStopped() {
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).playbackStopped(this);
+        }
+    }
+
+    /**
+     * Tell all listeners about a problem
+     * @param message A description of the problem
+     * @param cause The exception behind it
+     */
+    protected void fireError(String message, Exception cause) {
+        if (listeners.isEmpty()) {
+            System.err.println(message);
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).playbackError(this, message, cause);
+        }
+    }
+
+    /**
+     * Queue a command for the transport thread and wake it
+     */
+    private void send(int type, Object argument, long value) {
+        commands.add(new Command(type, argument, value));
+        LockSupport.unpark(transport);
+    }
+
+    /**
+     * Carry out commands as they come, until told to close
+     */
+    private void runTransport() {
+        while (true) {
+            Command command = commands.poll();
+            if (command == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                if (command.type == CLOSE) {
+                    shutdownDevices();
+                    return;
+                }
+                carryOut(command);
+            } catch (Exception e) {
+                fireError("There was a problem playing the midi: " + e.getMessage(), e);
+            }
+            state = new State(playing, loop, seq != null, sequence, changeable);
+        }
+    }
+
+    private void carryOut(Command command) {
+        switch (command.type) {
+            case PLAY:
+                doPlay();
+                break;
+            case STOP:
+                doStop();
+                break;
+            case PAUSE:
+                playWhenOpen = false;
+                if (seq != null && playing) {
+                    currPos = seq.getMicrosecondPosition() + 1;
+                    seq.stop();
+                    letGo(null);
+                    playing = false;
+                    fireStopped();
+                }
+                break;
+            case SEEK:
+                currPos = command.value;
+                if (seq != null && playing) {
+                    seq.setMicrosecondPosition(currPos);
+                }
+                break;
+            case LOOP:
+                loop = command.value != 0;
+                break;
+            case SEQUENCE:
+                Object[] arguments = (Object[]) command.argument;
+                doSetSequence((Sequence) arguments[0], ((Integer) arguments[1]).intValue(), command.value);
+                break;
+            case MIX:
+                boolean[][] mix = (boolean[][]) command.argument;
+                muted = mix[0];
+                solo = mix[1];
+                applyMix();
+                break;
+            case PARAMETERS:
+                int p = (int) command.value;
+                if (p >= parts.length) {
+                    CompiledSequence.Part[] more = new CompiledSequence.Part[p + 1];
+                    System.arraycopy(parts, 0, more, 0, parts.length);
+                    parts = more;
+                }
+                parts[p] = (CompiledSequence.Part) command.argument;
+                applyParameters();
+                break;
+            case PORT:
+                doSetPort((int) command.value, (MidiDevice.Info) command.argument);
+                break;
+            case TEMPO:
+                tempoFactor = ((Float) command.argument).floatValue();
+                if (seq != null) {
+                    seq.setTempoFactor(tempoFactor);
+                }
+                break;
+            case DEVICES:
+                doUseDevices((Devices) command.argument);
+                break;
+            case END:
+                // the end of a sequence that has since been stopped counts
+                // for nothing; otherwise go round again if looping
+                if (playing) {
+                    doStop();
+                    if (loop) {
+                        doPlay();
+                    }
+                }
+                break;
+        }
+    }
+
+    private void doPlay() {
+        if (seq == null) {
+            // the synthesizer is still being opened
+            playWhenOpen = true;
+            return;
+        }
+        seq.setMicrosecondPosition(currPos);
+        seq.start();
+        playing = true;
+        fireStarted();
+    }
+
+    private void doStop() {
+        playWhenOpen = false;
+        if (seq != null) {
+            seq.stop();
+            letGo(null);
+            boolean wasPlaying = playing;
+            playing = false;
+            seq.setTickPosition(0);
+            currPos = 0;
+            if (wasPlaying) {
+                fireStopped();
+            }
+        }
+    }
+
+    private void doSetSequence(Sequence _sequence, int _part, long fingerprint) {
+        if (_sequence != null && _sequence == sequence && _part == part && fingerprint == loadedFingerprint) {
+            return;
+        }
+        sequence = _sequence;
+        part = _part;
+        loadedFingerprint = fingerprint;
+        if (seq == null) {
+            // loaded once the synthesizer is open
+            return;
+        }
+        try {
+            // if we're running, stop, set sequence, start; otherwise just set sequence
+            if (seq.isRunning()) {
+                // carry on from where we are in the old sequence
+                currPos = seq.getMicrosecondPosition();
+                seq.stop();
+                seq.setSequence(sequence);
+                seq.setTempoInBPM(tempo);
+                applyMix();
+                applyParameters();
+                if (currPos >= seq.getMicrosecondLength()) {
+                    currPos = 0;
+                }
+                doPlay();
+            } else {
+                seq.setSequence(sequence);
+                seq.setTempoInBPM(tempo);
+                applyMix();
+                applyParameters();
+            }
+        } catch (InvalidMidiDataException e) {
+            fireError("There was a problem loading the midi: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Mute the tracks of parts that shouldn't be heard; the sequencer forgets
+     * its track mutes whenever it is given a sequence
+     */
+    private void applyMix() {
+        if (seq == null || sequence == null) {
+            return;
+        }
+        boolean anySolo = false;
+        for (int i = 0; i < solo.length; i++) {
+            anySolo |= solo[i];
+        }
+        int tracks = sequence.getTracks().length;
+        boolean[] was = silenced;
+        silenced = new boolean[tracks];
+        for (int track = 0; track < tracks; track++) {
+            int p = part >= 0 ? part : track;
+            silenced[track] = p < muted.length ? muted[p] || (anySolo && !solo[p]) : anySolo;
+            seq.setTrackMute(track, silenced[track]);
+        }
+        if (seq.isRunning()) {
+            boolean[] newlySilenced = new boolean[tracks];
+            for (int track = 0; track < tracks; track++) {
+                newlySilenced[track] = silenced[track] && (track >= was.length || !was[track]);
+            }
+            letGo(newlySilenced);
+        }
+    }
+
+    /**
+     * Let go of the notes of tracks on ports other than the first.  The
+     * sequencer lets go of the notes it started when it stops or mutes a
+     * track, but only on the first port, as it doesn't know about the
+     * others.  A track whose port plays through the same device and channel
+     * as another track's (e.g.: percussion on a port without a device of its
+     * own) has its notes let go of one by one, so the other's keep sounding.
+     * @param tracks Which tracks to let go of, or null for all of them
+     */
+    private void letGo(boolean[] tracks) {
+        if (!(sequence instanceof CompiledSequence)) {
+            return;
+        }
+        CompiledSequence compiled = (CompiledSequence) sequence;
+        try {
+            for (int track = 0; track < compiled.getTracks().length; track++) {
+                CompiledSequence.Part p = compiled.getPart(track);
+                if (p == null || p.port == 0 || (tracks != null && (track >= tracks.length || !tracks[track]))) {
+                    continue;
+                }
+                if (sharesChannel(compiled, track)) {
+                    live.letGo(p.port, p.channel);
+                    continue;
+                }
+                PortMessage mesg = new PortMessage(p.port);
+                mesg.setMessage(ShortMessage.CONTROL_CHANGE, p.channel, SUSTAIN, 0);
+                live.send(mesg, -1);
+                mesg = new PortMessage(p.port);
+                mesg.setMessage(ShortMessage.CONTROL_CHANGE, p.channel, ALL_NOTES_OFF, 0);
+                live.send(mesg, -1);
+            }
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Tell whether another track of a sequence plays through the same
+     * device and channel as one track
+     */
+    private boolean sharesChannel(CompiledSequence compiled, int track) {
+        CompiledSequence.Part p = compiled.getPart(track);
+        MidiDevice.Info played = playedThrough(p.port);
+        for (int other = 0; other < compiled.getTracks().length; other++) {
+            CompiledSequence.Part q = compiled.getPart(other);
+            if (other != track && q != null && q.channel == p.channel
+                    && played != null && played.equals(playedThrough(q.port))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the device a port plays through
+     */
+    private MidiDevice.Info playedThrough(int port) {
+        return portDevices[port] != null ? portDevices[port] : portDevices[0];
+    }
+
+    /**
+     * Work out how each channel's messages must be changed for the parts of
+     * the loaded sequence to sound as their settings are now
+     */
+    private void applyParameters() {
+        LiveParameters.Mapping[] mappings = new LiveParameters.Mapping[ChannelAllocator.PORTS * ChannelAllocator.CHANNELS];
+        boolean[] _changeable = new boolean[parts.length];
+        if (sequence instanceof CompiledSequence) {
+            CompiledSequence compiled = (CompiledSequence) sequence;
+            int tracks = sequence.getTracks().length;
+            // a channel shared by several parts can't be changed for one of them
+            int[] users = new int[mappings.length];
+            for (int track = 0; track < tracks; track++) {
+                if (compiled.getPart(track) != null) {
+                    users[voice(compiled.getPart(track))]++;
+                }
+            }
+            for (int track = 0; track < tracks; track++) {
+                int p = part >= 0 ? part : track;
+                CompiledSequence.Part was = compiled.getPart(track);
+                CompiledSequence.Part now = p < parts.length ? parts[p] : null;
+                if (was == null || now == null || users[voice(was)] > 1
+                        || voice(now) != voice(was) || now.pitches.length != was.pitches.length) {
+                    continue;
+                }
+                int velocity = -1, expression = -1;
+                if (now.velocity < was.velocity && followsLevel(was.port)) {
+                    expression = Math.round(127f * now.velocity / was.velocity);
+                } else if (now.velocity != was.velocity) {
+                    // a controller can't turn a channel up past how it was compiled
+                    velocity = now.velocity;
+                }
+                LiveParameters.Mapping mapping = new LiveParameters.Mapping(velocity, expression, now.instrument);
+                for (int y = 0; y < was.pitches.length; y++) {
+                    mapping.map(was.pitches[y], now.pitches[y]);
+                }
+                mappings[voice(was)] = mapping;
+                _changeable[p] = true;
+            }
+        }
+        live.setMappings(mappings);
+        changeable = _changeable;
+    }
+
+    /**
+     * Tell whether the device a port plays through follows the level
+     * controllers
+     */
+    private boolean followsLevel(int port) {
+        return portDevices[port] != null ? portLevels[port] : portLevels[0];
+    }
+
+    /**
+     * Tell whether a device follows the volume and expression controllers.
+     * A synthesizer's channels report a controller they don't support as 0,
+     * where one that does starts out louder; any other device is taken to
+     * follow them, as General MIDI requires.
+     * @param played The device
+     * @return True if a channel's level can be set with its controllers
+     */
+    static boolean followsLevel(MidiDevice played) {
+        if (!(played instanceof Synthesizer)) {
+            return true;
+        }
+        MidiChannel[] channels = ((Synthesizer) played).getChannels();
+        return channels.length > 0 && channels[0] != null
+                && (channels[0].getController(VOLUME) != 0 || channels[0].getController(EXPRESSION) != 0);
+    }
+
+    /**
+     * The number LiveParameters knows a part's channel by
+     */
+    private static int voice(CompiledSequence.Part p) {
+        return p.port * ChannelAllocator.CHANNELS + p.channel;
+    }
+
+    private void doSetPort(int port, MidiDevice.Info _synth) {
+        try {
+            router.setReceiver(port, _synth == null ? null : pool.getReceiver(_synth));
+        } catch (MidiUnavailableException e) {
+            fireError("There was a problem setting up that device: " + e.getMessage(), e);
+            return;
+        }
+        pin(port, _synth);
+    }
+
+    /**
+     * Keep the device a port plays through open, letting go of the one it
+     * played through before
+     */
+    private void pin(int port, MidiDevice.Info _synth) {
+        if (_synth != null) {
+            pool.pin(_synth);
+        }
+        if (portDevices[port] != null) {
+            pool.unpin(portDevices[port]);
+        }
+        portDevices[port] = _synth;
+        portLevels[port] = _synth == null || followsLevel(pool.getDevice(_synth));
+
+        // a level set with a controller the new device ignores must be set another way
+        applyParameters();
+    }
+
+    private void doUseDevices(Devices devices) {
+        try {
+            output.switchTo(pool.getReceiver(devices.synth));
+        } catch (MidiUnavailableException e) {
+            devices.close();
+            fireError("There was a problem setting up that device: " + e.getMessage(), e);
+            return;
+        }
+        pin(0, devices.synth);
+        device = devices.synth;
+        if (devices.retired != null) {
+            // the device was opened afresh; the other ports playing through it follow
+            for (int port = 1; port < portDevices.length; port++) {
+                if (devices.synth.equals(portDevices[port])) {
+                    doSetPort(port, devices.synth);
+                }
+            }
+            devices.retire();
+        }
+        if (seq != null) {
+            devices.close();
+            return;
+        }
+
+        Sequencer sequencer = devices.seq;
+        try {
+            sequencer.getTransmitter().setReceiver(live);
+        } catch (MidiUnavailableException e) {
+            fireError("There was a problem setting up the sequencer: " + e.getMessage(), e);
+        }
+        sequencer.setTempoFactor(tempoFactor);
+        sequencer.addMetaEventListener(new MetaEventListener() {
+
+            public void meta(MetaMessage mesg) {
+                // a MIDI stop message; let the transport decide whether to loop
+                if (mesg.getType() == 47) {
+                    send(END, null, 0);
+                }
+            }
+        });
+        seq = sequencer;
+
+        // load the sequence that was waiting for the sequencer
+        Sequence current = sequence;
+        sequence = null;
+        if (current != null) {
+            doSetSequence(current, part, loadedFingerprint);
+        }
+        if (playWhenOpen) {
+            playWhenOpen = false;
+            doPlay();
+        }
+    }
+
+    private void shutdownDevices() {
+        if (seq != null) {
+            doStop();
+            seq.close();
+            seq = null;
+        }
+        router.close();
+        output.close();
+        pool.close();
+        state = new State(false, loop, false, sequence, changeable);
+    }
+}
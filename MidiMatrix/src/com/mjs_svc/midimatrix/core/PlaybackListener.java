@@ -0,0 +1,51 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+/**
+ * PlaybackListener is told when playback starts and stops and when something
+ * goes wrong, so that the user interface (if there is one) can say so.
+ * Listeners are told on playback's transport thread, or on whichever thread
+ * ran into a problem, and should hand anything slow on elsewhere.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public interface PlaybackListener {
+
+    /**
+     * Called when playback starts
+     * @param playback The playback that started
+     */
+    public void playbackStarted(Playback playback);
+
+    /**
+     * Called when playback stops or pauses
+     * @param playback The playback that stopped
+     */
+    public void playbackStopped(Playback playback);
+
+    /**
+     * Called when there was a problem with the MIDI system
+     * @param playback The playback that had the problem
+     * @param message A description of the problem, suitable for the user
+     * @param cause The exception behind the problem
+     */
+    public void playbackError(Playback playback, String message, Exception cause);
+}
@@ -0,0 +1,63 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * PortMessage is a short message for a port other than the first, so that
+ * grids on different ports can use the same channels and still be told
+ * apart on their way out of the sequencer.  It is written to a file like
+ * any other short message.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class PortMessage extends ShortMessage {
+
+    private final int port;
+
+    /**
+     * Create a message for a port; set it with setMessage()
+     * @param _port The port
+     */
+    public PortMessage(int _port) {
+        port = _port;
+    }
+
+    private PortMessage(byte[] data, int _port) {
+        super(data);
+        port = _port;
+    }
+
+    /**
+     * @return The port the message is for
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return A copy of the message, for the same port
+     */
+    @Override
+    public Object clone() {
+        return new PortMessage(getMessage(), port);
+    }
+}
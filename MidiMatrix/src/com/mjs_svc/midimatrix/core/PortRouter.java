@@ -0,0 +1,150 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.midi.*;
+
+/**
+ * PortRouter sends each message to the device for its port.  The first port
+ * is played through on the thread sending, as before; every other port that
+ * has been given a device of its own is played through on a thread of its
+ * own, fed by a queue, so that the ports are sent to in parallel and a slow
+ * device (e.g.: a hardware synthesizer on a busy serial link) never holds up
+ * the others.  A port without a device of its own plays through the first
+ * port's.
+ *
+ * <p>Messages that don't say which port they are for (e.g.: those the
+ * sequencer makes up itself when it stops) go to the first port.  A message
+ * queued for another port is a copy, so the sender may change or reuse its
+ * own as soon as send() returns, as it may with any receiver.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class PortRouter implements Receiver {
+
+    private final Receiver first;
+    private volatile Port[] ports = new Port[ChannelAllocator.PORTS]; // replaced, never changed, once published
+
+    /**
+     * One of the other ports, with the thread that plays through it
+     */
+    private static class Port implements Runnable {
+
+        private final SwitchingReceiver output = new SwitchingReceiver();
+        private final ConcurrentLinkedQueue<MidiMessage> queue = new ConcurrentLinkedQueue<MidiMessage>();
+        private final Thread thread;
+        private volatile boolean used = false, closed = false;
+
+        private Port(int number) {
+            thread = new Thread(this, "MIDIMatrix port " + (number + 1));
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+
+        private void send(MidiMessage message) {
+            queue.add((MidiMessage) message.clone());
+            LockSupport.unpark(thread);
+        }
+
+        public void run() {
+            while (!closed) {
+                MidiMessage message = queue.poll();
+                if (message == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    output.send(message, -1);
+                } catch (IllegalStateException e) {
+                    // the device has gone away
+                }
+            }
+        }
+    }
+
+    /**
+     * Route messages to the first port until others are given devices
+     * @param _first The first port's receiver
+     */
+    public PortRouter(Receiver _first) {
+        first = _first;
+    }
+
+    /**
+     * Play a port through a device of its own, or through the first port's
+     * @param port The port, other than the first
+     * @param receiver The device's receiver, or null to go back to the first
+     * port's
+     */
+    public synchronized void setReceiver(int port, Receiver receiver) {
+        if (port <= 0 || port >= ports.length) {
+            throw new IndexOutOfBoundsException("There is no port " + port + " to route");
+        }
+        if (receiver == null) {
+            if (ports[port] != null) {
+                ports[port].used = false;
+                ports[port].output.close();
+            }
+            return;
+        }
+        if (ports[port] == null) {
+            Port[] more = ports.clone();
+            more[port] = new Port(port);
+            ports = more;
+        }
+        ports[port].output.switchTo(receiver);
+        ports[port].used = true;
+    }
+
+    /**
+     * Send a message to its port
+     * @param message The message
+     * @param timeStamp When to play it, in microseconds, or -1 for now; the
+     * other ports always play it now
+     */
+    public void send(MidiMessage message, long timeStamp) {
+        Port[] current = ports;
+        int port = ChannelAllocator.portOf(message);
+        Port to = port > 0 && port < current.length ? current[port] : null;
+        if (to != null && to.used) {
+            to.send(message);
+        } else {
+            first.send(message, timeStamp);
+        }
+    }
+
+    /**
+     * Stop the other ports' threads, silencing their devices
+     */
+    public synchronized void close() {
+        Port[] old = ports;
+        ports = new Port[old.length];
+        for (int i = 1; i < old.length; i++) {
+            if (old[i] != null) {
+                old[i].closed = true;
+                LockSupport.unpark(old[i].thread);
+                old[i].output.close();
+            }
+        }
+    }
+}
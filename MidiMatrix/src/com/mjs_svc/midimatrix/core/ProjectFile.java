@@ -0,0 +1,77 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.io.*;
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * ProjectFile reads and writes rolls as files.  A project file holds a roll
+ * encoded by RollCodec, the same text stored by MidiMatrixOnline; a journal
+ * snapshot may be read as a project file too.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class ProjectFile {
+
+    /**
+     * Read a roll from a file
+     * @param file The file to read
+     * @return The roll in the file
+     * @throws IOException The file could not be read or is not a project
+     */
+    public static Roll read(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = in.readLine();
+            if (line != null && line.startsWith("midimatrix-snapshot")) {
+                // skip the snapshot header and its sequence number
+                in.readLine();
+                line = in.readLine();
+            }
+            if (line == null) {
+                throw new IOException("Empty project file");
+            }
+            return RollCodec.decode(line.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + " is not a MIDIMatrix project: " + e.getMessage());
+        } catch (InvalidMidiDataException e) {
+            throw new IOException(file + " could not be loaded: " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a roll to a file
+     * @param roll The roll to write
+     * @param file The file to write
+     * @throws IOException The file could not be written
+     */
+    public static void write(Roll roll, File file) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(RollCodec.encode(roll));
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+/**
+ * RecordListener is handed each note a Recorder records, quantized to a cell
+ * of the grid being recorded into.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public interface RecordListener {
+
+    /**
+     * Called on the recorder's thread when a note has been played and let
+     * go (or recording stopped while it was held)
+     * @param gridIndex The grid being recorded into
+     * @param x The step the note starts on
+     * @param y The row of the note's pitch
+     * @param duration How many steps after the first the note lasts, as for
+     * Roll.gridToggleNote(int, int, int, int)
+     */
+    public void noteRecorded(int gridIndex, int x, int y, int duration);
+}
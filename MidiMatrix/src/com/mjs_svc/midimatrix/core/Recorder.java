@@ -0,0 +1,311 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.midi.*;
+
+/**
+ * Recorder records notes played on a MIDI input device (e.g.: a keyboard)
+ * into a grid.  The device's transmitter calls send() on its own thread,
+ * which does no more than put the note and the time it came into a NoteRing:
+ * it never locks, waits or allocates, so the device is never held up.  A
+ * thread of the recorder's own takes the notes out, pairs each note-on with
+ * its note-off, and quantizes them into the grid: the time to the nearest
+ * step of the loop and the pitch to the nearest row of the grid's scale and
+ * key, folded by octaves into the grid's range.
+ *
+ * <p>The recorder never touches the roll itself; RecordListeners are handed
+ * the cells to fill in.  Only one thread (a device's) may send to it at a
+ * time.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class Recorder implements Receiver {
+
+    public static final int CAPACITY = 1024; // notes waiting to be quantized
+    private static final long IDLE = 1000000; // nanoseconds to sleep when there is nothing to do
+
+    private final NoteRing ring = new NoteRing(CAPACITY);
+    private final Vector<RecordListener> listeners = new Vector<RecordListener>();
+    private final Thread consumer;
+    private volatile Take take;
+    private volatile boolean closed = false;
+    private MidiDevice input;
+    private Transmitter transmitter;
+
+    // only touched by the consumer thread
+    private Take current;
+    private final long[] held = new long[128]; // when each note held down was played, or -1
+
+    /**
+     * What is being recorded into
+     */
+    private static class Take {
+
+        private final int gridIndex, width;
+        private final int[] pitches;
+        private final long origin, step;
+
+        private Take(int _gridIndex, int[] _pitches, int _width, long _origin, long _step) {
+            gridIndex = _gridIndex;
+            pitches = _pitches;
+            width = _width;
+            origin = _origin;
+            step = _step;
+        }
+    }
+
+    /**
+     * Create a recorder with no input, which records nothing until a device
+     * is chosen and start() is called
+     */
+    public Recorder() {
+        for (int i = 0; i < held.length; i++) {
+            held[i] = -1;
+        }
+        consumer = new Thread(new Runnable() {
+
+            public void run() {
+                consume();
+            }
+        }, "MIDIMatrix recorder");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Hand recorded notes to a listener
+     * @param listener The listener
+     */
+    public void addRecordListener(RecordListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stop handing recorded notes to a listener
+     * @param listener The listener
+     */
+    public void removeRecordListener(RecordListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Listen to a MIDI input device, closing the one listened to before
+     * @param info The device, or null to listen to none
+     * @throws MidiUnavailableException The device could not be opened
+     */
+    public synchronized void setInput(MidiDevice.Info info) throws MidiUnavailableException {
+        closeInput();
+        if (info == null) {
+            return;
+        }
+        MidiDevice device = MidiSystem.getMidiDevice(info);
+        device.open();
+        try {
+            transmitter = device.getTransmitter();
+        } catch (MidiUnavailableException e) {
+            device.close();
+            throw e;
+        }
+        input = device;
+        transmitter.setReceiver(this);
+    }
+
+    /**
+     * @return True if there is an input device to record from
+     */
+    public synchronized boolean hasInput() {
+        return input != null;
+    }
+
+    /**
+     * Start recording into a grid
+     * @param gridIndex The grid
+     * @param pitches The note each row of the grid plays
+     * @param width How many steps the grid has; notes played past the end
+     * wrap round to the start, as the grid loops
+     * @param origin When the grid's first step started, by System.nanoTime()
+     * @param step How long a step lasts, in nanoseconds
+     */
+    public void start(int gridIndex, int[] pitches, int width, long origin, long step) {
+        take = new Take(gridIndex, pitches.clone(), width, origin, step);
+    }
+
+    /**
+     * Say again when the grid's first step started, e.g.: when playback has
+     * started over; notes held down carry on
+     * @param origin When the first step started, by System.nanoTime()
+     */
+    public void setOrigin(long origin) {
+        Take old = take;
+        if (old != null) {
+            take = new Take(old.gridIndex, old.pitches, old.width, origin, old.step);
+        }
+    }
+
+    /**
+     * Stop recording; notes still held down are recorded as if let go now
+     */
+    public void stop() {
+        take = null;
+    }
+
+    /**
+     * @return True while recording
+     */
+    public boolean isRecording() {
+        return take != null;
+    }
+
+    /**
+     * @return How many notes were lost because they came faster than they
+     * could be quantized
+     */
+    public long getDropped() {
+        return ring.getDropped();
+    }
+
+    /**
+     * Take a message from the input device; called on the device's thread
+     * @param message The message
+     * @param timeStamp When it came, by the device's clock; not used, as
+     * every device keeps its own
+     */
+    public void send(MidiMessage message, long timeStamp) {
+        if (take == null || !(message instanceof ShortMessage)) {
+            return;
+        }
+        ShortMessage mesg = (ShortMessage) message;
+        int command = mesg.getCommand();
+        if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+            ring.offer(System.nanoTime(), mesg.getStatus(), mesg.getData1(), mesg.getData2());
+        }
+    }
+
+    /**
+     * Stop recording and close the input device
+     */
+    public synchronized void close() {
+        stop();
+        closeInput();
+        closed = true;
+        LockSupport.unpark(consumer);
+    }
+
+    private void closeInput() {
+        if (transmitter != null) {
+            transmitter.close();
+            transmitter = null;
+        }
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+    }
+
+    /**
+     * Quantize notes as they come, until closed
+     */
+    private void consume() {
+        while (!closed) {
+            int message = ring.poll();
+            Take latest = take;
+            if (current != null && (latest == null || latest.gridIndex != current.gridIndex)) {
+                // let go of whatever is held down in the take that ended
+                finish(current, System.nanoTime());
+                current = null;
+            }
+            if (latest != null) {
+                current = latest;
+            }
+            if (message < 0) {
+                LockSupport.parkNanos(this, IDLE);
+                continue;
+            }
+            if (current == null) {
+                continue;
+            }
+            int command = (message >> 16) & 0xf0, note = (message >> 8) & 0x7f, velocity = message & 0x7f;
+            long time = ring.lastTime();
+            if (command == ShortMessage.NOTE_ON && velocity > 0) {
+                if (held[note] < 0) {
+                    held[note] = time;
+                }
+            } else if (held[note] >= 0) {
+                record(current, note, held[note], time);
+                held[note] = -1;
+            }
+        }
+    }
+
+    private void finish(Take finished, long now) {
+        for (int note = 0; note < held.length; note++) {
+            if (held[note] >= 0) {
+                record(finished, note, held[note], now);
+                held[note] = -1;
+            }
+        }
+    }
+
+    /**
+     * Quantize a note into a take's grid and hand it to the listener
+     */
+    private void record(Take into, int note, long on, long off) {
+        long start = Math.round((double) (on - into.origin) / into.step);
+        int x = (int) (((start % into.width) + into.width) % into.width);
+        long length = Math.max(1, Math.round((double) (off - on) / into.step));
+        int duration = (int) Math.min(length - 1, into.width - 1 - x);
+        int y = rowFor(into.pitches, note);
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).noteRecorded(into.gridIndex, x, y, duration);
+        }
+    }
+
+    /**
+     * Find the row whose pitch is nearest a note, after folding the note by
+     * octaves into the rows' range; on a tie, the lower pitch wins
+     * @param pitches The note each row plays
+     * @param note The note
+     * @return The row
+     */
+    public static int rowFor(int[] pitches, int note) {
+        int lowest = Integer.MAX_VALUE, highest = Integer.MIN_VALUE;
+        for (int y = 0; y < pitches.length; y++) {
+            lowest = Math.min(lowest, pitches[y]);
+            highest = Math.max(highest, pitches[y]);
+        }
+        if (note < lowest) {
+            note += (lowest - note + 11) / 12 * 12;
+        }
+        if (note > highest) {
+            note -= (note - highest + 11) / 12 * 12;
+        }
+        int row = 0;
+        for (int y = 1; y < pitches.length; y++) {
+            int distance = Math.abs(pitches[y] - note), best = Math.abs(pitches[row] - note);
+            if (distance < best || (distance == best && pitches[y] < pitches[row])) {
+                row = y;
+            }
+        }
+        return row;
+    }
+}
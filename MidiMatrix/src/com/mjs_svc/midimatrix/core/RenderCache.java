@@ -0,0 +1,382 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sound.midi.*;
+
+/**
+ * RenderCache remembers compiled sequences, MIDI files and rendered audio by
+ * the contents of the roll or grid they came from, so that the same matrix
+ * is only compiled and rendered once.
+ *
+ * <p>Files and audio are keyed by a SHA-256 of the roll's encoding and the
+ * render parameters; compiled sequences by the roll's or grid's fingerprint,
+ * which is much cheaper to get.  Entries are kept in memory, least
+ * recently used first out once the memory tier is over its size.  Files and
+ * audio may also be kept in a directory on disk, which is bounded the same
+ * way and survives restarts; sequences are only kept in memory.  Sequences
+ * handed out by the cache are shared and must not be changed.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class RenderCache {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int EVENT_WEIGHT = 96; // rough bytes per cached MidiEvent
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final long memoryLimit;
+    private long memoryUsed = 0;
+    private final File directory;
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private final long diskLimit;
+    private long diskUsed = 0;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * Create a cache kept only in memory
+     * @param _memoryLimit The most bytes to keep in memory
+     */
+    public RenderCache(long _memoryLimit) {
+        this(_memoryLimit, null, 0);
+    }
+
+    /**
+     * Create a cache kept in memory and on disk
+     * @param _memoryLimit The most bytes to keep in memory
+     * @param _directory The directory to keep files in, or null for none
+     * @param _diskLimit The most bytes to keep on disk
+     */
+    public RenderCache(long _memoryLimit, File _directory, long _diskLimit) {
+        memoryLimit = _memoryLimit;
+        directory = _directory;
+        diskLimit = _diskLimit;
+        if (directory != null) {
+            directory.mkdirs();
+            loadDiskIndex();
+        }
+    }
+
+    /**
+     * Compile a roll, or find it already compiled
+     * @param roll The roll
+     * @return The compiled sequence, which must not be changed
+     * @throws InvalidMidiDataException The roll could not be compiled
+     */
+    public Sequence sequence(Roll roll) throws InvalidMidiDataException {
+        // sequences never leave memory, so the roll's fingerprint will do
+        String key = "seq " + roll.getNumGrids() + "x" + roll.getGridWidth() + "x" + roll.getGridHeight()
+                + " " + Long.toHexString(roll.getFingerprint());
+        Sequence sequence = (Sequence) getFromMemory(key);
+        if (sequence == null) {
+            CompiledSequence.Part[] parts = new CompiledSequence.Part[roll.getNumGrids()];
+            for (int i = 0; i < parts.length; i++) {
+                if (roll.getGrid(i) != null) {
+                    parts[i] = new CompiledSequence.Part(roll.getGrid(i));
+                }
+            }
+            sequence = new CompiledSequence(roll.getSequence(), parts);
+            putInMemory(key, sequence, weigh(sequence));
+        }
+        return sequence;
+    }
+
+    /**
+     * Compile one grid of a roll, or find it already compiled
+     * @param roll The roll
+     * @param gridIndex The grid to compile
+     * @return The compiled sequence, which must not be changed
+     * @throws InvalidMidiDataException The grid could not be compiled
+     */
+    public Sequence gridSequence(Roll roll, int gridIndex) throws InvalidMidiDataException {
+        Grid grid = roll.getGrid(gridIndex);
+        String key = "grid " + grid.getWidth() + "x" + grid.getHeight() + " " + Long.toHexString(grid.getFingerprint());
+        Sequence sequence = (Sequence) getFromMemory(key);
+        if (sequence == null) {
+            sequence = new CompiledSequence(roll.compileGrid(gridIndex),
+                    new CompiledSequence.Part[]{new CompiledSequence.Part(grid)});
+            putInMemory(key, sequence, weigh(sequence));
+        }
+        return sequence;
+    }
+
+    /**
+     * Write a roll as a standard MIDI file, or find it already written
+     * @param roll The roll
+     * @return The file's bytes, which must not be changed
+     * @throws IOException The file could not be written
+     * @throws InvalidMidiDataException The roll could not be compiled
+     */
+    public byte[] midi(Roll roll) throws IOException, InvalidMidiDataException {
+        // files cached on disk before the tempo was written into them had the key "mid"
+        String key = rollKey(roll, "mid timed");
+        byte[] data = get(key);
+        if (data == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Renderer.writeMidi(sequence(roll), roll.getTempo(), out);
+            data = out.toByteArray();
+            put(key, data);
+        }
+        return data;
+    }
+
+    /**
+     * Render a roll as a WAVE file, or find it already rendered
+     * @param roll The roll
+     * @param pool The synthesizers to render with
+     * @return The file's bytes, which must not be changed
+     * @throws IOException The file could not be written
+     * @throws InvalidMidiDataException The roll could not be compiled
+     * @throws MidiUnavailableException No synthesizer could be opened
+     * @throws InterruptedException Interrupted while waiting for a synthesizer
+     */
+    public byte[] wave(Roll roll, SynthesizerPool pool)
+            throws IOException, InvalidMidiDataException, MidiUnavailableException, InterruptedException {
+        String key = rollKey(roll, "wav " + pool.getFormat());
+        byte[] data = get(key);
+        if (data == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Renderer.writeWave(sequence(roll), roll.getTempo(), out, pool);
+            data = out.toByteArray();
+            put(key, data);
+        }
+        return data;
+    }
+
+    /**
+     * Look up bytes in memory, then on disk
+     * @param key The key
+     * @return The bytes, or null if they aren't cached
+     */
+    public byte[] get(String key) {
+        byte[] data = (byte[]) getFromMemory(key);
+        if (data == null && directory != null) {
+            data = getFromDisk(key);
+            if (data != null) {
+                putInMemory(key, data, data.length);
+            }
+        }
+        if (data != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return data;
+    }
+
+    /**
+     * Keep bytes in memory and on disk
+     * @param key The key
+     * @param data The bytes
+     */
+    public void put(String key, byte[] data) {
+        putInMemory(key, data, data.length);
+        if (directory != null) {
+            putOnDisk(key, data);
+        }
+    }
+
+    /**
+     * @return How many lookups of bytes found them cached
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return How many lookups of bytes had to render them
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Make the key for something made from a whole roll
+     * @param roll The roll
+     * @param kind What was made from it, and how
+     * @return The key
+     */
+    public static String rollKey(Roll roll, String kind) {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        update(digest, kind);
+        update(digest, RollCodec.encode(roll));
+        return hex(digest.digest());
+    }
+
+    private synchronized Object getFromMemory(String key) {
+        Entry entry = memory.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    private synchronized void putInMemory(String key, Object value, long weight) {
+        if (weight > memoryLimit) {
+            return;
+        }
+        Entry old = memory.put(key, new Entry(value, weight));
+        if (old != null) {
+            memoryUsed -= old.weight;
+        }
+        memoryUsed += weight;
+        Iterator<Entry> eldest = memory.values().iterator();
+        while (memoryUsed > memoryLimit && eldest.hasNext()) {
+            memoryUsed -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    private byte[] getFromDisk(String key) {
+        synchronized (disk) {
+            if (disk.get(key) == null) {
+                return null;
+            }
+        }
+        File file = new File(directory, key);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+            // the file's modification time is its place in line for eviction
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            // evicted by another thread, or otherwise gone
+            return null;
+        }
+    }
+
+    private void putOnDisk(String key, byte[] data) {
+        File file = new File(directory, key);
+        File temp = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            synchronized (disk) {
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                    return;
+                }
+                Long old = disk.put(key, Long.valueOf(data.length));
+                if (old != null) {
+                    diskUsed -= old.longValue();
+                }
+                diskUsed += data.length;
+                Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+                while (diskUsed > diskLimit && eldest.hasNext()) {
+                    Map.Entry<String, Long> evict = eldest.next();
+                    new File(directory, evict.getKey()).delete();
+                    diskUsed -= evict.getValue().longValue();
+                    eldest.remove();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    private void loadDiskIndex() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        synchronized (disk) {
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].getName().endsWith(".tmp")) {
+                    // left over from a crash
+                    files[i].delete();
+                } else if (files[i].isFile()) {
+                    disk.put(files[i].getName(), Long.valueOf(files[i].length()));
+                    diskUsed += files[i].length();
+                }
+            }
+        }
+    }
+
+    private static long weigh(Sequence sequence) {
+        long events = 0;
+        Track[] tracks = sequence.getTracks();
+        for (int i = 0; i < tracks.length; i++) {
+            events += tracks[i].size();
+        }
+        return events * EVENT_WEIGHT;
+    }
+
+    private static void update(MessageDigest digest, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            digest.update((byte) text.charAt(i));
+        }
+        digest.update((byte) '\n');
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 15];
+            chars[i * 2 + 1] = HEX[bytes[i] & 15];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A cached value and roughly how much memory it takes
+     */
+    private static class Entry {
+
+        final Object value;
+        final long weight;
+
+        Entry(Object _value, long _weight) {
+            value = _value;
+            weight = _weight;
+        }
+    }
+}
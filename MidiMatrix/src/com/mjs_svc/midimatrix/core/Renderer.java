@@ -0,0 +1,238 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import javax.sound.midi.*;
+import javax.sound.sampled.*;
+
+/**
+ * Renderer turns a compiled roll into a standard MIDI file or into audio,
+ * without playing it and without any user interface.
+ *
+ * <p>Audio is rendered faster than real time by the JDK's software
+ * synthesizer, whose stream interface is not exported by the java.desktop
+ * module.  On Java 9 and later the JVM must be started with
+ * <code>--add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED</code>
+ * to render audio.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class Renderer {
+
+    public static final AudioFormat FORMAT = new AudioFormat(44100f, 16, 2, true, false);
+    private static final long TAIL = 2000000; // microseconds to let the last notes ring out
+
+    /**
+     * Write a sequence as a standard MIDI file, starting at a tempo
+     * @param sequence The sequence to write
+     * @param tempo The tempo to write, in BPM
+     * @param out Where to write it
+     * @throws IOException The file could not be written
+     */
+    public static void writeMidi(Sequence sequence, int tempo, OutputStream out) throws IOException {
+        Sequence timed;
+        try {
+            timed = withTempo(sequence, tempo);
+        } catch (InvalidMidiDataException e) {
+            throw new IOException("Could not set the tempo: " + e.getMessage());
+        }
+        int[] allowedTypes = MidiSystem.getMidiFileTypes(timed);
+        if (allowedTypes.length == 0) {
+            throw new IOException("MidiSystem couldn't find the proper type to save the file as");
+        }
+        MidiSystem.write(timed, allowedTypes[0], out);
+    }
+
+    /**
+     * Compile a roll and write it as a standard MIDI file
+     * @param roll The roll to write
+     * @param out Where to write it
+     * @throws IOException The file could not be written
+     * @throws InvalidMidiDataException The roll could not be compiled
+     */
+    public static void writeMidi(Roll roll, OutputStream out) throws IOException, InvalidMidiDataException {
+        writeMidi(roll.getSequence(), roll.getTempo(), out);
+    }
+
+    /**
+     * Copy a sequence with a set tempo event at the start of its first track.
+     * A sequencer is given its tempo directly, but a MIDI file without one
+     * plays at 120 BPM.  The sequence itself is left as it is, since it may
+     * be shared.
+     * @param sequence The sequence to copy
+     * @param tempo The tempo, in BPM
+     * @return The copy
+     * @throws InvalidMidiDataException The tempo is out of range
+     */
+    public static Sequence withTempo(Sequence sequence, int tempo) throws InvalidMidiDataException {
+        int perQuarter = 60000000 / tempo;
+        MetaMessage setTempo = new MetaMessage();
+        setTempo.setMessage(0x51, new byte[]{(byte) (perQuarter >> 16), (byte) (perQuarter >> 8), (byte) perQuarter}, 3);
+
+        Sequence timed = new Sequence(sequence.getDivisionType(), sequence.getResolution());
+        Track[] tracks = sequence.getTracks();
+        for (int i = 0; i < tracks.length; i++) {
+            Track track = timed.createTrack();
+            if (i == 0) {
+                track.add(new MidiEvent(setTempo, 0));
+            }
+            for (int j = 0; j < tracks[i].size(); j++) {
+                track.add(tracks[i].get(j));
+            }
+        }
+        if (tracks.length == 0) {
+            timed.createTrack().add(new MidiEvent(setTempo, 0));
+        }
+        return timed;
+    }
+
+    /**
+     * Compile a roll and render it as a WAVE file
+     * @param roll The roll to render
+     * @param out Where to write it
+     * @throws IOException The file could not be written
+     * @throws InvalidMidiDataException The roll could not be compiled
+     * @throws MidiUnavailableException The synthesizer could not be opened
+     */
+    public static void writeWave(Roll roll, OutputStream out)
+            throws IOException, InvalidMidiDataException, MidiUnavailableException {
+        writeWave(roll.getSequence(), roll.getTempo(), out);
+    }
+
+    /**
+     * Render a sequence as a WAVE file
+     * @param sequence The sequence to render
+     * @param tempo The tempo to render at, in BPM
+     * @param out Where to write it
+     * @throws IOException The file could not be written
+     * @throws MidiUnavailableException The synthesizer could not be opened
+     */
+    public static void writeWave(Sequence sequence, int tempo, OutputStream out)
+            throws IOException, MidiUnavailableException {
+        Synthesizer synth = MidiSystem.getSynthesizer();
+        AudioInputStream stream = openStream(synth, FORMAT);
+        try {
+            long length = schedule(sequence, tempo, synth.getReceiver());
+            long frames = (long) (FORMAT.getFrameRate() * (length + TAIL) / 1000000.0);
+            AudioSystem.write(new AudioInputStream(stream, FORMAT, frames), AudioFileFormat.Type.WAVE, out);
+        } finally {
+            synth.close();
+        }
+    }
+
+    /**
+     * Render a sequence as a WAVE file on a synthesizer from a pool
+     * @param sequence The sequence to render
+     * @param tempo The tempo to render at, in BPM
+     * @param out Where to write it
+     * @param pool The pool to borrow a synthesizer from
+     * @throws IOException The file could not be written
+     * @throws MidiUnavailableException No synthesizer could be opened
+     * @throws InterruptedException Interrupted while waiting for a synthesizer
+     */
+    public static void writeWave(Sequence sequence, int tempo, OutputStream out, SynthesizerPool pool)
+            throws IOException, MidiUnavailableException, InterruptedException {
+        SynthesizerPool.Pooled synth = pool.borrow();
+        boolean ok = false;
+        try {
+            long length = schedule(sequence, tempo, synth.getReceiver(), synth.getMicrosecondPosition());
+            long frames = (long) (pool.getFormat().getFrameRate() * (length + TAIL) / 1000000.0);
+            AudioSystem.write(synth.read(frames), AudioFileFormat.Type.WAVE, out);
+            ok = true;
+        } finally {
+            if (ok) {
+                pool.release(synth);
+            } else {
+                // whatever went wrong may have left audio unread in the stream
+                pool.discard(synth);
+            }
+        }
+    }
+
+    /**
+     * Send every event in a sequence to a receiver, time stamped
+     * @param sequence The sequence to send
+     * @param tempo The tempo to time the events at, in BPM
+     * @param receiver The receiver to send to
+     * @return The time of the last event, in microseconds
+     */
+    public static long schedule(Sequence sequence, int tempo, Receiver receiver) {
+        return schedule(sequence, tempo, receiver, 0);
+    }
+
+    /**
+     * Send every event in a sequence to a receiver, time stamped
+     * @param sequence The sequence to send
+     * @param tempo The tempo to time the events at, in BPM
+     * @param receiver The receiver to send to
+     * @param start The receiver's time at the start of the sequence, in
+     * microseconds
+     * @return The time of the last event after the start, in microseconds
+     */
+    public static long schedule(Sequence sequence, int tempo, Receiver receiver, long start) {
+        double tickLength = 60000000.0 / ((double) tempo * sequence.getResolution());
+        long last = 0;
+        Track[] tracks = sequence.getTracks();
+        for (int i = 0; i < tracks.length; i++) {
+            for (int j = 0; j < tracks[i].size(); j++) {
+                MidiEvent evt = tracks[i].get(j);
+                if (evt.getMessage() instanceof ShortMessage) {
+                    long time = (long) (evt.getTick() * tickLength);
+                    receiver.send(evt.getMessage(), start + time);
+                    if (time > last) {
+                        last = time;
+                    }
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Open a software synthesizer so that it renders into a stream rather
+     * than to the sound card
+     * @param synth The synthesizer, which must be the JDK's software synth
+     * @param format The format to render in
+     * @return The rendered audio
+     * @throws MidiUnavailableException The synthesizer can't render to a
+     * stream or couldn't be opened
+     */
+    public static AudioInputStream openStream(Synthesizer synth, AudioFormat format)
+            throws MidiUnavailableException {
+        try {
+            Method open = synth.getClass().getMethod("openStream", AudioFormat.class, Map.class);
+            return (AudioInputStream) open.invoke(synth, format, null);
+        } catch (NoSuchMethodException e) {
+            throw new MidiUnavailableException("The synthesizer cannot render to a file: " + synth.getDeviceInfo());
+        } catch (IllegalAccessException e) {
+            throw new MidiUnavailableException("Rendering audio needs "
+                    + "--add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED");
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof MidiUnavailableException) {
+                throw (MidiUnavailableException) e.getCause();
+            }
+            throw new MidiUnavailableException(String.valueOf(e.getCause()));
+        }
+    }
+}
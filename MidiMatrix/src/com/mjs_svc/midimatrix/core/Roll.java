@@ -1,4 +1,4 @@
-package com.mjs_svc.midimatrix;
+package com.mjs_svc.midimatrix.core;
 
 /*
  * MIDIMatrix - Matrix-based MIDI sequencer
@@ -35,7 +35,11 @@ public class Roll extends Sequence {
     protected Grid[] grids;
     protected int gridsEnabled, gridWidth = 16, gridHeight = 16, numGrids = 16;
     private Vector<boolean[]> roll;
+    private Vector<RollListener> listeners = new Vector<RollListener>();
     private int tempo;
+    private long segmentFingerprint = 0;  // Zobrist hash of the grids enabled in each segment
+    private long compiledFingerprint;     // The fingerprint when the roll was last compiled
+    private boolean compiled = false;
 
     /**
      * Construct a new Roll
@@ -43,7 +47,7 @@ public class Roll extends Sequence {
      * @throws InvalidMidiDataException
      */
     public Roll(int _tempo) throws InvalidMidiDataException {
-        super(Sequence.PPQ, 1, 16); // since super() has to be called first, have to hardcode the 16; should be gridWidth
+        super(Sequence.PPQ, 1, 16); // since super() has to be called first, have to hardcode the 16; should be numGrids
         tempo = _tempo;
         gridsEnabled = -1;
         grids = new Grid[16];
@@ -51,7 +55,7 @@ public class Roll extends Sequence {
     }
 
     public Roll(int _tempo, int _numGrids, int _gridWidth, int _gridHeight) throws InvalidMidiDataException {
-        super(Sequence.PPQ, 1, _gridWidth);
+        super(Sequence.PPQ, 1, _numGrids);
         numGrids = _numGrids;
         gridWidth = _gridWidth;
         gridHeight = _gridHeight;
@@ -67,6 +71,7 @@ public class Roll extends Sequence {
      */
     public void setTempo(int _tempo) {
         tempo = _tempo;
+        fireRollEdited(RollListener.TEMPO, _tempo);
     }
 
     /**
@@ -77,6 +82,112 @@ public class Roll extends Sequence {
         return tempo;
     }
 
+    /**
+     * Get a fingerprint of the roll: a 64 bit hash of its grids and
+     * segments, which changes whenever anything that goes into the compiled
+     * sequence does.  The segments' part is kept up to date on each edit and
+     * the grids keep their own, so this costs one step per grid.
+     * @return The fingerprint
+     * @see com.mjs_svc.midimatrix.core.Grid#getFingerprint()
+     */
+    public long getFingerprint() {
+        long fingerprint = segmentFingerprint ^ Grid.mix(roll.size());
+        for (int i = 0; i < numGrids; i++) {
+            if (grids[i] != null) {
+                fingerprint ^= Grid.mix(grids[i].getFingerprint() + i * 0x632BE59BD9B4E019L);
+            }
+        }
+        return fingerprint;
+    }
+
+    private static long segmentHash(int segmentIndex, int gridIndex) {
+        return Grid.mix(0x5345474D00000000L ^ ((long) segmentIndex << 16) ^ gridIndex);
+    }
+
+    /**
+     * Work the segments' part of the fingerprint out from scratch, after
+     * segments have been added, removed or moved in the middle of the roll
+     */
+    private void rehashSegments() {
+        segmentFingerprint = 0;
+        for (int i = 0; i < roll.size(); i++) {
+            boolean[] segment = roll.get(i);
+            for (int j = 0; j < segment.length; j++) {
+                if (segment[j]) {
+                    segmentFingerprint ^= segmentHash(i, j);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a listener to be told about every edit made to the roll
+     * @param listener The listener to add
+     */
+    public void addRollListener(RollListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stop telling a listener about edits made to the roll
+     * @param listener The listener to remove
+     */
+    public void removeRollListener(RollListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Tell all listeners about an edit
+     * @param edit The kind of edit, as in RollListener
+     * @param args The arguments of the edit
+     */
+    protected void fireRollEdited(int edit, int... args) {
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).rollEdited(this, edit, args);
+        }
+    }
+
+    /**
+     * Get the number of grids the roll can hold
+     * @return The number of grids
+     */
+    public int getNumGrids() {
+        return numGrids;
+    }
+
+    /**
+     * Get the number of grids that have been enabled
+     * @return The number of enabled grids
+     */
+    public int getGridsEnabled() {
+        return gridsEnabled + 1;
+    }
+
+    /**
+     * Get the width of each grid in the roll
+     * @return The width of the grids
+     */
+    public int getGridWidth() {
+        return gridWidth;
+    }
+
+    /**
+     * Get the height of each grid in the roll
+     * @return The height of the grids
+     */
+    public int getGridHeight() {
+        return gridHeight;
+    }
+
+    /**
+     * Get a grid from the roll
+     * @param gridIndex The grid to retrieve
+     * @return The grid
+     */
+    public Grid getGrid(int gridIndex) {
+        return grids[gridIndex];
+    }
+
     /**
      * Enable a new grid in the roll
      * @param _scale The scale of the new grid
@@ -88,13 +199,31 @@ public class Roll extends Sequence {
     public void enableGrid(Scale _scale, int _instrument, int _key, int _velocity) throws IndexOutOfBoundsException {
         // make sure we can only enable numGrids grids
         if (gridsEnabled < numGrids - 1) {
+            int pitched = countGrids(false);
             gridsEnabled++;
             grids[gridsEnabled] = new Grid(gridWidth, gridHeight, _scale, _instrument, _key, _velocity, this.tracks.get(gridsEnabled));
+            grids[gridsEnabled].setChannel(ChannelAllocator.pitchedChannel(pitched));
+            grids[gridsEnabled].setPort(ChannelAllocator.pitchedPort(pitched));
         } else {
             throw new IndexOutOfBoundsException("Roll may only have " + numGrids + " grids active at a time!");
         }
     }
 
+    /**
+     * Count the grids of one kind enabled so far, to find a new grid's
+     * channel
+     * @see com.mjs_svc.midimatrix.core.ChannelAllocator
+     */
+    private int countGrids(boolean percussion) {
+        int count = 0;
+        for (int i = 0; i <= gridsEnabled; i++) {
+            if (grids[i].isPercussion() == percussion) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * Enable a new percussion grid in the roll
      * @param _key The starting pitch of the lowest grid index
@@ -103,8 +232,10 @@ public class Roll extends Sequence {
      */
     public void enablePercussionGrid(int _key, int _velocity) throws IndexOutOfBoundsException {
         if (gridsEnabled < numGrids - 1) {
+            int percussion = countGrids(true);
             gridsEnabled++;
             grids[gridsEnabled] = new PercussionGrid(gridWidth, gridHeight, _key, _velocity, this.tracks.get(gridsEnabled));
+            grids[gridsEnabled].setPort(ChannelAllocator.percussionPort(percussion));
         } else {
             throw new IndexOutOfBoundsException("Roll may only have " + numGrids + " grids active at a time!");
         }
@@ -116,7 +247,16 @@ public class Roll extends Sequence {
      */
     public void clearGrid(int gridIndex) {
         Grid old = grids[gridIndex];
-        grids[gridIndex] = new Grid(gridWidth, gridHeight, old.getScale(), old.getInstrument(), old.getKey(), old.getVelocity(), old.track);
+        if (old.isPercussion()) {
+            grids[gridIndex] = new PercussionGrid(gridWidth, gridHeight, old.getKey(), old.getVelocity(), old.track);
+        } else {
+            grids[gridIndex] = new Grid(gridWidth, gridHeight, old.getScale(), old.getInstrument(), old.getKey(), old.getVelocity(), old.track);
+        }
+        grids[gridIndex].setChannel(old.getChannel());
+        grids[gridIndex].setPort(old.getPort());
+        grids[gridIndex].setMuted(old.isMuted());
+        grids[gridIndex].setSolo(old.isSolo());
+        fireRollEdited(RollListener.GRID_CLEAR, gridIndex);
     }
 
     /**
@@ -125,6 +265,7 @@ public class Roll extends Sequence {
     public void addRollSegment() {
         // Add a segment to the roll
         roll.add(new boolean[numGrids]);
+        fireRollEdited(RollListener.SEGMENT_ADD);
     }
 
     /**
@@ -135,6 +276,8 @@ public class Roll extends Sequence {
     public void addRollSegmentAt(int index) {
         // Add a segment to the roll at the given index
         roll.add(index, new boolean[numGrids]);
+        rehashSegments();
+        fireRollEdited(RollListener.SEGMENT_ADD_AT, index);
     }
 
     /**
@@ -144,6 +287,8 @@ public class Roll extends Sequence {
     public void removeRollSegment(int index) {
         // Remove a segment from the roll at index
         roll.remove(index);
+        rehashSegments();
+        fireRollEdited(RollListener.SEGMENT_REMOVE, index);
     }
 
     /**
@@ -156,6 +301,8 @@ public class Roll extends Sequence {
         boolean[] segment = roll.get(from);
         roll.remove(from);
         roll.add(to, segment);
+        rehashSegments();
+        fireRollEdited(RollListener.SEGMENT_MOVE, from, to);
     }
 
     /**
@@ -166,8 +313,12 @@ public class Roll extends Sequence {
     public void enableGridInRollSegment(int segmentIndex, int gridIndex) {
         // Turn a grid on for that particular segment of the roll
         boolean[] segment = roll.get(segmentIndex);
+        if (!segment[gridIndex]) {
+            segmentFingerprint ^= segmentHash(segmentIndex, gridIndex);
+        }
         segment[gridIndex] = true;
         roll.set(segmentIndex, segment);
+        fireRollEdited(RollListener.SEGMENT_ENABLE, segmentIndex, gridIndex);
     }
 
     /**
@@ -178,8 +329,12 @@ public class Roll extends Sequence {
     public void disableGridInRollSegment(int segmentIndex, int gridIndex) {
         // Turn a grid off for that particular segment of the roll
         boolean[] segment = roll.get(segmentIndex);
+        if (segment[gridIndex]) {
+            segmentFingerprint ^= segmentHash(segmentIndex, gridIndex);
+        }
         segment[gridIndex] = false;
         roll.set(segmentIndex, segment);
+        fireRollEdited(RollListener.SEGMENT_DISABLE, segmentIndex, gridIndex);
     }
 
     /**
@@ -189,8 +344,10 @@ public class Roll extends Sequence {
      */
     public void toggleGridInRollSegment(int segmentIndex, int gridIndex) {
         boolean[] segment = roll.get(segmentIndex);
+        segmentFingerprint ^= segmentHash(segmentIndex, gridIndex);
         segment[gridIndex] = !segment[gridIndex];
         roll.set(segmentIndex, segment);
+        fireRollEdited(RollListener.SEGMENT_TOGGLE, segmentIndex, gridIndex);
     }
 
     /**
@@ -222,6 +379,7 @@ public class Roll extends Sequence {
     public void gridVelocityUp(int gridIndex) {
         // Turn up the volume of a particular grid
         grids[gridIndex].velocityUp();
+        fireRollEdited(RollListener.GRID_VELOCITY, gridIndex, grids[gridIndex].getVelocity());
     }
 
     /**
@@ -234,23 +392,25 @@ public class Roll extends Sequence {
     public void gridVelocityDown(int gridIndex) {
         // Turn down the volume of a particular grid
         grids[gridIndex].velocityDown();
+        fireRollEdited(RollListener.GRID_VELOCITY, gridIndex, grids[gridIndex].getVelocity());
     }
 
     /**
      * Set the instrument of the grid
      * @param gridIndex The grid to work with
      * @param instrument The new instrument (0 is piano)
-     * @see com.mjs_svc.midimatrix.Grid#setInstrument(int)
+     * @see com.mjs_svc.midimatrix.core.Grid#setInstrument(int)
      */
     public void gridSetInstrument(int gridIndex, int instrument) {
         grids[gridIndex].setInstrument(instrument);
+        fireRollEdited(RollListener.GRID_INSTRUMENT, gridIndex, instrument);
     }
 
     /**
      * Get the instrument of a grid
      * @param gridIndex The grid to work with
      * @return The instrument (0 is piano)
-     * @see com.mjs_svc.midimatrix.Grid#getInstrument()
+     * @see com.mjs_svc.midimatrix.core.Grid#getInstrument()
      */
     public int gridGetInstrument(int gridIndex) {
         return grids[gridIndex].getInstrument();
@@ -261,7 +421,7 @@ public class Roll extends Sequence {
      * @param gridIndex The grid to work with
      * @return a vector of instrument strings
      */
-    public Vector gridGetInstrumentList(int gridIndex) {
+    public Vector<String> gridGetInstrumentList(int gridIndex) {
         return grids[gridIndex].instrumentList;
     }
 
@@ -269,17 +429,18 @@ public class Roll extends Sequence {
      * Set the scale of a grid
      * @param gridIndex The grid to work with
      * @param scale The new scale
-     * @see com.mjs_svc.midimatrix.Grid#setScale(com.mjs_svc.midimatrix.Scale)
+     * @see com.mjs_svc.midimatrix.core.Grid#setScale(com.mjs_svc.midimatrix.core.Scale)
      */
     public void gridSetScale(int gridIndex, Scale scale) {
         grids[gridIndex].setScale(scale);
+        fireRollEdited(RollListener.GRID_SCALE, gridIndex, Scale.getScaleIndex(grids[gridIndex].getScale()));
     }
 
     /**
      * Get the scale of a grid
      * @param gridIndex The grid to work with
      * @return The grid's scale
-     * @see com.mjs_svc.midimatrix.Grid#getScale()
+     * @see com.mjs_svc.midimatrix.core.Grid#getScale()
      */
     public Scale gridGetScale(int gridIndex) {
         return grids[gridIndex].getScale();
@@ -290,38 +451,82 @@ public class Roll extends Sequence {
      * @param gridIndex The grid to work with
      * @param velocity The new velocity
      * @throws IndexOutOfBoundsException
-     * @see com.mjs_svc.midimatrix.Grid#setVelocity(int)
+     * @see com.mjs_svc.midimatrix.core.Grid#setVelocity(int)
      */
     public void gridSetVelocity(int gridIndex, int velocity) throws IndexOutOfBoundsException {
         grids[gridIndex].setVelocity(velocity);
+        fireRollEdited(RollListener.GRID_VELOCITY, gridIndex, velocity);
     }
 
     /**
      * Return the velocity (volume) of the grid at a given index
      * @param gridIndex The grid to work with
      * @return The velocity
-     * @see com.mjs_svc.midimatrix.Grid#getVelocity()
+     * @see com.mjs_svc.midimatrix.core.Grid#getVelocity()
      */
     public int gridGetVelocity(int gridIndex) {
         return grids[gridIndex].getVelocity();
     }
 
+    /**
+     * Mute or unmute the grid at a given index
+     * @param gridIndex The grid to work with
+     * @param muted True to mute
+     * @see com.mjs_svc.midimatrix.core.Grid#setMuted(boolean)
+     */
+    public void gridSetMuted(int gridIndex, boolean muted) {
+        grids[gridIndex].setMuted(muted);
+        fireRollEdited(RollListener.GRID_MUTE, gridIndex, muted ? 1 : 0);
+    }
+
+    /**
+     * Tell whether the grid at a given index is muted
+     * @param gridIndex The grid to work with
+     * @return True if muted
+     * @see com.mjs_svc.midimatrix.core.Grid#isMuted()
+     */
+    public boolean gridGetMuted(int gridIndex) {
+        return grids[gridIndex].isMuted();
+    }
+
+    /**
+     * Solo or unsolo the grid at a given index
+     * @param gridIndex The grid to work with
+     * @param solo True to solo
+     * @see com.mjs_svc.midimatrix.core.Grid#setSolo(boolean)
+     */
+    public void gridSetSolo(int gridIndex, boolean solo) {
+        grids[gridIndex].setSolo(solo);
+        fireRollEdited(RollListener.GRID_SOLO, gridIndex, solo ? 1 : 0);
+    }
+
+    /**
+     * Tell whether the grid at a given index is solo
+     * @param gridIndex The grid to work with
+     * @return True if solo
+     * @see com.mjs_svc.midimatrix.core.Grid#isSolo()
+     */
+    public boolean gridGetSolo(int gridIndex) {
+        return grids[gridIndex].isSolo();
+    }
+
     /**
      * Set the key of the grid at a given index
      * @param gridIndex The grid to work with
      * @param key The new key
-     * @see com.mjs_svc.midimatrix.Grid#setKey(int)
+     * @see com.mjs_svc.midimatrix.core.Grid#setKey(int)
      */
     public void gridSetKey(int gridIndex, int key) {
         // Set the key of a particular grid
         grids[gridIndex].setKey(key);
+        fireRollEdited(RollListener.GRID_KEY, gridIndex, key);
     }
 
     /**
      * Return the key of grid at a given index
      * @param gridIndex
      * @return The key
-     * @see com.mjs_svc.midimatrix.Grid#getKey()
+     * @see com.mjs_svc.midimatrix.core.Grid#getKey()
      */
     public int gridGetKey(int gridIndex) {
         return grids[gridIndex].getKey();
@@ -336,6 +541,7 @@ public class Roll extends Sequence {
     public void gridOctaveUp(int gridIndex) {
         // Raise the key of a particular grid by an octave
         grids[gridIndex].octaveUp();
+        fireRollEdited(RollListener.GRID_KEY, gridIndex, grids[gridIndex].getKey());
     }
 
     /**
@@ -347,6 +553,7 @@ public class Roll extends Sequence {
     public void gridOctaveDown(int gridIndex) {
         // Lower the key of a particular grid by an octave
         grids[gridIndex].octaveDown();
+        fireRollEdited(RollListener.GRID_KEY, gridIndex, grids[gridIndex].getKey());
     }
 
     /**
@@ -355,7 +562,7 @@ public class Roll extends Sequence {
      * @param x X coordinate on the grid
      * @param y Y coordinate on the grid
      * @return The status of the cell
-     * @see com.mjs_svc.midimatrix.Grid#noteStatus(int, int)
+     * @see com.mjs_svc.midimatrix.core.Grid#noteStatus(int, int)
      */
     public boolean gridNoteStatus(int gridIndex, int x, int y) {
         return grids[gridIndex].noteStatus(x, y);
@@ -367,7 +574,7 @@ public class Roll extends Sequence {
      * @param x X coordinate of the note start
      * @param y Y coordinate of the note start
      * @return The length of the note or 0
-     * @see com.mjs_svc.midimatrix.Grid#noteLength(int, int)
+     * @see com.mjs_svc.midimatrix.core.Grid#noteLength(int, int)
      */
     public int gridNoteLength(int gridIndex, int x, int y) {
         return grids[gridIndex].noteLength(x, y);
@@ -378,11 +585,12 @@ public class Roll extends Sequence {
      * @param gridIndex The grid to work with
      * @param x X coordinate on the grid
      * @param y Y coordinate on the grid
-     * @see com.mjs_svc.midimatrix.Grid#toggleNoteOn(int, int)
+     * @see com.mjs_svc.midimatrix.core.Grid#toggleNoteOn(int, int)
      */
     public void gridToggleNoteOn(int gridIndex, int x, int y) {
         // Start a note playing at the given coordinates for a given grid
         grids[gridIndex].toggleNoteOn(x, y);
+        fireRollEdited(RollListener.GRID_TOGGLE_ON, gridIndex, x, y);
     }
 
     /**
@@ -390,11 +598,12 @@ public class Roll extends Sequence {
      * @param gridIndex The grid to work with
      * @param x X coordinate on the grid
      * @param y Y coordinate on the grid
-     * @see com.mjs_svc.midimatrix.Grid#toggleNoteOff(int, int)
+     * @see com.mjs_svc.midimatrix.core.Grid#toggleNoteOff(int, int)
      */
     public void gridToggleNoteOff(int gridIndex, int x, int y) {
         // Stop a note playing at the given coordinates for the given grid
         grids[gridIndex].toggleNoteOff(x, y);
+        fireRollEdited(RollListener.GRID_TOGGLE_OFF, gridIndex, x, y);
     }
 
     /**
@@ -403,10 +612,11 @@ public class Roll extends Sequence {
      * @param gridIndex The grid to work with
      * @param x X coordinate on the grid
      * @param y Y coordinate on the grid
-     * @see com.mjs_svc.midimatrix.Grid#toggleNote(int, int)
+     * @see com.mjs_svc.midimatrix.core.Grid#toggleNote(int, int)
      */
     public void gridToggleNote(int gridIndex, int x, int y) {
         grids[gridIndex].toggleNote(x, y);
+        fireRollEdited(RollListener.GRID_TOGGLE, gridIndex, x, y);
     }
 
     /**
@@ -415,25 +625,34 @@ public class Roll extends Sequence {
      * @param x X coordinate of the grid
      * @param y Y coordinate of the grid
      * @param duration Duration of the note to toggle
-     * @see com.mjs_svc.midimatrix.Grid#toggleNote(int, int, int)
+     * @see com.mjs_svc.midimatrix.core.Grid#toggleNote(int, int, int)
      */
     public void gridToggleNote(int gridIndex, int x, int y, int duration) {
         grids[gridIndex].toggleNote(x, y, duration);
+        fireRollEdited(RollListener.GRID_TOGGLE_LENGTH, gridIndex, x, y, duration);
     }
 
     /**
      * Compile all the grids in the roll, then build the roll's sequence out of
-     * those compiled tracks
+     * those compiled tracks.  Nothing is done if the roll's fingerprint hasn't
+     * changed since the last compile.
      * @throws InvalidMidiDataException from Grid.compile()
-     * @see com.mjs_svc.midimatrix.Grid#compile()
+     * @see com.mjs_svc.midimatrix.core.Grid#compile()
      */
     public void compile() throws InvalidMidiDataException {
-        Track[] newTracks = new Sequence(Sequence.PPQ, 1, gridWidth).getTracks();
+        long fingerprint = getFingerprint();
+        if (compiled && compiledFingerprint == fingerprint) {
+            return;
+        }
+        Track[] newTracks = new Sequence(Sequence.PPQ, 1, numGrids).getTracks();
         MidiEvent evt;
 
-        // loop through and compile each grid to make sure it's up to date
+        // loop through and compile each grid to make sure it's up to date;
+        // grids that haven't been enabled yet have nothing to play
         for (int i = 0; i < this.tracks.size(); i++) {
-            this.tracks.setElementAt(grids[i].compile(), i);
+            if (grids[i] != null) {
+                this.tracks.setElementAt(grids[i].compile(), i);
+            }
         }
 
         // loop through each segment in the roll
@@ -442,7 +661,7 @@ public class Roll extends Sequence {
             // loop through each grid in the segment
             for (int j = 0; j < numGrids; j++) {
                 // if the grid is enabled for that segment
-                if (roll.get(i)[j]) {
+                if (roll.get(i)[j] && grids[j] != null) {
                     // loop through each message in the grid's track and
                     // add it to the sequence with a new time stamp
                     for (int k = 0; k < this.tracks.get(j).size(); k++) {
@@ -461,6 +680,8 @@ public class Roll extends Sequence {
         for (int i = 0; i < this.tracks.size(); i++) {
             this.tracks.setElementAt(newTracks[i], i);
         }
+        compiledFingerprint = fingerprint;
+        compiled = true;
     }
 
     /**
@@ -479,7 +700,7 @@ public class Roll extends Sequence {
      * @param gridIndex The grid to compile
      * @return A javax.sound.midi.Sequence to play
      * @throws InvalidMidiDataException from Grid.compile()
-     * @see com.mjs_svc.midimatrix.Grid#compile()
+     * @see com.mjs_svc.midimatrix.core.Grid#compile()
      */
     public Sequence compileGrid(int gridIndex) throws InvalidMidiDataException {
         // create a new sequence to return
@@ -0,0 +1,469 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * RollCodec turns the state of a Roll into a short, URL-safe string and back.
+ * This is the format stored in the matrix field of MidiMatrixOnline.
+ *
+ * <p>The string is unpadded base64 (using '-' and '_') of the following:</p>
+ * <ul>
+ * <li>a version byte</li>
+ * <li>the tempo, grid count, grid width, grid height, enabled grid count and
+ * segment count, each as a variable-length integer</li>
+ * <li>for each enabled grid, a flags byte (percussion, muted, solo), then
+ * the scale (index into Scale.SCALES plus one, 0 if unknown), instrument,
+ * key and velocity bytes</li>
+ * <li>the body: two bits (noteOn, noteOff) per cell for each grid, column
+ * by column, followed by one bit per grid for each segment, with runs of
+ * zero bytes written as a zero byte and the length of the run</li>
+ * </ul>
+ *
+ * <p>A codec reuses its buffers between calls, so keep one per thread; the
+ * static methods do so automatically.  Buffers grown for an unusually large
+ * roll are let go of afterwards.</p>
+ *
+ * <p>Encoded rolls may come from anywhere, so every number is checked before
+ * it is used, and nothing is allocated for more cells than the string can
+ * hold.  Any string that isn't a valid roll is refused with an
+ * IllegalArgumentException before the target roll is changed.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class RollCodec {
+
+    public static final int VERSION = 1;
+    public static final int MAX_GRIDS = 1024, MAX_CELLS = 1 << 24, MAX_SEGMENTS = 4096; // refuse anything bigger
+    private static final int KEPT = 1 << 16; // the largest buffers kept between calls
+    private static final int FLAG_PERCUSSION = 1, FLAG_MUTED = 2, FLAG_SOLO = 4;
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+    }
+    private static final ThreadLocal<RollCodec> codecs = new ThreadLocal<RollCodec>() {
+
+        @Override
+        protected RollCodec initialValue() {
+            return new RollCodec();
+        }
+    };
+    private byte[] bytes = new byte[256], body = new byte[256];
+    private int length, position;
+    private StringBuilder text = new StringBuilder();
+
+    /**
+     * Encode a roll using this thread's codec
+     * @param roll The roll to encode
+     * @return The encoded roll
+     */
+    public static String encode(Roll roll) {
+        return codecs.get().encodeRoll(roll);
+    }
+
+    /**
+     * Decode a new roll using this thread's codec
+     * @param encoded The encoded roll
+     * @return A new roll with the encoded state
+     * @throws IllegalArgumentException The string is not an encoded roll
+     * @throws InvalidMidiDataException The roll could not be built
+     */
+    public static Roll decode(CharSequence encoded) throws InvalidMidiDataException {
+        return codecs.get().decodeRoll(encoded, null);
+    }
+
+    /**
+     * Decode an encoded roll into an existing roll using this thread's codec.
+     * Only the grids that both rolls have enabled are set.
+     * @param encoded The encoded roll
+     * @param target The roll to set the state of
+     * @throws IllegalArgumentException The string is not an encoded roll
+     */
+    public static void decode(CharSequence encoded, Roll target) {
+        try {
+            codecs.get().decodeRoll(encoded, target);
+        } catch (InvalidMidiDataException e) {
+            // only thrown when building a new roll
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Encode a roll
+     * @param roll The roll to encode
+     * @return The encoded roll
+     */
+    public String encodeRoll(Roll roll) {
+        try {
+            return encodeFrom(roll);
+        } finally {
+            letGoOfBuffers();
+        }
+    }
+
+    /**
+     * Encode a roll into the buffers
+     * @see #encodeRoll(Roll)
+     */
+    private String encodeFrom(Roll roll) {
+        int enabled = roll.getGridsEnabled();
+        int width = roll.getGridWidth(), height = roll.getGridHeight();
+
+        // header
+        length = 0;
+        writeByte(VERSION);
+        writeVarint(roll.getTempo());
+        writeVarint(roll.getNumGrids());
+        writeVarint(width);
+        writeVarint(height);
+        writeVarint(enabled);
+        writeVarint(roll.size());
+        for (int i = 0; i < enabled; i++) {
+            Grid grid = roll.getGrid(i);
+            writeByte((grid.isPercussion() ? FLAG_PERCUSSION : 0)
+                    | (grid.muted ? FLAG_MUTED : 0)
+                    | (grid.solo ? FLAG_SOLO : 0));
+            writeByte(Scale.getScaleIndex(grid.getScale()) + 1);
+            writeByte(grid.getInstrument());
+            writeByte(grid.getKey());
+            writeByte(grid.getVelocity());
+        }
+
+        // pack the cells and segments into the body, a bit at a time
+        int bodyLength = (enabled * width * height * 2 + roll.size() * roll.getNumGrids() + 7) / 8;
+        if (body.length < bodyLength) {
+            body = new byte[bodyLength];
+        }
+        for (int i = 0; i < bodyLength; i++) {
+            body[i] = 0;
+        }
+        int bit = 0;
+        for (int i = 0; i < enabled; i++) {
+            Grid grid = roll.getGrid(i);
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++, bit += 2) {
+                    if (grid.grid[x][y][0]) {
+                        body[bit >> 3] |= 1 << (bit & 7);
+                    }
+                    if (grid.grid[x][y][1]) {
+                        body[(bit + 1) >> 3] |= 1 << ((bit + 1) & 7);
+                    }
+                }
+            }
+        }
+        for (int s = 0; s < roll.size(); s++) {
+            boolean[] segment = roll.getSegment(s);
+            for (int j = 0; j < segment.length; j++, bit++) {
+                if (segment[j]) {
+                    body[bit >> 3] |= 1 << (bit & 7);
+                }
+            }
+        }
+
+        // run-length encode the body, which is mostly empty
+        for (int i = 0; i < bodyLength;) {
+            if (body[i] == 0) {
+                int run = 1;
+                while (i + run < bodyLength && body[i + run] == 0 && run < 256) {
+                    run++;
+                }
+                writeByte(0);
+                writeByte(run - 1);
+                i += run;
+            } else {
+                writeByte(body[i++]);
+            }
+        }
+
+        // and finally, base64 it
+        text.setLength(0);
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int chunk = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i + 2] & 0xff);
+            text.append(ALPHABET[chunk >> 18]).append(ALPHABET[(chunk >> 12) & 63])
+                    .append(ALPHABET[(chunk >> 6) & 63]).append(ALPHABET[chunk & 63]);
+        }
+        if (length - i == 1) {
+            int chunk = (bytes[i] & 0xff) << 16;
+            text.append(ALPHABET[chunk >> 18]).append(ALPHABET[(chunk >> 12) & 63]);
+        } else if (length - i == 2) {
+            int chunk = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8);
+            text.append(ALPHABET[chunk >> 18]).append(ALPHABET[(chunk >> 12) & 63])
+                    .append(ALPHABET[(chunk >> 6) & 63]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Decode an encoded roll
+     * @param encoded The encoded roll
+     * @param target The roll to set the state of, or null to build a new one
+     * @return The roll that was decoded into
+     * @throws IllegalArgumentException The string is not an encoded roll
+     * @throws InvalidMidiDataException A new roll could not be built
+     */
+    public Roll decodeRoll(CharSequence encoded, Roll target) throws InvalidMidiDataException {
+        try {
+            return decodeInto(encoded, target);
+        } finally {
+            letGoOfBuffers();
+        }
+    }
+
+    /**
+     * Decode an encoded roll into the given roll or a new one
+     * @see #decodeRoll(CharSequence, Roll)
+     */
+    private Roll decodeInto(CharSequence encoded, Roll target) throws InvalidMidiDataException {
+        // undo the base64
+        int chars = encoded.length();
+        if (chars % 4 == 1) {
+            throw new IllegalArgumentException("Encoded roll has a bad length");
+        }
+        length = (int) ((long) chars * 3 / 4);
+        if (bytes.length < length) {
+            bytes = new byte[length];
+        }
+        int out = 0, chunk = 0;
+        for (int i = 0; i < chars; i++) {
+            char c = encoded.charAt(i);
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Encoded roll has a bad character: " + c);
+            }
+            chunk = (chunk << 6) | value;
+            if ((i & 3) == 3) {
+                bytes[out++] = (byte) (chunk >> 16);
+                bytes[out++] = (byte) (chunk >> 8);
+                bytes[out++] = (byte) chunk;
+                chunk = 0;
+            }
+        }
+        if ((chars & 3) == 2) {
+            bytes[out++] = (byte) (chunk >> 4);
+        } else if ((chars & 3) == 3) {
+            bytes[out++] = (byte) (chunk >> 10);
+            bytes[out++] = (byte) (chunk >> 2);
+        }
+
+        // header
+        position = 0;
+        if (readByte() != VERSION) {
+            throw new IllegalArgumentException("Unknown encoded roll version");
+        }
+        int tempo = readVarint();
+        int numGrids = readVarint();
+        int width = readVarint();
+        int height = readVarint();
+        int enabled = readVarint();
+        int segments = readVarint();
+        if (tempo < 1 || numGrids < 1 || width < 1 || height < 1 || enabled < 0 || segments < 0) {
+            throw new IllegalArgumentException("Encoded roll has a bad size");
+        }
+        if (enabled > numGrids || numGrids > MAX_GRIDS || segments > MAX_SEGMENTS
+                || (long) numGrids * width * height > MAX_CELLS) {
+            throw new IllegalArgumentException("Encoded roll is too large");
+        }
+        if (target != null && (target.getGridWidth() != width || target.getGridHeight() != height
+                || target.getNumGrids() != numGrids)) {
+            throw new IllegalArgumentException("Encoded roll is a different shape");
+        }
+
+        // read and check every grid's settings before anything is changed
+        int[][] settings = new int[enabled][];
+        for (int i = 0; i < enabled; i++) {
+            int flags = readByte();
+            int scale = readByte() - 1;
+            int instrument = readByte();
+            int key = readByte();
+            int velocity = readByte();
+            if (scale >= Scale.SCALES.length || instrument > 127 || velocity > 127) {
+                throw new IllegalArgumentException("Encoded roll has bad settings for grid " + i);
+            }
+            Scale played;
+            if (scale >= 0) {
+                played = Scale.SCALES[scale];
+            } else if ((flags & FLAG_PERCUSSION) != 0 || target == null || i >= target.getGridsEnabled()) {
+                played = Scale.CHROMATIC;
+            } else {
+                played = target.getGrid(i).getScale();
+            }
+            if ((long) key + played.getNoteNumberByScaleDegree(height - 1) > 127) {
+                throw new IllegalArgumentException("Encoded roll's grid " + i + " plays notes above 127");
+            }
+            settings[i] = new int[]{flags, scale, instrument, key, velocity};
+        }
+
+        // the run-length encoding turns two bytes into at most 256
+        long bodyLength = ((long) enabled * width * height * 2 + (long) segments * numGrids + 7) / 8;
+        if (bodyLength > (long) (length - position) * 128) {
+            throw new IllegalArgumentException("Encoded roll is truncated");
+        }
+
+        if (target == null) {
+            target = new Roll(tempo, numGrids, width, height);
+        } else {
+            target.setTempo(tempo);
+        }
+        for (int i = 0; i < enabled; i++) {
+            int flags = settings[i][0], scale = settings[i][1], instrument = settings[i][2],
+                    key = settings[i][3], velocity = settings[i][4];
+            if (i >= target.getGridsEnabled()) {
+                if ((flags & FLAG_PERCUSSION) != 0) {
+                    target.enablePercussionGrid(key, velocity);
+                } else {
+                    target.enableGrid(scale >= 0 ? Scale.SCALES[scale] : Scale.CHROMATIC, instrument, key, velocity);
+                }
+            }
+            Grid grid = target.getGrid(i);
+            if (scale >= 0) {
+                grid.setScale(Scale.SCALES[scale]);
+            }
+            grid.setInstrument(instrument);
+            grid.setKeyUnchecked(key);
+            grid.setVelocity(velocity);
+            grid.muted = (flags & FLAG_MUTED) != 0;
+            grid.solo = (flags & FLAG_SOLO) != 0;
+        }
+
+        // undo the run-length encoding of the body
+        if (body.length < bodyLength) {
+            body = new byte[(int) bodyLength];
+        }
+        for (int i = 0; i < bodyLength;) {
+            int b = readByte();
+            if (b == 0) {
+                int run = readByte() + 1;
+                for (int j = 0; j < run && i < bodyLength; j++) {
+                    body[i++] = 0;
+                }
+            } else {
+                body[i++] = (byte) b;
+            }
+        }
+
+        // and unpack the cells and segments
+        int bit = 0;
+        for (int i = 0; i < enabled; i++) {
+            Grid grid = target.getGrid(i);
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++, bit += 2) {
+                    boolean on = (body[bit >> 3] & (1 << (bit & 7))) != 0;
+                    boolean off = (body[(bit + 1) >> 3] & (1 << ((bit + 1) & 7))) != 0;
+                    if (grid.hasNoteOn(x, y) != on) {
+                        grid.toggleNoteOn(x, y);
+                    }
+                    if (grid.hasNoteOff(x, y) != off) {
+                        grid.toggleNoteOff(x, y);
+                    }
+                }
+            }
+        }
+        while (target.size() > 0) {
+            target.removeRollSegment(target.size() - 1);
+        }
+        for (int s = 0; s < segments; s++) {
+            target.addRollSegment();
+            for (int j = 0; j < numGrids; j++, bit++) {
+                if ((body[bit >> 3] & (1 << (bit & 7))) != 0) {
+                    target.enableGridInRollSegment(s, j);
+                }
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Let go of buffers grown for a large roll, so a thread's codec doesn't
+     * hold on to them
+     */
+    private void letGoOfBuffers() {
+        if (bytes.length > KEPT) {
+            bytes = new byte[256];
+        }
+        if (body.length > KEPT) {
+            body = new byte[256];
+        }
+        if (text.capacity() > KEPT) {
+            text = new StringBuilder();
+        }
+    }
+
+    /**
+     * Append a byte to the encoded bytes
+     * @param b The byte
+     */
+    private void writeByte(int b) {
+        if (length == bytes.length) {
+            byte[] bigger = new byte[bytes.length * 2];
+            System.arraycopy(bytes, 0, bigger, 0, length);
+            bytes = bigger;
+        }
+        bytes[length++] = (byte) b;
+    }
+
+    /**
+     * Append a non-negative integer to the encoded bytes, seven bits at a time
+     * @param value The integer
+     */
+    private void writeVarint(int value) {
+        while (value > 0x7f) {
+            writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    /**
+     * Read the next decoded byte
+     * @return The byte, from 0 to 255
+     */
+    private int readByte() {
+        if (position >= length) {
+            throw new IllegalArgumentException("Encoded roll is truncated");
+        }
+        return bytes[position++] & 0xff;
+    }
+
+    /**
+     * Read the next variable-length integer
+     * @return The integer
+     */
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Encoded roll has a bad number");
+    }
+}
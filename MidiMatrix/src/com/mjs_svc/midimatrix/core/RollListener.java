@@ -0,0 +1,62 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+/**
+ * RollListener is told about every edit made to a Roll or one of its grids.
+ * Each edit is described by one of the constants below and the integer
+ * arguments that were passed to the Roll method that made it, so that the
+ * same edit can be made again later (see Journal).
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public interface RollListener {
+
+    // Roll edits
+    public static final int TEMPO = 1;           // tempo
+    public static final int SEGMENT_ADD = 2;     // (none)
+    public static final int SEGMENT_ADD_AT = 3;  // segment
+    public static final int SEGMENT_REMOVE = 4;  // segment
+    public static final int SEGMENT_MOVE = 5;    // from, to
+    public static final int SEGMENT_ENABLE = 6;  // segment, grid
+    public static final int SEGMENT_DISABLE = 7; // segment, grid
+    public static final int SEGMENT_TOGGLE = 8;  // segment, grid
+
+    // Grid edits
+    public static final int GRID_INSTRUMENT = 20;    // grid, instrument
+    public static final int GRID_SCALE = 21;         // grid, index into Scale.SCALES
+    public static final int GRID_VELOCITY = 22;      // grid, velocity
+    public static final int GRID_KEY = 23;           // grid, key
+    public static final int GRID_TOGGLE = 24;        // grid, x, y
+    public static final int GRID_TOGGLE_LENGTH = 25; // grid, x, y, duration
+    public static final int GRID_TOGGLE_ON = 26;     // grid, x, y
+    public static final int GRID_TOGGLE_OFF = 27;    // grid, x, y
+    public static final int GRID_CLEAR = 28;         // grid
+    public static final int GRID_MUTE = 29;          // grid, 1 to mute or 0 to unmute
+    public static final int GRID_SOLO = 30;          // grid, 1 to solo or 0 to unsolo
+
+    /**
+     * Called after an edit has been made to the roll
+     * @param roll The roll that was edited
+     * @param edit What kind of edit was made
+     * @param args The arguments of the edit
+     */
+    public void rollEdited(Roll roll, int edit, int[] args);
+}
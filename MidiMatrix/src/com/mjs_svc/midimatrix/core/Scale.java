@@ -1,4 +1,4 @@
-package com.mjs_svc.midimatrix;
+package com.mjs_svc.midimatrix.core;
 
 /*
  * MIDIMatrix - Matrix-based MIDI sequencer
@@ -118,4 +118,30 @@ public class Scale {
     public static final Scale CHROMATIC = new Scale(
             "Chromatic",
             0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+
+    // All of the basic scales, in the order they are offered to the user
+    public static final Scale[] SCALES = {
+        MAJOR_PENTATONIC,
+        MINOR_PENTATONIC,
+        IONIAN,
+        AEOLIAN,
+        ARABIC,
+        WHOLE_TONE,
+        OCTATONIC,
+        CHROMATIC
+    };
+
+    /**
+     * Find the index of a scale in SCALES, so that it may be stored
+     * @param scale The scale to look for
+     * @return The index of the scale, or -1 if it is not a basic scale
+     */
+    public static int getScaleIndex(Scale scale) {
+        for (int i = 0; i < SCALES.length; i++) {
+            if (SCALES[i] == scale) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
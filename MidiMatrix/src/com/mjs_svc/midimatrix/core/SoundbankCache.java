@@ -0,0 +1,167 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import javax.sound.midi.*;
+
+/**
+ * SoundbankCache keeps the soundbanks read from SF2 and DLS files, so that
+ * going back to one, or opening another synthesizer with it, doesn't mean
+ * reading it again, and loads into a synthesizer just the instruments that
+ * are played.  The JDK reads a soundbank file's samples lazily, so an
+ * instrument costs memory only once it is loaded.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class SoundbankCache {
+
+    public static final int PERCUSSION_BANK = 128; // The bank drum kits are in, for soundbanks that number them so
+    private final Map<File, Cached> banks = new HashMap<File, Cached>();
+
+    /**
+     * A soundbank, and when its file was last changed
+     */
+    private static class Cached {
+
+        private final long modified;
+        private final Soundbank bank;
+
+        private Cached(long _modified, Soundbank _bank) {
+            modified = _modified;
+            bank = _bank;
+        }
+    }
+
+    /**
+     * Get the soundbank in a file, reading it if it hasn't been read or the
+     * file has changed since
+     * @param file An SF2 or DLS file
+     * @return The soundbank
+     * @throws IOException The file could not be read
+     * @throws InvalidMidiDataException The file isn't a soundbank
+     */
+    public synchronized Soundbank get(File file) throws IOException, InvalidMidiDataException {
+        File key = file.getAbsoluteFile();
+        Cached cached = banks.get(key);
+        if (cached != null && cached.modified == key.lastModified()) {
+            return cached.bank;
+        }
+        Soundbank bank = MidiSystem.getSoundbank(key);
+        banks.put(key, new Cached(key.lastModified(), bank));
+        return bank;
+    }
+
+    /**
+     * Tell whether an instrument is a drum kit.  The JDK's SF2 and DLS
+     * instruments don't say so through the API, only in their names.
+     * @param instrument The instrument
+     * @return True if it is a drum kit
+     */
+    public static boolean isDrumkit(Instrument instrument) {
+        return instrument.toString().startsWith("Drumkit") || instrument.getPatch().getBank() == PERCUSSION_BANK;
+    }
+
+    /**
+     * Pick the instruments to play some programs with out of a soundbank.
+     * The General MIDI bank is preferred; a program it lacks is played with
+     * the same program of another bank, if there is one.
+     * @param bank The soundbank
+     * @param programs Which programs are played
+     * @param percussion Whether a drum kit is needed; the standard kit is
+     * preferred, otherwise the soundbank's first
+     * @return The instruments
+     */
+    public static Vector<Instrument> select(Soundbank bank, boolean[] programs, boolean percussion) {
+        Instrument[] chosen = new Instrument[programs.length];
+        Instrument kit = null;
+        Instrument[] instruments = bank.getInstruments();
+        for (int i = 0; i < instruments.length; i++) {
+            Patch patch = instruments[i].getPatch();
+            int program = patch.getProgram();
+            if (isDrumkit(instruments[i])) {
+                if (percussion && (kit == null || (program == 0 && kit.getPatch().getProgram() != 0))) {
+                    kit = instruments[i];
+                }
+            } else if (program < programs.length && programs[program]
+                    && (chosen[program] == null || (patch.getBank() == 0 && chosen[program].getPatch().getBank() != 0))) {
+                chosen[program] = instruments[i];
+            }
+        }
+
+        Vector<Instrument> selected = new Vector<Instrument>();
+        for (int i = 0; i < chosen.length; i++) {
+            if (chosen[i] != null) {
+                selected.add(chosen[i]);
+            }
+        }
+        if (kit != null) {
+            selected.add(kit);
+        }
+        return selected;
+    }
+
+    /**
+     * Make a synthesizer hold just the instruments it needs: those not
+     * needed are unloaded, and those missing are loaded
+     * @param synth The synthesizer, which must be open
+     * @param bank The soundbank to play with, or null for the synthesizer's
+     * default
+     * @param programs Which programs are played, or null for every
+     * instrument in the soundbank
+     * @param percussion Whether a drum kit is needed
+     */
+    public static void fit(Synthesizer synth, Soundbank bank, boolean[] programs, boolean percussion) {
+        if (bank == null) {
+            bank = synth.getDefaultSoundbank();
+        }
+        if (bank == null || !synth.isSoundbankSupported(bank)) {
+            return;
+        }
+        Vector<Instrument> wanted = new Vector<Instrument>();
+        if (programs == null) {
+            Instrument[] all = bank.getInstruments();
+            for (int i = 0; i < all.length; i++) {
+                wanted.add(all[i]);
+            }
+        } else {
+            wanted = select(bank, programs, percussion);
+        }
+
+        Vector<Instrument> loaded = new Vector<Instrument>();
+        Instrument[] already = synth.getLoadedInstruments();
+        for (int i = 0; i < already.length; i++) {
+            if (wanted.contains(already[i])) {
+                loaded.add(already[i]);
+            } else {
+                synth.unloadInstrument(already[i]);
+            }
+        }
+        for (Instrument instrument : wanted) {
+            if (!loaded.contains(instrument) && !synth.loadInstrument(instrument)) {
+                System.err.println("Could not load " + instrument);
+            }
+        }
+    }
+}
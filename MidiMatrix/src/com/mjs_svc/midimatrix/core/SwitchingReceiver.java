@@ -0,0 +1,161 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import javax.sound.midi.*;
+
+/**
+ * SwitchingReceiver passes everything it is sent on to one receiver, which
+ * can be swapped for another while messages are flowing.  The controllers
+ * and programs sent on each channel are remembered and replayed to the new
+ * receiver when it takes over, so that it picks up where the old one left
+ * off; the old receiver is then told to let go of all of its notes.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class SwitchingReceiver implements Receiver {
+
+    private static final int SUSTAIN = 64, RESET_CONTROLLERS = 121, ALL_NOTES_OFF = 123;
+
+    private Receiver target;
+    private final int[] programs = new int[16];
+    private final int[][] controllers = new int[16][120]; // channel mode messages (120 up) aren't kept
+
+    /**
+     * Create a receiver that passes messages on to nothing until
+     * switchTo() is called
+     */
+    public SwitchingReceiver() {
+        for (int channel = 0; channel < 16; channel++) {
+            programs[channel] = -1;
+            for (int i = 0; i < controllers[channel].length; i++) {
+                controllers[channel][i] = -1;
+            }
+        }
+    }
+
+    /**
+     * Pass a message on to the current receiver
+     * @param message The message
+     * @param timeStamp When to play it, in microseconds, or -1 for now
+     */
+    public synchronized void send(MidiMessage message, long timeStamp) {
+        if (message instanceof ShortMessage) {
+            ShortMessage mesg = (ShortMessage) message;
+            if (mesg.getCommand() == ShortMessage.PROGRAM_CHANGE) {
+                programs[mesg.getChannel()] = mesg.getData1();
+            } else if (mesg.getCommand() == ShortMessage.CONTROL_CHANGE && mesg.getData1() < 120) {
+                controllers[mesg.getChannel()][mesg.getData1()] = mesg.getData2();
+            } else if (mesg.getCommand() == ShortMessage.CONTROL_CHANGE && mesg.getData1() == RESET_CONTROLLERS) {
+                for (int i = 0; i < 120; i++) {
+                    controllers[mesg.getChannel()][i] = -1;
+                }
+            }
+        }
+        if (target != null) {
+            target.send(message, timeStamp);
+        }
+    }
+
+    /**
+     * Send everything to another receiver from now on.  Nothing sent while
+     * switching goes to the old receiver after the new one has been brought
+     * up to date.
+     * @param receiver The new receiver
+     */
+    public void switchTo(Receiver receiver) {
+        Receiver old;
+        synchronized (this) {
+            old = target;
+            if (old == receiver) {
+                return;
+            }
+            target = receiver;
+            replay(receiver);
+        }
+        if (old != null) {
+            silence(old);
+        }
+    }
+
+    /**
+     * @return The receiver messages are passed on to, or null
+     */
+    public synchronized Receiver getTarget() {
+        return target;
+    }
+
+    /**
+     * Stop passing messages on, silencing the receiver they were going to
+     */
+    public void close() {
+        Receiver old;
+        synchronized (this) {
+            old = target;
+            target = null;
+        }
+        if (old != null) {
+            silence(old);
+        }
+    }
+
+    /**
+     * Bring a receiver's channels up to date
+     */
+    private void replay(Receiver receiver) {
+        try {
+            ShortMessage mesg = new ShortMessage();
+            for (int channel = 0; channel < 16; channel++) {
+                // bank select comes before the program it selects from
+                for (int controller = 0; controller < 120; controller++) {
+                    if (controllers[channel][controller] >= 0 && controller != SUSTAIN) {
+                        mesg.setMessage(ShortMessage.CONTROL_CHANGE, channel, controller, controllers[channel][controller]);
+                        receiver.send(mesg, -1);
+                    }
+                }
+                if (programs[channel] >= 0) {
+                    mesg.setMessage(ShortMessage.PROGRAM_CHANGE, channel, programs[channel], 0);
+                    receiver.send(mesg, -1);
+                }
+            }
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Let go of every note a receiver is playing
+     */
+    private static void silence(Receiver receiver) {
+        try {
+            ShortMessage mesg = new ShortMessage();
+            for (int channel = 0; channel < 16; channel++) {
+                mesg.setMessage(ShortMessage.CONTROL_CHANGE, channel, SUSTAIN, 0);
+                receiver.send(mesg, -1);
+                mesg.setMessage(ShortMessage.CONTROL_CHANGE, channel, ALL_NOTES_OFF, 0);
+                receiver.send(mesg, -1);
+            }
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            // the device has gone away
+        }
+    }
+}
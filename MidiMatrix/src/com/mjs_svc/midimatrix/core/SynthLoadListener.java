@@ -0,0 +1,36 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+/**
+ * SynthLoadListener is handed each sample a SynthMonitor takes of how hard
+ * the synthesizer is working.
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public interface SynthLoadListener {
+
+    /**
+     * Called on the monitor's thread after each sample
+     * @param monitor The monitor
+     * @param load The sample
+     */
+    public void loadSampled(SynthMonitor monitor, SynthMonitor.Load load);
+}
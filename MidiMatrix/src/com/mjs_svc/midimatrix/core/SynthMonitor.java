@@ -0,0 +1,364 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Vector;
+import javax.sound.midi.*;
+
+/**
+ * SynthMonitor watches how hard the synthesizer playback plays through is
+ * working, sampling every so often on a thread of its own:
+ * <ul>
+ * <li>the voices sounding, from the synthesizer's voice status;</li>
+ * <li>the processor time of the threads rendering its audio (the JDK's
+ * software synthesizer renders on threads named "AudioPusher" and
+ * "JitterCorrector"; with several open their times are added together);</li>
+ * <li>underruns, estimated from the synthesizer's clock falling behind the
+ * wall clock: the software synthesizer's clock counts the audio rendered,
+ * so when it falls behind the audio device runs dry.</li>
+ * </ul>
+ *
+ * <p>In adaptive mode the notes played are held to a budget (see
+ * Playback.setVoiceBudget()) that is lowered as soon as the synthesizer
+ * looks overloaded and raised again, a step at a time, once it has been
+ * comfortable for a while.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class SynthMonitor {
+
+    public static final long INTERVAL = 250; // How often to sample, in milliseconds
+    private static final double CPU_HIGH = 0.7, CPU_LOW = 0.4; // Rendering time, as a share of one processor
+    private static final double VOICES_HIGH = 0.9, VOICES_LOW = 0.6; // Voices sounding, as a share of the polyphony
+    private static final long LAG = 20000;   // How far, in microseconds, the clock may fall behind in one sample
+    private static final int MIN_BUDGET = 8; // The fewest notes a budget holds playback to
+    private static final int MAX_BUDGET = 128; // A budget above this is lifted
+    private static final int CALM_SAMPLES = 8; // Samples without trouble before the budget is raised
+    private static final String[] RENDER_THREADS = {"AudioPusher", "JitterCorrector"};
+
+    private final Playback playback;
+    private final Thread sampler;
+    private final Vector<SynthLoadListener> listeners = new Vector<SynthLoadListener>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private volatile Load load = new Load(0, 0, 0, -1, -1, 0, -1);
+    private volatile boolean adaptive = false, closed = false;
+
+    // only touched by the sampling thread
+    private Synthesizer synth;
+    private long wall, clock, cpu;
+    private long[] renderers = new long[0];
+    private int underruns = 0, calm = 0;
+    private long lag = 0;
+
+    /**
+     * How hard the synthesizer was working when sampled
+     */
+    public static class Load {
+
+        private final int voices, polyphony, notes, budget, underruns;
+        private final double cpu;
+        private final long lag;
+
+        private Load(int _voices, int _polyphony, int _notes, int _budget, double _cpu, int _underruns, long _lag) {
+            voices = _voices;
+            polyphony = _polyphony;
+            notes = _notes;
+            budget = _budget;
+            cpu = _cpu;
+            underruns = _underruns;
+            lag = _lag;
+        }
+
+        /**
+         * @return The voices sounding
+         */
+        public int getVoices() {
+            return voices;
+        }
+
+        /**
+         * @return The most voices the synthesizer sounds at once
+         */
+        public int getPolyphony() {
+            return polyphony;
+        }
+
+        /**
+         * @return The notes played that are sounding; a note may sound
+         * with several voices
+         */
+        public int getNotes() {
+            return notes;
+        }
+
+        /**
+         * @return The budget notes are held to, or -1 for no limit
+         */
+        public int getBudget() {
+            return budget;
+        }
+
+        /**
+         * @return The processor time spent rendering since the last sample,
+         * as a share of one processor, or -1 if it can't be measured
+         */
+        public double getCpu() {
+            return cpu;
+        }
+
+        /**
+         * @return How many samples since monitoring started the
+         * synthesizer's clock fell behind in
+         */
+        public int getUnderruns() {
+            return underruns;
+        }
+
+        /**
+         * @return How far, in microseconds, the synthesizer's clock has
+         * fallen behind since monitoring started, or -1 if it has no clock
+         */
+        public long getLag() {
+            return lag;
+        }
+
+        @Override
+        public String toString() {
+            return voices + "/" + polyphony + " voices, "
+                    + (cpu < 0 ? "" : Math.round(cpu * 100) + "% CPU, ")
+                    + underruns + (underruns == 1 ? " underrun" : " underruns")
+                    + (budget < 0 ? "" : ", held to " + budget + " notes");
+        }
+    }
+
+    /**
+     * Start watching the synthesizer a Playback plays through
+     * @param _playback The playback
+     */
+    public SynthMonitor(Playback _playback) {
+        playback = _playback;
+        if (threads.isThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+            try {
+                threads.setThreadCpuTimeEnabled(true);
+            } catch (SecurityException e) {
+                // go without
+            } catch (UnsupportedOperationException e) {
+                // go without
+            }
+        }
+        sampler = new Thread(new Runnable() {
+
+            public void run() {
+                while (!closed) {
+                    sample();
+                    try {
+                        Thread.sleep(INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "MIDIMatrix monitor");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Add a listener to be handed each sample
+     * @param listener The listener to add
+     */
+    public void addLoadListener(SynthLoadListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener
+     * @param listener The listener to remove
+     */
+    public void removeLoadListener(SynthLoadListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the latest sample
+     * @return The sample
+     */
+    public Load getLoad() {
+        return load;
+    }
+
+    /**
+     * Turn adaptive mode on or off; turning it off lifts the budget
+     * @param _adaptive True to hold the notes played to a budget when the
+     * synthesizer is overloaded
+     */
+    public void setAdaptive(boolean _adaptive) {
+        adaptive = _adaptive;
+        if (!adaptive) {
+            playback.setVoiceBudget(-1);
+        }
+    }
+
+    /**
+     * @return True if in adaptive mode
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Watch a synthesizer for a while to see whether its clock keeps up
+     * with the wall clock, i.e.: whether its audio device never ran dry
+     * @param synth The synthesizer
+     * @param millis How long to watch it
+     * @return True if it fell behind by no more than a sample may
+     * @throws InterruptedException Interrupted while watching
+     */
+    public static boolean keepsUp(Synthesizer synth, long millis) throws InterruptedException {
+        long wall = System.nanoTime() / 1000, clock = synth.getMicrosecondPosition();
+        Thread.sleep(millis);
+        long behind = (System.nanoTime() / 1000 - wall) - (synth.getMicrosecondPosition() - clock);
+        return behind <= LAG;
+    }
+
+    /**
+     * Stop watching
+     */
+    public void close() {
+        closed = true;
+        sampler.interrupt();
+    }
+
+    /**
+     * Take a sample, adapt the budget to it and hand it to the listeners
+     */
+    private void sample() {
+        Synthesizer current = playback.getSynthesizer();
+        long now = System.nanoTime() / 1000;
+        long rendering = renderTime();
+        if (current != synth) {
+            // start again with the new synthesizer
+            synth = current;
+            wall = now;
+            clock = synth == null ? -1 : synth.getMicrosecondPosition();
+            cpu = rendering;
+            return;
+        }
+        if (synth == null) {
+            return;
+        }
+
+        int voices = 0;
+        VoiceStatus[] status = synth.getVoiceStatus();
+        for (int i = 0; i < status.length; i++) {
+            if (status[i].active) {
+                voices++;
+            }
+        }
+        int polyphony = synth.getMaxPolyphony();
+
+        double share = rendering < 0 || cpu < 0 || now <= wall ? -1 : (rendering - cpu) / 1000.0 / (now - wall);
+        long position = synth.getMicrosecondPosition();
+        boolean underrun = false;
+        if (position > 0 && clock >= 0) {
+            long behind = (now - wall) - (position - clock);
+            if (behind > LAG) {
+                underrun = true;
+                underruns++;
+                lag += behind;
+            }
+        }
+        wall = now;
+        clock = position;
+        cpu = rendering;
+
+        if (adaptive) {
+            adapt(underrun || share > CPU_HIGH || voices >= polyphony * VOICES_HIGH,
+                    share < CPU_LOW && voices < polyphony * VOICES_LOW);
+        }
+        load = new Load(voices, polyphony, playback.getNotesSounding(), playback.getVoiceBudget(),
+                share, underruns, position > 0 ? lag : -1);
+        for (SynthLoadListener listener : listeners) {
+            listener.loadSampled(this, load);
+        }
+    }
+
+    /**
+     * Lower the budget straight away when overloaded, and raise it once the
+     * synthesizer has been comfortable for a while
+     */
+    private void adapt(boolean overloaded, boolean comfortable) {
+        int budget = playback.getVoiceBudget();
+        if (overloaded) {
+            calm = 0;
+            int notes = playback.getNotesSounding();
+            int lower = (budget < 0 ? notes : Math.min(notes, budget)) * 3 / 4;
+            playback.setVoiceBudget(Math.max(MIN_BUDGET, lower));
+        } else if (comfortable && budget >= 0 && ++calm >= CALM_SAMPLES) {
+            calm = 0;
+            budget += budget / 4 + 1;
+            playback.setVoiceBudget(budget > MAX_BUDGET ? -1 : budget);
+        }
+    }
+
+    /**
+     * Add up the processor time of the threads rendering audio, finding
+     * them again if any have gone
+     * @return The time, in nanoseconds, or -1 if it can't be measured
+     */
+    private long renderTime() {
+        if (!threads.isThreadCpuTimeSupported()) {
+            return -1;
+        }
+        long total = 0;
+        for (int i = 0; i < renderers.length; i++) {
+            long time = threads.getThreadCpuTime(renderers[i]);
+            if (time < 0) {
+                findRenderers();
+                return -1;
+            }
+            total += time;
+        }
+        if (renderers.length == 0) {
+            findRenderers();
+            return -1;
+        }
+        return total;
+    }
+
+    private void findRenderers() {
+        Vector<Long> found = new Vector<Long>();
+        ThreadInfo[] infos = threads.getThreadInfo(threads.getAllThreadIds());
+        for (int i = 0; i < infos.length; i++) {
+            for (int j = 0; infos[i] != null && j < RENDER_THREADS.length; j++) {
+                if (infos[i].getThreadName().equals(RENDER_THREADS[j])) {
+                    found.add(Long.valueOf(infos[i].getThreadId()));
+                }
+            }
+        }
+        renderers = new long[found.size()];
+        for (int i = 0; i < renderers.length; i++) {
+            renderers[i] = found.get(i).longValue();
+        }
+    }
+}
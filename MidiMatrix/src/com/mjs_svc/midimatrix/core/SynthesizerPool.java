@@ -0,0 +1,197 @@
+package com.mjs_svc.midimatrix.core;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import javax.sound.midi.*;
+import javax.sound.sampled.*;
+
+/**
+ * SynthesizerPool keeps software synthesizers open in stream mode so that
+ * audio renders don't pay for opening a synthesizer and loading its
+ * instruments every time.  Every synthesizer in the pool plays the JDK's
+ * default soundbank, which is loaded once and shared between them.
+ *
+ * <p>At most <code>size</code> synthesizers are open at once; borrowing
+ * blocks while they are all in use.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class SynthesizerPool {
+
+    private final AudioFormat format;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<Pooled> idle = new ConcurrentLinkedQueue<Pooled>();
+
+    /**
+     * Create an empty pool; synthesizers are opened as they are needed
+     * @param _format The format the synthesizers render in
+     * @param size The most synthesizers to keep open
+     */
+    public SynthesizerPool(AudioFormat _format, int size) {
+        format = _format;
+        permits = new Semaphore(size, true);
+    }
+
+    /**
+     * @return The format the synthesizers render in
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Take a synthesizer from the pool, opening one if none are idle
+     * @return A synthesizer, silent and with its controllers reset
+     * @throws MidiUnavailableException A synthesizer could not be opened
+     * @throws InterruptedException Interrupted while waiting for one
+     */
+    public Pooled borrow() throws MidiUnavailableException, InterruptedException {
+        permits.acquire();
+        try {
+            Pooled pooled = idle.poll();
+            if (pooled == null) {
+                pooled = new Pooled(MidiSystem.getSynthesizer(), format);
+            }
+            pooled.reset();
+            return pooled;
+        } catch (MidiUnavailableException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a synthesizer back to the pool
+     * @param pooled The synthesizer
+     */
+    public void release(Pooled pooled) {
+        idle.add(pooled);
+        permits.release();
+    }
+
+    /**
+     * Close a synthesizer that failed rather than giving it back
+     * @param pooled The synthesizer
+     */
+    public void discard(Pooled pooled) {
+        pooled.close();
+        permits.release();
+    }
+
+    /**
+     * Close every idle synthesizer
+     */
+    public void close() {
+        Pooled pooled;
+        while ((pooled = idle.poll()) != null) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * A synthesizer rendering into a stream, along with its stream and
+     * receiver
+     */
+    public static class Pooled {
+
+        private final Synthesizer synth;
+        private final AudioInputStream stream;
+        private final Receiver receiver;
+        private long framesRead = 0;
+
+        Pooled(Synthesizer _synth, AudioFormat format) throws MidiUnavailableException {
+            synth = _synth;
+            stream = Renderer.openStream(synth, format);
+            receiver = synth.getReceiver();
+        }
+
+        /**
+         * @return The synthesizer
+         */
+        public Synthesizer getSynthesizer() {
+            return synth;
+        }
+
+        /**
+         * @return The receiver to send messages to
+         */
+        public Receiver getReceiver() {
+            return receiver;
+        }
+
+        /**
+         * Tell the synthesizer's time at the start of the audio not yet
+         * read.  Synthesizer.getMicrosecondPosition() runs a few blocks
+         * behind the stream, so time stamps relative to it would land early.
+         * @return The time, in microseconds
+         */
+        public long getMicrosecondPosition() {
+            return (long) (framesRead * 1000000.0 / stream.getFormat().getFrameRate());
+        }
+
+        /**
+         * Read the next stretch of audio from the synthesizer
+         * @param frames How many frames to read, all of which must be
+         * read before the next render
+         * @return The audio; closing it leaves the synthesizer open
+         */
+        public AudioInputStream read(long frames) {
+            InputStream shared = new FilterInputStream(stream) {
+
+                @Override
+                public void close() {
+                    // the synthesizer's stream outlives each render
+                }
+            };
+            framesRead += frames;
+            return new AudioInputStream(shared, stream.getFormat(), frames);
+        }
+
+        /**
+         * Silence the synthesizer and put every channel back to its defaults
+         */
+        void reset() {
+            try {
+                ShortMessage mesg = new ShortMessage();
+                for (int channel = 0; channel < 16; channel++) {
+                    mesg.setMessage(ShortMessage.CONTROL_CHANGE, channel, 120, 0); // all sound off
+                    receiver.send(mesg, -1);
+                    mesg.setMessage(ShortMessage.CONTROL_CHANGE, channel, 121, 0); // reset controllers
+                    receiver.send(mesg, -1);
+                    mesg.setMessage(ShortMessage.PROGRAM_CHANGE, channel, 0, 0);
+                    receiver.send(mesg, -1);
+                }
+            } catch (InvalidMidiDataException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void close() {
+            synth.close();
+        }
+    }
+}
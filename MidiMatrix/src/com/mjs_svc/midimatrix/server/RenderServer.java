@@ -0,0 +1,279 @@
+package com.mjs_svc.midimatrix.server;
+
+/*
+ * MIDIMatrix - Matrix-based MIDI sequencer
+ * Copyright (c) 2009 Matthew Scott
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see < http://www.gnu.org/licenses/ >.
+ */
+
+import com.mjs_svc.midimatrix.core.*;
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.sound.midi.MidiUnavailableException;
+
+/**
+ * RenderServer is a small HTTP service that turns encoded rolls (as stored by
+ * MidiMatrixOnline) into MIDI files or WAVE audio:
+ *
+ * <pre>GET  /render?format=mid|wav&amp;tempo=bpm&amp;roll=encoded
+ *POST /render?format=mid|wav&amp;tempo=bpm   with the encoded roll as the body</pre>
+ *
+ * <p>Each request runs on its own virtual thread when the JVM has them, and
+ * on a cached thread pool otherwise.  Audio is rendered on synthesizers
+ * borrowed from a shared SynthesizerPool, so the number of renders running
+ * at once is bounded by the pool and the rest wait their turn.  Output is
+ * kept in a RenderCache, so a popular matrix is only rendered once.</p>
+ *
+ * <p>Rolls longer than five minutes at their tempo are refused before
+ * anything is rendered.</p>
+ *
+ * @author Matthew Scott
+ * @version $Id$
+ */
+public class RenderServer implements HttpHandler {
+
+    private static final int MAX_BODY = 4 * 1024 * 1024;
+    private static final int MAX_TEMPO = 1000;
+    private static final int MAX_SECONDS = 300; // the longest roll rendered, about 50 MB of audio
+    private static final String USAGE =
+            "usage: RenderServer [-port n] [-synths n] [-memory mb] [-cache dir] [-disk mb]\n" +
+            "  -port n     the port to listen on (default 8337)\n" +
+            "  -synths n   how many audio renders to run at once (default: one per core)\n" +
+            "  -memory mb  how much rendered output to keep in memory (default 64)\n" +
+            "  -cache dir  keep rendered output on disk as well, in dir\n" +
+            "  -disk mb    how much to keep on disk (default 1024)";
+
+    private final SynthesizerPool pool;
+    private final RenderCache cache;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Create a render service
+     * @param _pool The synthesizers to render audio with
+     * @param _cache Where to keep rendered output
+     */
+    public RenderServer(SynthesizerPool _pool, RenderCache _cache) {
+        pool = _pool;
+        cache = _cache;
+    }
+
+    /**
+     * Start listening
+     * @param port The port to listen on
+     * @throws IOException The port could not be bound
+     */
+    public void start(int port) throws IOException {
+        executor = newRequestExecutor();
+        server = HttpServer.create(new InetSocketAddress(port), 256);
+        server.createContext("/render", this);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stop listening and close the synthesizers
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        pool.close();
+    }
+
+    /**
+     * Make an executor that runs each request on a virtual thread, falling
+     * back to an ordinary cached thread pool on JVMs without them
+     * @return The executor
+     */
+    protected static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "GET, POST");
+                error(exchange, 405, "Use GET or POST");
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String encoded;
+            if (method.equals("POST")) {
+                encoded = readBody(exchange);
+                if (encoded == null) {
+                    error(exchange, 413, "A roll may be at most " + MAX_BODY + " bytes");
+                    return;
+                }
+            } else {
+                encoded = params.get("roll");
+            }
+            if (encoded == null) {
+                error(exchange, 400, "No roll given");
+                return;
+            }
+            String format = params.containsKey("format") ? params.get("format") : "mid";
+            if (!format.equals("mid") && !format.equals("wav")) {
+                error(exchange, 400, "Unknown format: " + format);
+                return;
+            }
+
+            Roll roll;
+            try {
+                roll = RollCodec.decode(encoded.trim());
+                if (params.containsKey("tempo")) {
+                    roll.setTempo(Integer.parseInt(params.get("tempo")));
+                }
+                if (roll.getTempo() < 1 || roll.getTempo() > MAX_TEMPO) {
+                    throw new IllegalArgumentException("Tempo out of range");
+                }
+            } catch (Exception e) {
+                error(exchange, 400, "Bad roll: " + e.getMessage());
+                return;
+            }
+
+            // each column of a segment is one beat
+            long beats = (long) roll.size() * roll.getGridWidth();
+            if (beats * 60 > (long) MAX_SECONDS * roll.getTempo()) {
+                error(exchange, 413, "A roll may be at most " + MAX_SECONDS + " seconds long");
+                return;
+            }
+
+            byte[] out;
+            try {
+                out = format.equals("wav") ? cache.wave(roll, pool) : cache.midi(roll);
+            } catch (MidiUnavailableException e) {
+                error(exchange, 503, e.getMessage());
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", format.equals("wav") ? "audio/wav" : "audio/midi");
+            exchange.sendResponseHeaders(200, out.length);
+            OutputStream body = exchange.getResponseBody();
+            body.write(out);
+            body.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            error(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null) {
+            try {
+                if (Long.parseLong(length.trim()) > MAX_BODY) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                // read it and see
+            }
+        }
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+            if (body.size() > MAX_BODY) {
+                return null;
+            }
+        }
+        return body.toString("US-ASCII");
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query != null) {
+            String[] pairs = query.split("&");
+            for (int i = 0; i < pairs.length; i++) {
+                int eq = pairs[i].indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pairs[i].substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pairs[i].substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static void error(HttpExchange exchange, int status, String message) {
+        try {
+            byte[] body = (message + "\n").getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (IOException e) {
+            // the headers were already sent or the client went away
+        }
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int port = 8337, synths = Runtime.getRuntime().availableProcessors(), memory = 64, disk = 1024;
+        File cacheDir = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-port")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-synths")) {
+                    synths = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-memory")) {
+                    memory = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-cache")) {
+                    cacheDir = new File(args[++i]);
+                } else if (args[i].equals("-disk")) {
+                    disk = Integer.parseInt(args[++i]);
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        final RenderServer renderServer = new RenderServer(
+                new SynthesizerPool(Renderer.FORMAT, synths),
+                new RenderCache(memory * 1024L * 1024L, cacheDir, disk * 1024L * 1024L));
+        try {
+            renderServer.start(port);
+        } catch (IOException e) {
+            System.err.println("RenderServer: " + e.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+
+            @Override
+            public void run() {
+                renderServer.stop();
+            }
+        });
+        System.out.println("Rendering on port " + port);
+    }
+}
@@ -7,4 +7,5 @@ class Matrix(models.Model):
     mtime = models.DateTimeField(auto_now = True)
     name = models.CharField(max_length = 250)
     description = models.TextField()
+    # The roll as encoded by com.mjs_svc.midimatrix.core.RollCodec (URL-safe base64)
     matrix = models.TextField()